@@ -0,0 +1,317 @@
+package org.antlr.codebuff;
+
+import org.antlr.codebuff.misc.Emitter;
+import org.antlr.codebuff.misc.LineIndex;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/** Format a big document on many threads. Formatting is one loop over the
+ *  real tokens as each token's position depends on those before it, but
+ *  top-level constructs, like members of a class or statements of a SQL
+ *  script, depend little on each other. We split the document before such
+ *  constructs that start a line, format the chunks concurrently and join
+ *  the output.
+ *
+ *  Each chunk is formatted speculatively, assuming the tokens before it are
+ *  where they are in the input: true for the lines and columns that matter
+ *  when the input is already mostly formatted. The chunk records the state
+ *  it entered with, the tokens before it whose line or column it looked at
+ *  and the lines it looked up in the line index. Then, in order, we check
+ *  that state against where the chunks before it actually put those
+ *  tokens. Lines need only agree relative to the last token before the
+ *  chunk as formatting compares lines but never uses one as is. If the
+ *  state differs we format the chunk again, on this thread, with the
+ *  actual positions. Either way the output is just what one
+ *  {@link Formatter} gives for the whole document.
+ */
+public class ChunkedFormatter {
+	/** Don't make chunks smaller than this many real tokens */
+	public static final int MIN_CHUNK_TOKENS = 500;
+	/** Aim for this many chunks per thread so threads finish together */
+	public static final int CHUNKS_PER_THREAD = 4;
+
+	public final FormatEngine engine;
+	public final ExecutorService pool;
+	public final int threads;
+
+	/** For reporting: chunks formatted and those we formatted again */
+	public int chunks, reformattedChunks;
+	/** For reporting: time on the calling thread to split and to format
+	 *  chunks again, and the longest time to format a chunk, summed over
+	 *  format() calls. Their sum is how long format() would take with a
+	 *  thread per chunk.
+	 */
+	public long splitNanos, reformatNanos, longestChunkNanos;
+
+	/** Part of the real tokens and how we formatted it */
+	public static class Chunk {
+		/** Indexes into the real tokens, inclusive */
+		public final int from, to;
+		public String text;
+		public long nanos;
+		/** Line and column we gave each token, from..to */
+		public int[] lines, cols;
+
+		/** Real tokens before from whose line or column we read */
+		public final BitSet lineReads = new BitSet();
+		public final BitSet colReads = new BitSet();
+		/** Each line we looked up in the line index that gave a token
+		 *  before from, and that token's index; -1 if none.
+		 */
+		public final List<int[]> lineQueries = new ArrayList<>();
+
+		public Chunk(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	/** A token before the chunk we're formatting that records when we read
+	 *  its position.
+	 */
+	public static class EntryToken extends CommonToken {
+		private static final long serialVersionUID = 1L;
+
+		public final int realIndex;
+		public final Chunk chunk;
+
+		public EntryToken(Token t, int realIndex, Chunk chunk) {
+			super(t);
+			this.realIndex = realIndex;
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int getLine() {
+			chunk.lineReads.set(realIndex);
+			return super.getLine();
+		}
+
+		@Override
+		public int getCharPositionInLine() {
+			chunk.colReads.set(realIndex);
+			return super.getCharPositionInLine();
+		}
+	}
+
+	public ChunkedFormatter(FormatEngine engine, ExecutorService pool, int threads) {
+		this.engine = engine;
+		this.pool = pool;
+		this.threads = threads;
+	}
+
+	/** Format doc; same output as {@link FormatEngine#format(InputDocument)} */
+	public String format(InputDocument doc) throws Exception {
+		long start = System.nanoTime();
+		List<Token> realTokens = Trainer.getRealTokens(doc.tokens);
+		int n = realTokens.size();
+		int chunkSize = Math.max(MIN_CHUNK_TOKENS, n/(threads*CHUNKS_PER_THREAD));
+		List<Chunk> chunks = split(doc, realTokens, chunkSize);
+		this.chunks += chunks.size();
+		if ( chunks.size()==1 ) return engine.format(doc);
+
+		// all chunks see the same lists so find them once
+		InputDocument wiped = InputDocument.dup(doc);
+		Formatter.wipeCharPositionInfoAndWhitespaceTokens(wiped.tokens);
+		Map<Token,Pair<Boolean,Integer>> listInfo = Formatter.identifyOversizeLists(engine.corpus, wiped);
+
+		// speculate: the tokens before each chunk are where they are now
+		int[] inputLines = new int[n];
+		int[] inputCols = new int[n];
+		for (int i = 0; i<n; i++) {
+			inputLines[i] = realTokens.get(i).getLine();
+			inputCols[i] = realTokens.get(i).getCharPositionInLine();
+		}
+		List<Future<Chunk>> results = new ArrayList<>();
+		for (Chunk chunk : chunks) {
+			results.add(pool.submit(() -> format(doc, listInfo, chunk, inputLines, inputCols, true)));
+		}
+		splitNanos += System.nanoTime()-start;
+
+		int[] lines = new int[n];
+		int[] cols = new int[n];
+		StringBuilder buf = new StringBuilder();
+		long longest = 0;
+		for (Future<Chunk> result : results) {
+			Chunk chunk = result.get();
+			longest = Math.max(longest, chunk.nanos);
+			int lineDelta = 0;
+			if ( chunk.from>Trainer.ANALYSIS_START_TOKEN_INDEX ) {
+				int last = chunk.from-1;
+				lineDelta = lines[last]-inputLines[last];
+				if ( !entryStateHolds(chunk, lineDelta, lines, cols, inputLines, inputCols) ) {
+					chunk = format(doc, listInfo, new Chunk(chunk.from, chunk.to), lines, cols, false);
+					reformatNanos += chunk.nanos;
+					lineDelta = 0;
+					reformattedChunks++;
+				}
+			}
+			for (int i = chunk.from; i<=chunk.to; i++) {
+				lines[i] = chunk.lines[i-chunk.from]+lineDelta;
+				cols[i] = chunk.cols[i-chunk.from];
+			}
+			buf.append(chunk.text);
+		}
+		longestChunkNanos += longest;
+		return buf.toString();
+	}
+
+	/** Did chunk read the same positions, relative to the line of the
+	 *  token before it, as the chunks before it gave those tokens?
+	 */
+	protected boolean entryStateHolds(Chunk chunk, int lineDelta,
+	                                  int[] lines, int[] cols, int[] inputLines, int[] inputCols)
+	{
+		for (int i = chunk.lineReads.nextSetBit(0); i>=0; i = chunk.lineReads.nextSetBit(i+1)) {
+			if ( lines[i]-inputLines[i]!=lineDelta ) return false;
+		}
+		for (int i = chunk.colReads.nextSetBit(0); i>=0; i = chunk.colReads.nextSetBit(i+1)) {
+			if ( cols[i]!=inputCols[i] ) return false;
+		}
+		for (int[] query : chunk.lineQueries) {
+			if ( getFirstTokenOnPreviousLine(lines, chunk.from, query[0]+lineDelta)!=query[1] ) return false;
+		}
+		return true;
+	}
+
+	/** Like {@link LineIndex#getFirstTokenOnPreviousLine} over the real
+	 *  tokens before from at lines.
+	 */
+	public static int getFirstTokenOnPreviousLine(int[] lines, int from, int line) {
+		int i = from-1;
+		while ( i>=0 && lines[i]>=line ) i--;
+		if ( i<0 ) return from>0 ? 0 : -1;
+		while ( i>0 && lines[i-1]==lines[i] ) i--;
+		return i;
+	}
+
+	/** Format chunk's tokens with the tokens before it at lines, cols. If
+	 *  speculative, record what we read of them.
+	 */
+	protected Chunk format(InputDocument doc, Map<Token,Pair<Boolean,Integer>> listInfo,
+	                       Chunk chunk, int[] lines, int[] cols, boolean speculative)
+	{
+		long start = System.nanoTime();
+		Formatter session = engine.newSession();
+		StringBuilder buf = new StringBuilder();
+		session.emitter = new Emitter(buf);
+		session.tokenToListInfo = listInfo;
+		session.setUp(doc);
+		List<Token> realTokens = session.realTokens;
+		int from = chunk.from;
+		if ( from<=Trainer.ANALYSIS_START_TOKEN_INDEX ) {
+			from = Trainer.ANALYSIS_START_TOKEN_INDEX;
+			session.emitFirstToken();
+		}
+		else {
+			enter(session, chunk, lines, cols, speculative);
+		}
+		int entryLine = session.line;
+		for (int i = from; i<=chunk.to; i++) {
+			session.processToken(i, realTokens.get(i).getTokenIndex(), false);
+		}
+		if ( speculative && from==chunk.from && realTokens.get(from).getLine()==entryLine ) {
+			chunk.colReads.set(from-1); // we started where the token before left off
+		}
+
+		chunk.text = buf.toString();
+		chunk.lines = new int[chunk.to-chunk.from+1];
+		chunk.cols = new int[chunk.to-chunk.from+1];
+		for (int i = chunk.from; i<=chunk.to; i++) {
+			chunk.lines[i-chunk.from] = realTokens.get(i).getLine();
+			chunk.cols[i-chunk.from] = realTokens.get(i).getCharPositionInLine();
+		}
+		session.releaseMemory();
+		chunk.nanos = System.nanoTime()-start;
+		return chunk;
+	}
+
+	/** Put session where it would be having emitted the tokens before chunk
+	 *  at lines, cols.
+	 */
+	protected void enter(Formatter session, Chunk chunk, int[] lines, int[] cols, boolean speculative) {
+		List<Token> realTokens = session.realTokens;
+		List<Token> tokens = session.testDoc.tokens.getTokens();
+		session.emittedLines = !speculative ? new LineIndex() : new LineIndex() {
+			@Override
+			public Token getFirstTokenOnPreviousLine(int line) {
+				Token t = super.getFirstTokenOnPreviousLine(line);
+				if ( t==null || t instanceof EntryToken ) {
+					chunk.lineQueries.add(new int[] {line, t!=null ? ((EntryToken)t).realIndex : -1});
+				}
+				return t;
+			}
+		};
+		for (int i = 0; i<chunk.from; i++) {
+			CommonToken t = (CommonToken)realTokens.get(i);
+			t.setLine(lines[i]);
+			t.setCharPositionInLine(cols[i]);
+			if ( speculative ) {
+				t = new EntryToken(t, i, chunk);
+				realTokens.set(i, t);
+				tokens.set(t.getTokenIndex(), t);
+			}
+			session.emittedLines.add(t);
+		}
+		chunk.lineReads.clear(); // adding them to the line index doesn't count
+		chunk.colReads.clear();
+
+		// the loop leaves line and column just after the last token; the
+		// first token is emitted with an extra column
+		int last = chunk.from-1;
+		session.line = lines[last];
+		session.charPosInLine = cols[last]+realTokens.get(last).getText().length()+(last==0 ? 1 : 0);
+	}
+
+	/** Split the real tokens into chunks of about chunkSize tokens at the
+	 *  starts of top-level constructs that start a line. Those are the
+	 *  children of the node we reach going down from the root into any
+	 *  child with most of its parent's tokens, such as a class body.
+	 */
+	public static List<Chunk> split(InputDocument doc, List<Token> realTokens, int chunkSize) {
+		ParserRuleContext node = doc.tree;
+		boolean descend = true;
+		while ( descend ) {
+			descend = false;
+			int size = node.stop.getTokenIndex()-node.start.getTokenIndex();
+			for (int i = 0; i<node.getChildCount(); i++) {
+				ParseTree child = node.getChild(i);
+				if ( child instanceof ParserRuleContext ) {
+					ParserRuleContext c = (ParserRuleContext)child;
+					if ( c.stop!=null && c.stop.getTokenIndex()-c.start.getTokenIndex()>size/2 ) {
+						node = c;
+						descend = true;
+						break;
+					}
+				}
+			}
+		}
+
+		List<Chunk> chunks = new ArrayList<>();
+		int from = 0;
+		int realIndex = 0; // walks realTokens along with the children
+		for (int i = 0; i<node.getChildCount(); i++) {
+			ParseTree child = node.getChild(i);
+			Token start = child instanceof ParserRuleContext ? ((ParserRuleContext)child).start : (Token)child.getPayload();
+			while ( realIndex<realTokens.size() && realTokens.get(realIndex).getTokenIndex()<start.getTokenIndex() ) {
+				realIndex++;
+			}
+			if ( realIndex>=realTokens.size() || realIndex-from<chunkSize ) continue;
+			if ( realTokens.get(realIndex).getLine()==realTokens.get(realIndex-1).getLine() ) continue;
+			chunks.add(new Chunk(from, realIndex-1));
+			from = realIndex;
+		}
+		chunks.add(new Chunk(from, realTokens.size()-1));
+		return chunks;
+	}
+}
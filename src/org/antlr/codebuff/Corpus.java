@@ -11,13 +11,25 @@ import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.Vocabulary;
 import org.antlr.v4.runtime.misc.MultiMap;
 import org.antlr.v4.runtime.misc.Pair;
-import org.antlr.v4.runtime.tree.ParseTreeWalker;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.antlr.codebuff.Tool.getFilenames;
 import static org.antlr.codebuff.Tool.getLexer;
@@ -27,6 +39,8 @@ import static org.antlr.codebuff.Tool.showFileNames;
 public class Corpus {
 	public static final int FEATURE_VECTOR_RANDOM_SEED = 314159; // need randomness but use same seed to get reproducibility
 
+	public static final String MODEL_FILE_FORMAT = "codebuff model v1";
+
 	public static final int NUM_DEPENDENT_VARS = 2;
 	public static final int INDEX_FEATURE_NEWLINES = 0;
 	public static final int INDEX_FEATURE_ALIGN_WITH_PREVIOUS = 1;
@@ -48,6 +62,12 @@ public class Corpus {
 	public String rootDir;
 	public LangDescriptor language;
 
+	/** How many threads {@link #train} uses. Documents are split into that many
+	 *  contiguous partitions and partial results are merged in document order
+	 *  so the trained corpus is identical no matter how many threads we use.
+	 */
+	public int numTrainingThreads = 1;
+
 	/** an index to narrow down the number of vectors we compute distance() on each classification.
 	 *  The key is (previous token's rule index, current token's rule index). It yields
 	 *  a list of vectors with same key. Created by {@link #buildTokenContextIndex}.
@@ -61,6 +81,16 @@ public class Corpus {
 	public Map<ParentSiblingListKey, SiblingListStats> rootAndSplitChildListStats;
 	public Map<Token, Pair<Boolean, Integer>> tokenToListInfo;
 
+	/** Computed from exemplars on demand by {@link #getStyleSketch} */
+	protected StyleSketch styleSketch;
+
+	/** {@link #ruleToPairsBag} keyed by {@link Trainer#rulealt} with each
+	 *  rule's pairs as (left type, right type) in a flat array; computed
+	 *  on demand by {@link #getPairTable} from pairsForPairTable.
+	 */
+	protected Map<Integer, int[]> pairTable;
+	protected Map<RuleAltKey, List<Pair<Integer, Integer>>> pairsForPairTable;
+
 	public Corpus(String rootDir, LangDescriptor language) throws Exception {
 		this.rootDir = rootDir;
 		this.language = language;
@@ -78,27 +108,118 @@ public class Corpus {
 	public void train() throws Exception { train(true); }
 
 	public void train(boolean shuffleFeatureVectors) throws Exception {
-		collectTokenPairsAndSplitListInfo();
+		ExecutorService pool = null;
+		if ( numTrainingThreads>1 ) {
+			pool = Executors.newFixedThreadPool(numTrainingThreads);
+		}
+		try {
+			collectTokenPairsAndSplitListInfo(pool);
 
-		trainOnSampleDocs();
+			// barrier: features depend on merged token pairs from all docs
+			trainOnSampleDocs(pool);
+		}
+		finally {
+			if ( pool!=null ) pool.shutdown();
+		}
 
 		if ( shuffleFeatureVectors ) randomShuffleInPlace();
 
 		buildTokenContextIndex();
 	}
 
+	/** Train on files one at a time without keeping documents around, so
+	 *  memory depends on the number of exemplars we keep rather than the
+	 *  size of the corpus. We read every file twice: once to collect
+	 *  token pairs and list stats from all documents, then again to
+	 *  compute feature vectors, offering them to a sampler that keeps at
+	 *  most maxExemplars. Exemplars refer to placeholder documents with
+	 *  just a file name, like those of a model file.
+	 *
+	 *  With maxExemplars >= the number of exemplars, this gives the same
+	 *  exemplars as {@link #train} on all files.
+	 */
+	public static Corpus trainStreaming(List<String> fileNames, LangDescriptor language, int maxExemplars)
+		throws Exception
+	{
+		Random random = new Random(FEATURE_VECTOR_RANDOM_SEED);
+		return trainStreaming(fileNames, language, new StratifiedExemplarSampler(maxExemplars, random));
+	}
+
+	public static Corpus trainStreaming(List<String> fileNames, LangDescriptor language,
+	                                    StratifiedExemplarSampler sampler)
+		throws Exception
+	{
+		Corpus corpus = new Corpus(new ArrayList<>(), language);
+		Vocabulary vocab = getLexer(language.lexerClass, null).getVocabulary();
+		String[] ruleNames = getParser(language.parserClass, null).getRuleNames();
+		CollectTokenPairs partialPairs = new CollectTokenPairs(vocab, ruleNames, true);
+		CollectSiblingLists collectSiblingLists = new CollectSiblingLists();
+		for (String fileName : fileNames) {
+			InputDocument doc = Tool.parse(fileName, language);
+			if ( showFileNames ) System.out.println(doc);
+			collectTokenPairsAndSplitListInfo(doc, partialPairs, collectSiblingLists);
+			collectSiblingLists.tokenToListInfo.clear(); // don't hold on to this doc's tokens
+		}
+		CollectTokenPairs collectTokenPairs = new CollectTokenPairs(vocab, ruleNames);
+		collectTokenPairs.merge(partialPairs); // same pairs as collectTokenPairsAndSplitListInfo
+		corpus.ruleToPairsBag = collectTokenPairs.getDependencies();
+		corpus.rootAndChildListStats = collectSiblingLists.getListStats();
+		corpus.rootAndSplitChildListStats = collectSiblingLists.getSplitListStats();
+
+		for (String fileName : fileNames) {
+			InputDocument doc = Tool.parse(fileName, language);
+			// list membership of tokens comes from this doc alone
+			CollectSiblingLists docLists = new CollectSiblingLists();
+			docLists.setDocument(doc);
+			doc.getFlatTree().walk(docLists);
+			corpus.tokenToListInfo = docLists.getTokenToListInfo();
+			InputDocument placeholder = new InputDocument(fileName, "", language);
+			// offer exemplars as we compute them; the sampler copies only those it keeps
+			Trainer trainer = new Trainer(corpus, doc, language.indentSize) {
+				@Override
+				protected void addExemplar(int[] features, int injectNL_WS, int aligned) {
+					sampler.offer(placeholder, features, injectNL_WS, aligned);
+				}
+			};
+			trainer.computeFeatureVectors();
+		}
+		corpus.tokenToListInfo = new HashMap<>();
+
+		corpus.addExemplars(sampler.getSample());
+		corpus.randomShuffleInPlace();
+		corpus.buildTokenContextIndex();
+		return corpus;
+	}
+
+	public void collectTokenPairsAndSplitListInfo() throws Exception {
+		collectTokenPairsAndSplitListInfo(null);
+	}
+
 	/** Walk all documents to compute matching token dependencies (we need this for feature computation)
-	 *  While we're at it, find sibling lists.
+	 *  While we're at it, find sibling lists. Each partition of the documents is
+	 *  walked into private collectors, which we merge in document order.
+	 *  If pool is null, do everything in this thread.
 	 */
-	public void collectTokenPairsAndSplitListInfo() throws NoSuchMethodException, InstantiationException, IllegalAccessException, java.lang.reflect.InvocationTargetException {
+	public void collectTokenPairsAndSplitListInfo(ExecutorService pool) throws Exception {
 		Vocabulary vocab = getLexer(language.lexerClass, null).getVocabulary();
 		String[] ruleNames = getParser(language.parserClass, null).getRuleNames();
+		List<Callable<Pair<CollectTokenPairs,CollectSiblingLists>>> jobs = new ArrayList<>();
+		for (List<InputDocument> partition : partitionDocuments(pool)) {
+			jobs.add(() -> {
+				CollectTokenPairs collectTokenPairs = new CollectTokenPairs(vocab, ruleNames, true);
+				CollectSiblingLists collectSiblingLists = new CollectSiblingLists();
+				for (InputDocument doc : partition) {
+					collectTokenPairsAndSplitListInfo(doc, collectTokenPairs, collectSiblingLists);
+				}
+				return new Pair<>(collectTokenPairs, collectSiblingLists);
+			});
+		}
+
 		CollectTokenPairs collectTokenPairs = new CollectTokenPairs(vocab, ruleNames);
 		CollectSiblingLists collectSiblingLists = new CollectSiblingLists();
-		for (InputDocument doc : documents) {
-			collectSiblingLists.setTokens(doc.tokens, doc.tree, doc.tokenToNodeMap);
-			ParseTreeWalker.DEFAULT.walk(collectTokenPairs, doc.tree);
-			ParseTreeWalker.DEFAULT.walk(collectSiblingLists, doc.tree);
+		for (Pair<CollectTokenPairs,CollectSiblingLists> partial : invokeInOrder(pool, jobs)) {
+			collectTokenPairs.merge(partial.a);
+			collectSiblingLists.merge(partial.b);
 		}
 		ruleToPairsBag = collectTokenPairs.getDependencies();
 		rootAndChildListStats = collectSiblingLists.getListStats();
@@ -139,20 +260,196 @@ public class Corpus {
 		}
 	}
 
+	/** Add doc's token pairs and sibling lists to the collectors in one
+	 *  walk of its flat tree, which computing features reuses.
+	 */
+	public static void collectTokenPairsAndSplitListInfo(InputDocument doc,
+	                                                     CollectTokenPairs collectTokenPairs,
+	                                                     CollectSiblingLists collectSiblingLists)
+	{
+		collectSiblingLists.setDocument(doc);
+		doc.getFlatTree().walk(collectTokenPairs, collectSiblingLists);
+	}
+
 	public void trainOnSampleDocs() throws Exception {
+		trainOnSampleDocs(null);
+	}
+
+	/** Compute feature vectors for all documents. Requires the token pairs
+	 *  and list info from {@link #collectTokenPairsAndSplitListInfo}.
+	 *  Each partition of the documents fills its own exemplar buffer;
+	 *  we append them in document order. If pool is null, do everything
+	 *  in this thread.
+	 */
+	public void trainOnSampleDocs(ExecutorService pool) throws Exception {
 		documentsPerExemplar = new ArrayList<>();
 		featureVectors = new ArrayList<>();
 		injectWhitespace = new ArrayList<>();
 		hpos = new ArrayList<>();
 
-		for (InputDocument doc : documents) {
-			if ( showFileNames ) System.out.println(doc);
-			// Parse document, add feature vectors to this corpus
-			Trainer trainer = new Trainer(this, doc, language.indentSize);
-			trainer.computeFeatureVectors();
+		List<Callable<ExemplarBuffer>> jobs = new ArrayList<>();
+		for (List<InputDocument> partition : partitionDocuments(pool)) {
+			jobs.add(() -> {
+				ExemplarBuffer exemplars = new ExemplarBuffer();
+				for (InputDocument doc : partition) {
+					if ( showFileNames ) System.out.println(doc);
+					// Parse document, add feature vectors to this corpus
+					Trainer trainer = new Trainer(this, exemplars, doc, language.indentSize);
+					trainer.computeFeatureVectors();
+				}
+				return exemplars;
+			});
+		}
+
+		for (ExemplarBuffer exemplars : invokeInOrder(pool, jobs)) {
+			addExemplars(exemplars);
+		}
+	}
+
+	/** Append exemplars computed elsewhere, such as by {@link ShardedTrainer} workers */
+	public void addExemplars(ExemplarBuffer exemplars) {
+		if ( featureVectors==null ) {
+			documentsPerExemplar = new ArrayList<>();
+			featureVectors = new ArrayList<>();
+			injectWhitespace = new ArrayList<>();
+			hpos = new ArrayList<>();
+		}
+		styleSketch = null;
+		documentsPerExemplar.addAll(exemplars.documentsPerExemplar);
+		featureVectors.addAll(exemplars.featureVectors);
+		injectWhitespace.addAll(exemplars.injectWhitespace);
+		hpos.addAll(exemplars.hpos);
+	}
+
+	/** Save everything needed to format with this corpus: token pairs,
+	 *  list stats, and exemplars in their current (shuffled) order.
+	 */
+	public void writeModel(String fileName) throws IOException {
+		try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName))) ) {
+			out.writeUTF(MODEL_FILE_FORMAT);
+			out.writeUTF(language.parserClass.getName());
+			writeAggregates(out);
+			ExemplarBuffer.write(out, documentsPerExemplar, featureVectors, injectWhitespace, hpos);
 		}
 	}
 
+	/** Read a model saved by {@link #writeModel}; the documents are not
+	 *  available, just their file names.
+	 */
+	public static Corpus readModel(String fileName, LangDescriptor language) throws IOException {
+		try ( DataInputStream in = openModel(fileName, language) ) {
+			Corpus corpus = new Corpus(new ArrayList<>(), language);
+			corpus.readAggregates(in);
+			corpus.addExemplars(ExemplarBuffer.read(in, language));
+			corpus.buildTokenContextIndex();
+			return corpus;
+		}
+	}
+
+	/** Read just token pairs and list stats from a model, leaving exemplars
+	 *  to {@link ExemplarShard}s.
+	 */
+	public static Corpus readModelAggregates(String fileName, LangDescriptor language) throws IOException {
+		try ( DataInputStream in = openModel(fileName, language) ) {
+			Corpus corpus = new Corpus(new ArrayList<>(), language);
+			corpus.readAggregates(in);
+			corpus.addExemplars(new ExemplarBuffer());
+			corpus.buildTokenContextIndex();
+			return corpus;
+		}
+	}
+
+	/** Open a model file and check its header; the aggregates come next */
+	public static DataInputStream openModel(String fileName, LangDescriptor language) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+		if ( !in.readUTF().equals(MODEL_FILE_FORMAT) ) {
+			in.close();
+			throw new IOException(fileName+" is not a "+MODEL_FILE_FORMAT+" file");
+		}
+		String parserName = in.readUTF();
+		if ( !parserName.equals(language.parserClass.getName()) ) {
+			in.close();
+			throw new IOException(fileName+" is a model for "+parserName+" not "+language.parserClass.getName());
+		}
+		return in;
+	}
+
+	/** Save the corpus-wide info computed from all documents: token pairs
+	 *  with repeated tokens stripped and (split) list stats.
+	 */
+	public void writeAggregates(DataOutputStream out) throws IOException {
+		out.writeInt(ruleToPairsBag.size());
+		for (RuleAltKey ruleAltKey : ruleToPairsBag.keySet()) {
+			List<Pair<Integer, Integer>> pairs = ruleToPairsBag.get(ruleAltKey);
+			out.writeUTF(ruleAltKey.ruleName);
+			out.writeInt(ruleAltKey.altNum);
+			out.writeInt(pairs.size());
+			for (Pair<Integer, Integer> p : pairs) {
+				out.writeInt(p.a);
+				out.writeInt(p.b);
+			}
+		}
+		CollectSiblingLists.writeStats(out, rootAndChildListStats);
+		CollectSiblingLists.writeStats(out, rootAndSplitChildListStats);
+	}
+
+	public void readAggregates(DataInputStream in) throws IOException {
+		ruleToPairsBag = new HashMap<>();
+		int n = in.readInt();
+		for (int i = 0; i<n; i++) {
+			RuleAltKey ruleAltKey = new RuleAltKey(in.readUTF(), in.readInt());
+			int npairs = in.readInt();
+			List<Pair<Integer, Integer>> pairs = new ArrayList<>(npairs);
+			for (int j = 0; j<npairs; j++) {
+				pairs.add(new Pair<>(in.readInt(), in.readInt()));
+			}
+			ruleToPairsBag.put(ruleAltKey, pairs);
+		}
+		rootAndChildListStats = CollectSiblingLists.readStats(in);
+		rootAndSplitChildListStats = CollectSiblingLists.readStats(in);
+	}
+
+	/** Split documents into one contiguous partition per training thread */
+	protected List<List<InputDocument>> partitionDocuments(ExecutorService pool) {
+		return partition(documents, pool!=null ? numTrainingThreads : 1);
+	}
+
+	/** Split elements into at most n contiguous, nonempty partitions of about the same size */
+	public static <T> List<List<T>> partition(List<T> elements, int n) {
+		n = Math.max(1, Math.min(n, elements.size()));
+		List<List<T>> partitions = new ArrayList<>();
+		for (int i = 0; i<n; i++) {
+			int from = (int)((long)elements.size()*i/n);
+			int to = (int)((long)elements.size()*(i+1)/n);
+			partitions.add(elements.subList(from, to));
+		}
+		return partitions;
+	}
+
+	/** Run jobs in pool, or in this thread if pool is null, and return their
+	 *  results in job order regardless of completion order.
+	 */
+	public static <T> List<T> invokeInOrder(ExecutorService pool, List<Callable<T>> jobs) throws Exception {
+		List<T> results = new ArrayList<>();
+		if ( pool==null ) {
+			for (Callable<T> job : jobs) {
+				results.add(job.call());
+			}
+			return results;
+		}
+		for (Future<T> f : pool.invokeAll(jobs)) {
+			try {
+				results.add(f.get());
+			}
+			catch (ExecutionException ee) {
+				Throwable cause = ee.getCause();
+				if ( cause instanceof Exception ) throw (Exception)cause;
+				throw ee;
+			}
+		}
+		return results;
+	}
+
 	/** Feature vectors in X are lumped together as they are read in each
 	 *  document. In kNN, this tends to find features from the same document
 	 *  rather than from across the corpus since we grab k neighbors.
@@ -190,17 +487,59 @@ public class Corpus {
 		}
 	}
 
+	/** Sketch of the formatting decisions this corpus makes, for picking
+	 *  the corpus whose style best matches some code; see {@link StyleDetector}.
+	 */
+	public synchronized StyleSketch getStyleSketch() {
+		if ( styleSketch==null ) {
+			styleSketch = StyleSketch.of(this);
+		}
+		return styleSketch;
+	}
+
+	/** Token pairs by rule and alt number without building a {@link RuleAltKey}
+	 *  per lookup; null if we have no pairs. ruleIndexes maps rule names to
+	 *  indexes, as from {@link org.antlr.v4.runtime.Parser#getRuleIndexMap}.
+	 */
+	public synchronized Map<Integer, int[]> getPairTable(Map<String, Integer> ruleIndexes) {
+		if ( ruleToPairsBag==null ) return null;
+		if ( pairTable==null || pairsForPairTable!=ruleToPairsBag ) { // rebuild if retrained or loaded
+			Map<Integer, int[]> table = new HashMap<>();
+			for (RuleAltKey ruleAltKey : ruleToPairsBag.keySet()) {
+				Integer ruleIndex = ruleIndexes.get(ruleAltKey.ruleName);
+				if ( ruleIndex==null ) continue;
+				List<Pair<Integer, Integer>> pairs = ruleToPairsBag.get(ruleAltKey);
+				int[] flat = new int[pairs.size()*2];
+				for (int i = 0; i<pairs.size(); i++) {
+					flat[2*i] = pairs.get(i).a;
+					flat[2*i+1] = pairs.get(i).b;
+				}
+				table.put(Trainer.rulealt(ruleIndex, ruleAltKey.altNum), flat);
+			}
+			pairTable = table;
+			pairsForPairTable = ruleToPairsBag;
+		}
+		return pairTable;
+	}
+
+	/** The (previous token's rule index, current token's rule index) key of
+	 *  {@link #curAndPrevTokenRuleIndexToExemplarIndexes}.
+	 */
+	public static Pair<Integer,Integer> getRuleContextKey(int[] features) {
+		int curTokenRuleIndex = features[Trainer.INDEX_PREV_EARLIEST_RIGHT_ANCESTOR];
+		int prevTokenRuleIndex = features[Trainer.INDEX_EARLIEST_LEFT_ANCESTOR];
+		int pr = Trainer.unrulealt(prevTokenRuleIndex)[0];
+		int cr = Trainer.unrulealt(curTokenRuleIndex)[0];
+		return new Pair<>(pr, cr);
+	}
+
 	public void buildTokenContextIndex() {
 		curAndPrevTokenRuleIndexToExemplarIndexes = new MultiMap<>();
 		wsFeaturesToExemplarIndexes = new MultiMap<>();
 		hposFeaturesToExemplarIndexes = new MultiMap<>();
 		for (int i = 0; i<featureVectors.size(); i++) {
 			int[] features = featureVectors.get(i);
-			int curTokenRuleIndex = features[Trainer.INDEX_PREV_EARLIEST_RIGHT_ANCESTOR];
-			int prevTokenRuleIndex = features[Trainer.INDEX_EARLIEST_LEFT_ANCESTOR];
-			int pr = Trainer.unrulealt(prevTokenRuleIndex)[0];
-			int cr = Trainer.unrulealt(curTokenRuleIndex)[0];
-			curAndPrevTokenRuleIndexToExemplarIndexes.map(new Pair<>(pr, cr), i);
+			curAndPrevTokenRuleIndexToExemplarIndexes.map(getRuleContextKey(features), i);
 			wsFeaturesToExemplarIndexes.map(new FeatureVectorAsObject(features,   Trainer.FEATURES_INJECT_WS), i);
 			hposFeaturesToExemplarIndexes.map(new FeatureVectorAsObject(features, Trainer.FEATURES_HPOS), i);
 		}
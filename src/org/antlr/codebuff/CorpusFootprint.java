@@ -0,0 +1,230 @@
+package org.antlr.codebuff;
+
+import org.antlr.codebuff.misc.LangDescriptor;
+import org.antlr.codebuff.misc.ObjectSizer;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.atn.ATNSimulator;
+import org.antlr.v4.runtime.atn.LexerATNSimulator;
+import org.antlr.v4.runtime.atn.ParserATNSimulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Where the heap goes in a trained corpus. We walk the corpus part by
+ *  part with an {@link ObjectSizer}; an object shared by several parts
+ *  counts toward the first one that reaches it. Documents go first so
+ *  tokens count as part of their token streams, not the list info that
+ *  refers to them.
+ *
+ *  To report on trained languages or saved models:
+ *
+ *      java org.antlr.codebuff.CorpusFootprint [-heap] lang-name[=model-file]...
+ *
+ *  -heap also measures how much heap each corpus takes according to
+ *  the JVM, to check our accounting.
+ */
+public class CorpusFootprint {
+	/** Parts that take at least this fraction of the total are flagged */
+	public static final double LARGE_PART = 0.10;
+
+	public static final String DOC_TEXT = "document text";
+	public static final String TOKEN_STREAMS = "token streams";
+	public static final String PARSE_TREES = "parse trees";
+	public static final String PARSERS = "parsers and DFA caches";
+	public static final String FEATURE_VECTORS = "exemplar feature vectors";
+	public static final String EXEMPLAR_DOCS = "exemplar document refs";
+	public static final String WS_TARGETS = "ws targets";
+	public static final String HPOS_TARGETS = "hpos targets";
+	public static final String RULE_INDEX = "index cur/prev rule";
+	public static final String WS_INDEX = "index ws features";
+	public static final String HPOS_INDEX = "index hpos features";
+	public static final String LIST_INFO = "tokenToListInfo";
+	public static final String LIST_STATS = "list stats";
+	public static final String TOKEN_PAIRS = "token pairs";
+	public static final String STYLE_SKETCH = "style sketch";
+	public static final String OTHER = "other";
+
+	public final String language;
+	/** Bytes per part in the order we measured them */
+	public final Map<String, Long> parts = new LinkedHashMap<>();
+	public int numDocuments;
+	public int numExemplars;
+	public long numObjects;
+
+	public CorpusFootprint(String language) {
+		this.language = language;
+	}
+
+	public static CorpusFootprint of(Corpus corpus) {
+		return of(corpus, true);
+	}
+
+	/** If !withGrammarCaches, leave out what the lexers and parsers of
+	 *  corpus' documents share with every other of their grammar: the ATN
+	 *  and the static DFA and context caches. Dropping corpus wouldn't free
+	 *  them, and other threads may be filling them as we walk.
+	 */
+	public static CorpusFootprint of(Corpus corpus, boolean withGrammarCaches) {
+		CorpusFootprint footprint = new CorpusFootprint(corpus.language.name);
+		ObjectSizer sizer = new ObjectSizer();
+		sizer.ignore(corpus.language); // shared by all corpora of a language
+		sizer.ignore(Trainer.FEATURES_INJECT_WS);
+		sizer.ignore(Trainer.FEATURES_HPOS);
+
+		Set<InputDocument> docs = Collections.newSetFromMap(new IdentityHashMap<>());
+		if ( corpus.documents!=null ) docs.addAll(corpus.documents);
+		if ( corpus.documentsPerExemplar!=null ) docs.addAll(corpus.documentsPerExemplar);
+		footprint.numDocuments = docs.size();
+		if ( !withGrammarCaches ) {
+			for (InputDocument doc : docs) {
+				ignoreGrammarCaches(sizer, doc.parser);
+				TokenSource lexer = doc.tokens!=null ? doc.tokens.getTokenSource() : null;
+				if ( lexer instanceof Recognizer ) ignoreGrammarCaches(sizer, (Recognizer<?,?>)lexer);
+			}
+		}
+		long text = sizer.shellSizeOf(corpus.documents);
+		long tokens = 0, trees = 0, parsers = 0;
+		for (InputDocument doc : docs) {
+			text += sizer.shellSizeOf(doc)+sizer.sizeOf(doc.fileName)+sizer.sizeOf(doc.content)+sizer.sizeOf(doc.lines);
+			tokens += sizer.sizeOf(doc.tokens);
+			trees += sizer.sizeOf(doc.tree)+sizer.sizeOf(doc.flatTree);
+			parsers += sizer.sizeOf(doc.parser);
+		}
+		footprint.parts.put(DOC_TEXT, text);
+		footprint.parts.put(TOKEN_STREAMS, tokens);
+		footprint.parts.put(PARSE_TREES, trees);
+		footprint.parts.put(PARSERS, parsers);
+
+		footprint.numExemplars = corpus.featureVectors!=null ? corpus.featureVectors.size() : 0;
+		footprint.parts.put(FEATURE_VECTORS, sizer.sizeOf(corpus.featureVectors));
+		footprint.parts.put(EXEMPLAR_DOCS, sizer.shellSizeOf(corpus.documentsPerExemplar));
+		footprint.parts.put(WS_TARGETS, sizer.sizeOf(corpus.injectWhitespace));
+		footprint.parts.put(HPOS_TARGETS, sizer.sizeOf(corpus.hpos));
+		footprint.parts.put(RULE_INDEX, sizer.sizeOf(corpus.curAndPrevTokenRuleIndexToExemplarIndexes));
+		footprint.parts.put(WS_INDEX, sizer.sizeOf(corpus.wsFeaturesToExemplarIndexes));
+		footprint.parts.put(HPOS_INDEX, sizer.sizeOf(corpus.hposFeaturesToExemplarIndexes));
+		footprint.parts.put(LIST_INFO, sizer.sizeOf(corpus.tokenToListInfo));
+		footprint.parts.put(LIST_STATS, sizer.sizeOf(corpus.rootAndChildListStats)+
+		                                sizer.sizeOf(corpus.rootAndSplitChildListStats));
+		footprint.parts.put(TOKEN_PAIRS, sizer.sizeOf(corpus.ruleToPairsBag));
+		footprint.parts.put(STYLE_SKETCH, sizer.sizeOf(corpus.styleSketch));
+		footprint.parts.put(OTHER, sizer.sizeOf(corpus));
+		footprint.numObjects = sizer.numObjects;
+		return footprint;
+	}
+
+	protected static void ignoreGrammarCaches(ObjectSizer sizer, Recognizer<?,?> recognizer) {
+		ATNSimulator interp = recognizer!=null ? recognizer.getInterpreter() : null;
+		if ( interp==null ) return;
+		sizer.ignore(interp.atn);
+		sizer.ignore(interp.getSharedContextCache());
+		if ( interp instanceof ParserATNSimulator ) sizer.ignore(((ParserATNSimulator)interp).decisionToDFA);
+		if ( interp instanceof LexerATNSimulator ) sizer.ignore(((LexerATNSimulator)interp).decisionToDFA);
+	}
+
+	public long total() {
+		long total = 0;
+		for (long bytes : parts.values()) {
+			total += bytes;
+		}
+		return total;
+	}
+
+	/** Parts from largest to smallest */
+	public List<String> getLargestParts() {
+		List<String> names = new ArrayList<>(parts.keySet());
+		names.sort((a, b) -> Long.compare(parts.get(b), parts.get(a)));
+		return names;
+	}
+
+	public boolean isLarge(String part) {
+		long total = total();
+		return total>0 && parts.get(part)>=LARGE_PART*total;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		long total = total();
+		buf.append(String.format("%s: %d documents, %d exemplars, %d objects, %s\n",
+		                         language, numDocuments, numExemplars, numObjects, mb(total)));
+		for (Map.Entry<String, Long> part : parts.entrySet()) {
+			buf.append(String.format("  %-26s %10s %5.1f%%%s\n",
+			                         part.getKey(), mb(part.getValue()),
+			                         total>0 ? 100.0*part.getValue()/total : 0.0,
+			                         isLarge(part.getKey()) ? "  <-- large" : ""));
+		}
+		return buf.toString();
+	}
+
+	public static String mb(long bytes) {
+		return String.format("%.2fMB", bytes/1024.0/1024.0);
+	}
+
+	public static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i<3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory()-runtime.freeMemory();
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean measureHeap = false;
+		int i = 0;
+		if ( i<args.length && args[i].equals("-heap") ) {
+			measureHeap = true;
+			i++;
+		}
+		if ( i==args.length ) {
+			System.err.println("org.antlr.codebuff.CorpusFootprint [-heap] lang-name[=model-file]...");
+			System.exit(1);
+		}
+
+		List<CorpusFootprint> footprints = new ArrayList<>();
+		for (; i<args.length; i++) {
+			String[] candidate = args[i].split("=", 2);
+			LangDescriptor language = ShardedTrainer.getLanguage(candidate[0]);
+			if ( language==null ) {
+				System.err.println("Language "+candidate[0]+" unknown");
+				System.exit(1);
+			}
+			long before = measureHeap ? usedHeap() : 0;
+			Corpus corpus;
+			if ( candidate.length>1 ) {
+				corpus = Corpus.readModel(candidate[1], language);
+			}
+			else {
+				corpus = new Corpus(language.corpusDir, language);
+				corpus.train();
+			}
+			long after = measureHeap ? usedHeap() : 0;
+			CorpusFootprint footprint = of(corpus);
+			footprints.add(footprint);
+			System.out.print(footprint);
+			if ( measureHeap ) {
+				System.out.printf("  JVM heap grew by %s; accounted for %.1f%%\n",
+				                  mb(after-before), 100.0*footprint.total()/(after-before));
+			}
+			corpus = null; // let it go before measuring the next one
+		}
+
+		System.out.println();
+		System.out.printf("%-14s %10s  %s\n", "language", "total", "largest parts");
+		for (CorpusFootprint footprint : footprints) {
+			StringBuilder largest = new StringBuilder();
+			for (String part : footprint.getLargestParts()) {
+				if ( !footprint.isLarge(part) ) break;
+				if ( largest.length()>0 ) largest.append(", ");
+				largest.append(part).append(' ').append(mb(footprint.parts.get(part)));
+			}
+			System.out.printf("%-14s %10s  %s\n", footprint.language, mb(footprint.total()), largest);
+		}
+	}
+}
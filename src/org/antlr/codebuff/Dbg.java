@@ -96,11 +96,11 @@ public class Dbg {
 //			System.out.println(output);
 			System.out.printf("formatting time %ds\n", (stop-start)/1_000_000);
 			System.out.printf("classify calls %d, hits %d rate %f\n",
-			                  kNNClassifier.nClassifyCalls, kNNClassifier.nClassifyCacheHits,
-			                  kNNClassifier.nClassifyCacheHits/(float) kNNClassifier.nClassifyCalls);
+			                  kNNClassifier.nClassifyCalls.sum(), kNNClassifier.nClassifyCacheHits.sum(),
+			                  kNNClassifier.nClassifyCacheHits.sum()/(float) kNNClassifier.nClassifyCalls.sum());
 			System.out.printf("kNN calls %d, hits %d rate %f\n",
-			                  kNNClassifier.nNNCalls, kNNClassifier.nNNCacheHits,
-			                  kNNClassifier.nNNCacheHits/(float) kNNClassifier.nNNCalls);
+			                  kNNClassifier.nNNCalls.sum(), kNNClassifier.nNNCacheHits.sum(),
+			                  kNNClassifier.nNNCacheHits.sum()/(float) kNNClassifier.nNNCalls.sum());
 		}
 	}
 
@@ -0,0 +1,113 @@
+package org.antlr.codebuff;
+
+import org.antlr.codebuff.misc.LangDescriptor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Exemplars (feature vector plus ws and hpos categories) computed from a
+ *  subset of the training documents. Parallel training fills one of these
+ *  per worker and {@link Corpus} appends them in document order so the
+ *  resulting corpus is the same as if trained sequentially.
+ */
+public class ExemplarBuffer {
+	public final List<InputDocument> documentsPerExemplar = new ArrayList<>();
+	public final List<int[]> featureVectors = new ArrayList<>();
+	public final List<Integer> injectWhitespace = new ArrayList<>();
+	public final List<Integer> hpos = new ArrayList<>();
+
+	/** Index of our first exemplar in the list of all exemplars, if we hold a slice */
+	public int firstExemplarIndex = 0;
+
+	public void addExemplar(InputDocument doc, int[] features, int ws, int hpos) {
+		documentsPerExemplar.add(doc);
+		featureVectors.add(features);
+		injectWhitespace.add(ws);
+		this.hpos.add(hpos);
+	}
+
+	public int size() {
+		return featureVectors.size();
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		write(out, documentsPerExemplar, featureVectors, injectWhitespace, hpos);
+	}
+
+	/** Save exemplars; documents are saved as file names only */
+	public static void write(DataOutputStream out,
+	                         List<InputDocument> documentsPerExemplar,
+	                         List<int[]> featureVectors,
+	                         List<Integer> injectWhitespace,
+	                         List<Integer> hpos)
+		throws IOException
+	{
+		Map<String,Integer> fileIndexes = new HashMap<>();
+		List<String> fileNames = new ArrayList<>();
+		for (InputDocument doc : documentsPerExemplar) {
+			if ( !fileIndexes.containsKey(doc.fileName) ) {
+				fileIndexes.put(doc.fileName, fileNames.size());
+				fileNames.add(doc.fileName);
+			}
+		}
+		out.writeInt(fileNames.size());
+		for (String fileName : fileNames) {
+			out.writeUTF(fileName);
+		}
+		out.writeInt(featureVectors.size());
+		for (int i = 0; i<featureVectors.size(); i++) {
+			int[] features = featureVectors.get(i);
+			out.writeInt(fileIndexes.get(documentsPerExemplar.get(i).fileName));
+			out.writeInt(features.length);
+			for (int f : features) {
+				out.writeInt(f);
+			}
+			out.writeInt(injectWhitespace.get(i));
+			out.writeInt(hpos.get(i));
+		}
+	}
+
+	/** Read exemplars saved by {@link #write}. We don't have the documents,
+	 *  just their names, so each exemplar points at an unparsed document
+	 *  with file name and empty content.
+	 */
+	public static ExemplarBuffer read(DataInputStream in, LangDescriptor language) throws IOException {
+		return read(in, language, 0, 1);
+	}
+
+	/** Read exemplars saved by {@link #write} but keep only slice number
+	 *  shard of numShards contiguous slices; see {@link Corpus#partition}.
+	 */
+	public static ExemplarBuffer read(DataInputStream in, LangDescriptor language, int shard, int numShards)
+		throws IOException
+	{
+		ExemplarBuffer exemplars = new ExemplarBuffer();
+		int n = in.readInt();
+		InputDocument[] docs = new InputDocument[n];
+		for (int i = 0; i<n; i++) {
+			docs[i] = new InputDocument(in.readUTF(), "", language);
+		}
+		n = in.readInt();
+		int from = (int)((long)n*shard/numShards);
+		int to = (int)((long)n*(shard+1)/numShards);
+		exemplars.firstExemplarIndex = from;
+		for (int i = 0; i<to; i++) {
+			InputDocument doc = docs[in.readInt()];
+			int[] features = new int[in.readInt()];
+			for (int j = 0; j<features.length; j++) {
+				features[j] = in.readInt();
+			}
+			int ws = in.readInt();
+			int hpos = in.readInt();
+			if ( i>=from ) {
+				exemplars.addExemplar(doc, features, ws, hpos);
+			}
+		}
+		return exemplars;
+	}
+}
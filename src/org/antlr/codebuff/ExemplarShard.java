@@ -0,0 +1,266 @@
+package org.antlr.codebuff;
+
+import org.antlr.codebuff.misc.LangDescriptor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.antlr.codebuff.Trainer.FEATURES_HPOS;
+import static org.antlr.codebuff.Trainer.FEATURES_INJECT_WS;
+
+/** A contiguous slice of a corpus' exemplars with its own context indexes.
+ *  A {@link ShardedKNNClassifier} asks every shard for its nearest
+ *  neighbors and merges them, getting the same neighbors as a
+ *  {@link kNNClassifier} over all exemplars. The coordinator decides
+ *  which exemplars to search (exact feature matches, same rule context,
+ *  or all) using candidate counts summed over all shards, just like
+ *  {@link kNNClassifier#getCandidateExemplars} does with the full indexes.
+ *
+ *  Run a shard in its own JVM with:
+ *
+ *      java org.antlr.codebuff.ExemplarShard -lang java_guava -model guava.model \
+ *          -shard 0 -shards 4 [-port 0]
+ *
+ *  It listens on localhost only, prints "listening on port N", and
+ *  serves {@link SocketShardTransport}s until killed.
+ */
+public class ExemplarShard {
+	public static final byte OP_COUNT = 1;
+	public static final byte OP_NEAREST = 2;
+
+	public final Corpus corpus;
+	/** Index of our first exemplar in the list of all exemplars */
+	public final int firstExemplarIndex;
+
+	protected final kNNClassifier wsClassifier;
+	protected final kNNClassifier hposClassifier;
+
+	public ExemplarShard(Corpus corpus, int firstExemplarIndex) {
+		this.corpus = corpus;
+		this.firstExemplarIndex = firstExemplarIndex;
+		wsClassifier = new kNNClassifier(corpus, FEATURES_INJECT_WS, corpus.injectWhitespace);
+		hposClassifier = new kNNClassifier(corpus, FEATURES_HPOS, corpus.hpos);
+	}
+
+	/** Load slice number shard of numShards from a model file */
+	public static ExemplarShard load(String modelFileName, LangDescriptor language, int shard, int numShards)
+		throws IOException
+	{
+		try ( DataInputStream in = Corpus.openModel(modelFileName, language) ) {
+			Corpus corpus = new Corpus(new ArrayList<>(), language);
+			corpus.readAggregates(in);
+			ExemplarBuffer exemplars = ExemplarBuffer.read(in, language, shard, numShards);
+			corpus.addExemplars(exemplars);
+			corpus.buildTokenContextIndex();
+			return new ExemplarShard(corpus, exemplars.firstExemplarIndex);
+		}
+	}
+
+	/** Split a trained corpus into numShards shards in this JVM; handy for testing */
+	public static List<ExemplarShard> split(Corpus corpus, int numShards) {
+		List<ExemplarShard> shards = new ArrayList<>();
+		int n = corpus.featureVectors.size();
+		for (int i = 0; i<numShards; i++) {
+			int from = (int)((long)n*i/numShards);
+			int to = (int)((long)n*(i+1)/numShards);
+			Corpus slice = new Corpus(new ArrayList<>(), corpus.language);
+			slice.ruleToPairsBag = corpus.ruleToPairsBag;
+			slice.rootAndChildListStats = corpus.rootAndChildListStats;
+			slice.rootAndSplitChildListStats = corpus.rootAndSplitChildListStats;
+			ExemplarBuffer exemplars = new ExemplarBuffer();
+			for (int j = from; j<to; j++) {
+				exemplars.addExemplar(corpus.documentsPerExemplar.get(j), corpus.featureVectors.get(j),
+				                      corpus.injectWhitespace.get(j), corpus.hpos.get(j));
+			}
+			slice.addExemplars(exemplars);
+			slice.buildTokenContextIndex();
+			shards.add(new ExemplarShard(slice, from));
+		}
+		return shards;
+	}
+
+	public kNNClassifier getClassifier(FeatureMetaData[] FEATURES) {
+		if ( FEATURES==FEATURES_INJECT_WS ) return wsClassifier;
+		if ( FEATURES==FEATURES_HPOS ) return hposClassifier;
+		throw new IllegalArgumentException("shards only support the standard ws and hpos feature sets");
+	}
+
+	public List<Integer> getCategories(FeatureMetaData[] FEATURES) {
+		return FEATURES==FEATURES_INJECT_WS ? corpus.injectWhitespace : corpus.hpos;
+	}
+
+	public int[] countCandidates(FeatureMetaData[] FEATURES, int[] unknown) {
+		kNNClassifier classifier = getClassifier(FEATURES);
+		List<Integer> exact = classifier.getExactMatches(unknown);
+		List<Integer> context = classifier.getContextMatches(unknown);
+		return new int[] {exact!=null ? exact.size() : 0, context!=null ? context.size() : 0};
+	}
+
+	public ShardNeighbor[] nearest(FeatureMetaData[] FEATURES, int[] unknown,
+	                               int k, double distanceThreshold, int mode)
+	{
+		kNNClassifier classifier = getClassifier(FEATURES);
+		List<Integer> candidates = null; // null means all
+		if ( mode==kNNClassifier.MODE_EXACT ) {
+			candidates = classifier.getExactMatches(unknown);
+		}
+		else if ( mode==kNNClassifier.MODE_CONTEXT ) {
+			candidates = classifier.getContextMatches(unknown);
+		}
+		if ( mode!=kNNClassifier.MODE_ALL && candidates==null ) {
+			candidates = Collections.emptyList(); // other shards have them but we don't
+		}
+		Neighbor[] distances = classifier.distances(unknown, k, distanceThreshold, candidates);
+		List<Integer> Y = getCategories(FEATURES);
+		ShardNeighbor[] kNN = new ShardNeighbor[distances.length];
+		for (int i = 0; i<distances.length; i++) {
+			int j = distances[i].corpusVectorIndex;
+			kNN[i] = new ShardNeighbor(distances[i].distance, firstExemplarIndex+j, Y.get(j));
+		}
+		return ShardedKNNClassifier.nearest(kNN, k);
+	}
+
+	public static int getFeatureSetID(FeatureMetaData[] FEATURES) {
+		if ( FEATURES==FEATURES_INJECT_WS ) return 0;
+		if ( FEATURES==FEATURES_HPOS ) return 1;
+		throw new IllegalArgumentException("shards only support the standard ws and hpos feature sets");
+	}
+
+	public static FeatureMetaData[] getFeatureSet(int id) {
+		return id==0 ? FEATURES_INJECT_WS : FEATURES_HPOS;
+	}
+
+	/** Answer requests from {@link SocketShardTransport}s, one thread per connection */
+	public void serve(ServerSocket serverSocket) throws IOException {
+		while ( true ) {
+			Socket socket = serverSocket.accept();
+			Thread t = new Thread(() -> {
+				try {
+					serve(socket);
+				}
+				catch (IOException ioe) {
+					ioe.printStackTrace(System.err);
+				}
+			});
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	public void serve(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+		try ( DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())) )
+		{
+			while ( true ) {
+				byte op;
+				try {
+					op = in.readByte();
+				}
+				catch (EOFException eof) {
+					return; // client closed connection
+				}
+				FeatureMetaData[] FEATURES = getFeatureSet(in.readInt());
+				int n = in.readInt();
+				if ( op==OP_COUNT ) {
+					for (int i = 0; i<n; i++) {
+						int[] counts = countCandidates(FEATURES, readVector(in));
+						out.writeInt(counts[0]);
+						out.writeInt(counts[1]);
+					}
+				}
+				else if ( op==OP_NEAREST ) {
+					int k = in.readInt();
+					double distanceThreshold = in.readDouble();
+					for (int i = 0; i<n; i++) {
+						int mode = in.readInt();
+						ShardNeighbor[] kNN = nearest(FEATURES, readVector(in), k, distanceThreshold, mode);
+						out.writeInt(kNN.length);
+						for (ShardNeighbor neighbor : kNN) {
+							out.writeDouble(neighbor.distance);
+							out.writeInt(neighbor.corpusVectorIndex);
+							out.writeInt(neighbor.category);
+						}
+					}
+				}
+				else {
+					throw new IOException("bad shard request "+op);
+				}
+				out.flush();
+			}
+		}
+	}
+
+	public static void writeVector(DataOutputStream out, int[] features) throws IOException {
+		out.writeInt(features.length);
+		for (int f : features) {
+			out.writeInt(f);
+		}
+	}
+
+	public static int[] readVector(DataInputStream in) throws IOException {
+		int[] features = new int[in.readInt()];
+		for (int i = 0; i<features.length; i++) {
+			features[i] = in.readInt();
+		}
+		return features;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String langName = null;
+		String modelFileName = null;
+		int shard = 0;
+		int numShards = 1;
+		int port = 0;
+		int i = 0;
+		while ( i<args.length && args[i].startsWith("-") ) {
+			switch ( args[i] ) {
+				case "-lang" :
+					i++;
+					langName = args[i++];
+					break;
+				case "-model" :
+					i++;
+					modelFileName = args[i++];
+					break;
+				case "-shard" :
+					i++;
+					shard = Integer.parseInt(args[i++]);
+					break;
+				case "-shards" :
+					i++;
+					numShards = Integer.parseInt(args[i++]);
+					break;
+				case "-port" :
+					i++;
+					port = Integer.parseInt(args[i++]);
+					break;
+				default :
+					System.err.println("Unknown option "+args[i]);
+					System.exit(1);
+			}
+		}
+		LangDescriptor language = ShardedTrainer.getLanguage(langName);
+		if ( language==null || modelFileName==null ) {
+			System.err.println("org.antlr.codebuff.ExemplarShard -lang lang-name -model model-file \\\n"+
+			                   "   [-shard i] [-shards n] [-port port]");
+			System.exit(1);
+		}
+		ExemplarShard exemplarShard = load(modelFileName, language, shard, numShards);
+		try ( ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress()) ) {
+			System.out.println("listening on port "+serverSocket.getLocalPort());
+			System.out.flush();
+			exemplarShard.serve(serverSocket);
+		}
+	}
+}
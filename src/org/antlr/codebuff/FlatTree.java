@@ -0,0 +1,234 @@
+package org.antlr.codebuff;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/** A parse tree flattened into int arrays in one preorder pass so that
+ *  computing features is array lookups rather than walks up the tree and
+ *  scans of sibling lists. Nodes are numbered in preorder (the root is 0)
+ *  and node arrays are indexed by that number. Token arrays are indexed
+ *  by token index in the document's token stream; tokens without a
+ *  (non-error) leaf in the tree have {@link #NO_NODE}.
+ *
+ *  The tree must not change after we flatten it. Formatting only alters
+ *  tokens' text and positions, not the tree, so that is fine.
+ */
+public class FlatTree {
+	public static final int NO_NODE = -1;
+
+	public int size;
+	public ParseTree[] nodes;
+	public int[] parent;
+	/** {@link Trainer#rulealt} of rule nodes; -1 for leaves */
+	public int[] rulealt;
+	public int[] childIndex;
+	/** {@link Trainer#getChildIndexOrListMembership} of each node */
+	public int[] childIndexOrListMembership;
+	/** Token index of start/stop token; -1 if none */
+	public int[] startToken;
+	public int[] stopToken;
+
+	public final int[] tokenToNode;
+	/** {@link Trainer#earliestAncestorStartingWithToken} of each token's leaf */
+	public final int[] earliestLeftAncestor;
+	/** {@link Trainer#earliestAncestorEndingWithToken} of each token's leaf */
+	public final int[] earliestRightAncestor;
+	/** Total text length of the leaves for tokens before each token index,
+	 *  so the text length of a token span is a subtraction. Has an extra
+	 *  entry at the end.
+	 */
+	public final int[] textOffset;
+	/** Did error recovery add leaves for missing tokens, which aren't in
+	 *  the token stream and so have no offset?
+	 */
+	public boolean hasMissingTokens;
+
+	/** Topmost node of the chain of ancestors sharing each node's start
+	 *  (stop) token; only needed while flattening.
+	 */
+	protected int[] leftmost;
+	protected int[] rightmost;
+
+	public FlatTree(ParserRuleContext root, int numTokens) {
+		tokenToNode = new int[numTokens];
+		earliestLeftAncestor = new int[numTokens];
+		earliestRightAncestor = new int[numTokens];
+		Arrays.fill(tokenToNode, NO_NODE);
+		Arrays.fill(earliestLeftAncestor, NO_NODE);
+		Arrays.fill(earliestRightAncestor, NO_NODE);
+		textOffset = new int[numTokens+1];
+		allocate(Math.max(16, numTokens*2));
+		add(root, NO_NODE, -1, -1);
+		for (int i = 1; i<=numTokens; i++) {
+			textOffset[i] += textOffset[i-1];
+		}
+		leftmost = null;
+		rightmost = null;
+	}
+
+	protected void add(ParseTree t, int p, int i, int listMembership) {
+		if ( size==nodes.length ) allocate(size*2);
+		int n = size++;
+		nodes[n] = t;
+		parent[n] = p;
+		childIndex[n] = i;
+		childIndexOrListMembership[n] = listMembership;
+		if ( t instanceof TerminalNode ) {
+			Token token = ((TerminalNode)t).getSymbol();
+			int ti = token.getTokenIndex();
+			rulealt[n] = -1;
+			startToken[n] = ti;
+			stopToken[n] = ti;
+			if ( ti>=0 && ti<tokenToNode.length ) {
+				textOffset[ti+1] += t.getText().length();
+			}
+			else {
+				hasMissingTokens = true;
+			}
+			if ( !(t instanceof ErrorNode) && ti>=0 && ti<tokenToNode.length ) {
+				tokenToNode[ti] = n;
+				earliestLeftAncestor[ti] = startToken[p]==ti ? leftmost[p] : p;
+				earliestRightAncestor[ti] = stopToken[p]==ti ? rightmost[p] : p;
+			}
+			return;
+		}
+
+		ParserRuleContext r = (ParserRuleContext)t;
+		rulealt[n] = Trainer.rulealt(r);
+		startToken[n] = r.getStart()!=null ? r.getStart().getTokenIndex() : -1;
+		stopToken[n] = r.getStop()!=null ? r.getStop().getTokenIndex() : -1;
+		leftmost[n] = p!=NO_NODE && startToken[p]==startToken[n] ? leftmost[p] : n;
+		rightmost[n] = p!=NO_NODE && stopToken[p]==stopToken[n] ? rightmost[p] : n;
+
+		// a child repeats an earlier sibling if an earlier rule child is an
+		// instance of its class or an earlier token child has its token type
+		Set<Class<?>> ruleTypesSeen = null;
+		Set<Integer> tokenTypesSeen = null;
+		for (int c = 0; c<r.getChildCount(); c++) {
+			ParseTree child = r.getChild(c);
+			boolean repeated;
+			if ( child instanceof ParserRuleContext ) {
+				if ( ruleTypesSeen==null ) ruleTypesSeen = new HashSet<>();
+				repeated = ruleTypesSeen.contains(child.getClass());
+				for (Class<?> k = child.getClass(); k!=Object.class; k = k.getSuperclass()) {
+					ruleTypesSeen.add(k);
+				}
+			}
+			else {
+				if ( tokenTypesSeen==null ) tokenTypesSeen = new HashSet<>();
+				repeated = !tokenTypesSeen.add(((TerminalNode)child).getSymbol().getType());
+			}
+			add(child, n, c, repeated ? Trainer.CHILD_INDEX_REPEATED_ELEMENT : c);
+		}
+	}
+
+	protected void allocate(int capacity) {
+		if ( nodes==null ) {
+			nodes = new ParseTree[capacity];
+			parent = new int[capacity];
+			rulealt = new int[capacity];
+			childIndex = new int[capacity];
+			childIndexOrListMembership = new int[capacity];
+			startToken = new int[capacity];
+			stopToken = new int[capacity];
+			leftmost = new int[capacity];
+			rightmost = new int[capacity];
+			return;
+		}
+		nodes = Arrays.copyOf(nodes, capacity);
+		parent = Arrays.copyOf(parent, capacity);
+		rulealt = Arrays.copyOf(rulealt, capacity);
+		childIndex = Arrays.copyOf(childIndex, capacity);
+		childIndexOrListMembership = Arrays.copyOf(childIndexOrListMembership, capacity);
+		startToken = Arrays.copyOf(startToken, capacity);
+		stopToken = Arrays.copyOf(stopToken, capacity);
+		leftmost = Arrays.copyOf(leftmost, capacity);
+		rightmost = Arrays.copyOf(rightmost, capacity);
+	}
+
+	/** Parent of n; NO_NODE for the root or if n is NO_NODE */
+	public int getParent(int n) {
+		return n!=NO_NODE ? parent[n] : NO_NODE;
+	}
+
+	/** Rule and alt of n packed by {@link Trainer#rulealt}; -1 if n is NO_NODE */
+	public int getRuleAlt(int n) {
+		return n!=NO_NODE ? rulealt[n] : -1;
+	}
+
+	public int getChildIndexOrListMembership(int n) {
+		return n!=NO_NODE ? childIndexOrListMembership[n] : -1;
+	}
+
+	/** Same as ctx.getText().length() but without building the string */
+	public int getTextLength(ParserRuleContext ctx) {
+		Token start = ctx.getStart();
+		Token stop = ctx.getStop();
+		if ( hasMissingTokens || start==null || stop==null ||
+			 start.getTokenIndex()<0 || stop.getTokenIndex()<start.getTokenIndex() )
+		{
+			return ctx.getText().length(); // odd tree; do it the slow way
+		}
+		return textOffset[stop.getTokenIndex()+1]-textOffset[start.getTokenIndex()];
+	}
+
+	/** Walk the tree once, sending each event to every listener in turn as
+	 *  {@link ParseTreeWalker} would, so several collectors share one pass.
+	 *  We iterate over the preorder arrays rather than recurse so deep trees
+	 *  don't need a big stack.
+	 */
+	public void walk(ParseTreeListener... listeners) {
+		int[] open = new int[16]; // rule nodes entered but not exited
+		int depth = 0;
+		for (int n = 0; n<size; n++) {
+			while ( depth>0 && open[depth-1]!=parent[n] ) {
+				exitRule(listeners, (ParserRuleContext)nodes[open[--depth]]);
+			}
+			ParseTree t = nodes[n];
+			if ( t instanceof ErrorNode ) {
+				for (ParseTreeListener listener : listeners) listener.visitErrorNode((ErrorNode)t);
+			}
+			else if ( t instanceof TerminalNode ) {
+				for (ParseTreeListener listener : listeners) listener.visitTerminal((TerminalNode)t);
+			}
+			else {
+				ParserRuleContext r = (ParserRuleContext)t;
+				for (ParseTreeListener listener : listeners) {
+					listener.enterEveryRule(r);
+					r.enterRule(listener);
+				}
+				if ( depth==open.length ) open = Arrays.copyOf(open, depth*2);
+				open[depth++] = n;
+			}
+		}
+		while ( depth>0 ) {
+			exitRule(listeners, (ParserRuleContext)nodes[open[--depth]]);
+		}
+	}
+
+	protected static void exitRule(ParseTreeListener[] listeners, ParserRuleContext r) {
+		for (ParseTreeListener listener : listeners) {
+			r.exitRule(listener);
+			listener.exitEveryRule(r);
+		}
+	}
+
+	public TerminalNode getLeaf(int tokenIndex) {
+		int n = tokenToNode[tokenIndex];
+		return n!=NO_NODE ? (TerminalNode)nodes[n] : null;
+	}
+
+	public ParserRuleContext getEarliestLeftAncestor(int tokenIndex) {
+		int n = earliestLeftAncestor[tokenIndex];
+		return n!=NO_NODE ? (ParserRuleContext)nodes[n] : null;
+	}
+}
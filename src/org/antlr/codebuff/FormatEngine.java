@@ -0,0 +1,281 @@
+package org.antlr.codebuff;
+
+import org.antlr.codebuff.misc.EditScriptEmitter;
+import org.antlr.codebuff.misc.Emitter;
+import org.antlr.codebuff.misc.LangDescriptor;
+import org.antlr.codebuff.misc.StatementReader;
+import org.antlr.codebuff.validation.FeatureVectorAsObject;
+import org.antlr.v4.runtime.Token;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.antlr.codebuff.Trainer.FEATURES_HPOS;
+import static org.antlr.codebuff.Trainer.FEATURES_INJECT_WS;
+
+/** A trained model ready to format any number of documents from any
+ *  number of threads. Each {@link #format} call gets its own session, a
+ *  single-use {@link Formatter} holding that document's output, line and
+ *  column, so calls share nothing mutable but the classifier caches.
+ *  Those are concurrent maps shared by all sessions: a context classified
+ *  while formatting one document is a lookup for the rest, and since kNN
+ *  gives the same answer for the same context, sharing them doesn't
+ *  change any output. So a long-lived engine doesn't grow without end,
+ *  each cache empties itself when it would pass maxCacheSize entries.
+ *
+ *  Don't retrain or reload the corpus while formatting with it. Formatting
+ *  doesn't alter the documents we're given so threads can even format the
+ *  same document at once.
+ */
+public class FormatEngine {
+	/** Most contexts we cache per classifier by default */
+	public static final int DEFAULT_MAX_CACHE_SIZE = 100_000;
+
+	/** Most chars of statements {@link #formatStatements} joins trying to
+	 *  get text that parses before writing the first of them as is.
+	 */
+	public static final int MAX_JOINED_CHARS = 16*1024;
+
+	public final Corpus corpus;
+	public final int indentSize;
+	public final int k;
+	public final FeatureMetaData[] wsFeatures;
+	public final FeatureMetaData[] hposFeatures;
+	/** Most entries in each cache; a cache this full empties before adding */
+	public final int maxCacheSize;
+
+	/** Category of each context classified so far, per classifier */
+	protected final Map<FeatureVectorAsObject, Integer> wsCache;
+	protected final Map<FeatureVectorAsObject, Integer> hposCache;
+	/** Neighbors found for analysis so far, per classifier */
+	protected final Map<FeatureVectorAsObject, Neighbor[]> wsNeighborCache;
+	protected final Map<FeatureVectorAsObject, Neighbor[]> hposNeighborCache;
+
+	/** A concurrent map that empties rather than grow past maxSize entries.
+	 *  As we only cache what we can compute again, losing entries costs
+	 *  time, never a different answer. We wrap a ConcurrentHashMap rather
+	 *  than extend it so every way to add an entry, Map's default methods
+	 *  and putAll included, goes through our put; the views can't add.
+	 */
+	public static class BoundedCache<K, V> extends AbstractMap<K, V> {
+		protected final ConcurrentHashMap<K, V> map = new ConcurrentHashMap<>();
+		protected final int maxSize;
+
+		public BoundedCache(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		public V get(Object key) {
+			return map.get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return map.containsKey(key);
+		}
+
+		@Override
+		public V put(K key, V value) {
+			if ( map.mappingCount()>=maxSize ) map.clear();
+			return map.put(key, value);
+		}
+
+		@Override
+		public V remove(Object key) {
+			return map.remove(key);
+		}
+
+		@Override
+		public int size() {
+			return map.size();
+		}
+
+		@Override
+		public void clear() {
+			map.clear();
+		}
+
+		@Override
+		public Set<Entry<K, V>> entrySet() {
+			return Collections.unmodifiableSet(map.entrySet());
+		}
+	}
+
+	public FormatEngine(Corpus corpus) {
+		this(corpus, corpus.language.indentSize, Formatter.DEFAULT_K, FEATURES_INJECT_WS, FEATURES_HPOS);
+	}
+
+	public FormatEngine(Corpus corpus, int indentSize, int k,
+	                    FeatureMetaData[] wsFeatures, FeatureMetaData[] hposFeatures)
+	{
+		this(corpus, indentSize, k, wsFeatures, hposFeatures, DEFAULT_MAX_CACHE_SIZE);
+	}
+
+	public FormatEngine(Corpus corpus, int indentSize, int k,
+	                    FeatureMetaData[] wsFeatures, FeatureMetaData[] hposFeatures,
+	                    int maxCacheSize)
+	{
+		this.corpus = corpus;
+		this.indentSize = indentSize;
+		this.k = k;
+		this.wsFeatures = wsFeatures;
+		this.hposFeatures = hposFeatures;
+		this.maxCacheSize = maxCacheSize;
+		wsCache = new BoundedCache<>(maxCacheSize);
+		hposCache = new BoundedCache<>(maxCacheSize);
+		wsNeighborCache = new BoundedCache<>(maxCacheSize);
+		hposNeighborCache = new BoundedCache<>(maxCacheSize);
+	}
+
+	/** Format doc and return the output. */
+	public String format(InputDocument doc) throws Exception {
+		return newSession().format(doc, false);
+	}
+
+	/** Format doc to out as we go, such as to a Writer on a file */
+	public void format(InputDocument doc, Appendable out) throws Exception {
+		newSession().format(doc, false, out);
+	}
+
+	/** Format just the tokens on lines startLine..stopLine of doc; see
+	 *  {@link Formatter#formatLines}.
+	 */
+	public String formatLines(InputDocument doc, int startLine, int stopLine) throws Exception {
+		return newSession().formatLines(doc, startLine, stopLine);
+	}
+
+	public void formatLines(InputDocument doc, int startLine, int stopLine, Appendable out) throws Exception {
+		newSession().formatLines(doc, startLine, stopLine, new Emitter(out));
+	}
+
+	/** Format just the tokens starting at char offsets startIndex..stopIndex
+	 *  of doc; see {@link Formatter#formatOffsets}.
+	 */
+	public String formatOffsets(InputDocument doc, int startIndex, int stopIndex) throws Exception {
+		return newSession().formatOffsets(doc, startIndex, stopIndex);
+	}
+
+	/** The edits that turn doc's file text, {@link InputDocument#getRawContent},
+	 *  into the formatted text, in order of offset; none if formatting
+	 *  wouldn't change it.
+	 */
+	public List<EditScriptEmitter.Edit> formatEdits(InputDocument doc) throws Exception {
+		EditScriptEmitter edits = new EditScriptEmitter(doc);
+		newSession().format(doc, false, edits);
+		return edits.getEdits();
+	}
+
+	/** Format text that has no file behind it, such as an editor buffer
+	 *  or stdin. We expand tabs as we do loading files; sourceName is
+	 *  just for error messages.
+	 */
+	public String format(String sourceName, String content) throws Exception {
+		return format(Tool.parseText(sourceName, content, corpus.language));
+	}
+
+	/** Format a script from in to out a statement at a time, writing each
+	 *  statement before reading the next, so we hold one statement rather
+	 *  than the script. The language needs
+	 *  {@link LangDescriptor#statementTerminatorTypes}, as SQL has. We
+	 *  format each statement as a document of its own so whitespace and
+	 *  comments before a statement, and comments after it on its last line,
+	 *  stay as they are. A statement that doesn't parse alone, such as the
+	 *  first of a trigger's, we join to the next until we have text that
+	 *  parses. Past MAX_JOINED_CHARS, or at the end of the script, we write
+	 *  the first statement we're holding as it was and try joining from
+	 *  the second, so one bad statement costs only itself.
+	 *  Return how many statements, joined or not, we formatted.
+	 */
+	public int formatStatements(String sourceName, Reader in, Writer out) throws Exception {
+		return formatStatements(sourceName, new StatementReader(in, corpus.language), out);
+	}
+
+	public int formatStatements(String sourceName, StatementReader statements, Writer out) throws Exception {
+		LangDescriptor language = corpus.language;
+		Deque<String> pending = new ArrayDeque<>();
+		int pendingChars = 0;
+		int formatted = 0;
+		for (String statement = statements.next(); ; statement = statements.next()) {
+			boolean more = statement!=null;
+			if ( more ) {
+				pending.addLast(statement);
+				pendingChars += statement.length();
+			}
+			while ( !pending.isEmpty() ) {
+				InputDocument doc = Tool.parseText(sourceName, String.join("", pending), language, false);
+				if ( doc.tree!=null ) {
+					formatStatement(doc, out);
+					formatted++;
+					pending.clear();
+					pendingChars = 0;
+				}
+				else if ( more && pendingChars<=MAX_JOINED_CHARS ) {
+					break; // maybe it ends at a later terminator
+				}
+				else { // write the first as is and join from the second
+					String first = pending.removeFirst();
+					pendingChars -= first.length();
+					out.write(first);
+				}
+			}
+			if ( !more ) break;
+		}
+		return formatted;
+	}
+
+	/** Format a statement parsed alone and write the comments and newline
+	 *  after its last token, which formatting leaves off.
+	 */
+	protected void formatStatement(InputDocument doc, Writer out) throws Exception {
+		List<Token> realTokens = Trainer.getRealTokens(doc.tokens);
+		if ( realTokens.isEmpty() ) { // just whitespace and comments
+			out.write(doc.getRawContent());
+			return;
+		}
+		format(doc, out);
+		int stop = realTokens.get(realTokens.size()-1).getStopIndex();
+		out.write(doc.getRawText(stop+1, doc.content.length()));
+	}
+
+	/** Format doc and return the session so callers can get the output
+	 *  and, if collectAnalysis, {@link Formatter#getAnalysisPerToken}.
+	 */
+	public Formatter format(InputDocument doc, boolean collectAnalysis) throws Exception {
+		Formatter session = newSession();
+		session.format(doc, collectAnalysis);
+		return session;
+	}
+
+	/** A formatter for one document whose classifiers use our caches.
+	 *  Use it from one thread at a time.
+	 */
+	public Formatter newSession() {
+		return new Formatter(corpus, indentSize, k, wsFeatures, hposFeatures) {
+			@Override
+			protected kNNClassifier newClassifier(FeatureMetaData[] features, List<Integer> Y) {
+				kNNClassifier classifier = super.newClassifier(features, Y);
+				boolean ws = Y==corpus.injectWhitespace;
+				classifier.classifyCache = ws ? wsCache : hposCache;
+				classifier.neighborCache = ws ? wsNeighborCache : hposNeighborCache;
+				return classifier;
+			}
+		};
+	}
+
+	/** Forget what we've classified, such as to free memory between jobs */
+	public void clearCaches() {
+		wsCache.clear();
+		hposCache.clear();
+		wsNeighborCache.clear();
+		hposNeighborCache.clear();
+	}
+}
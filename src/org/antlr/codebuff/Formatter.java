@@ -1,6 +1,8 @@
 package org.antlr.codebuff;
 
 import org.antlr.codebuff.misc.CodeBuffTokenStream;
+import org.antlr.codebuff.misc.Emitter;
+import org.antlr.codebuff.misc.LineIndex;
 import org.antlr.codebuff.validation.TokenPositionAnalysis;
 import org.antlr.codebuff.walkers.IdentifyOversizeLists;
 import org.antlr.v4.runtime.CommonToken;
@@ -14,9 +16,11 @@ import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.function.Predicate;
 
 import static org.antlr.codebuff.Dbg.normalizedLevenshteinDistance;
 import static org.antlr.codebuff.Dbg.tokenText;
@@ -33,28 +37,28 @@ import static org.antlr.codebuff.Trainer.INDEX_FIRST_ON_LINE;
 import static org.antlr.codebuff.Trainer.INDEX_PREV_FIRST_ON_LINE;
 import static org.antlr.codebuff.Trainer.MAX_ALIGN_CONTEXT_DIFF_THRESHOLD;
 import static org.antlr.codebuff.Trainer.MAX_WS_CONTEXT_DIFF_THRESHOLD;
-import static org.antlr.codebuff.Trainer.earliestAncestorStartingWithToken;
 import static org.antlr.codebuff.Trainer.getContextFeatures;
 import static org.antlr.codebuff.Trainer.getRealTokens;
-import static org.antlr.codebuff.Trainer.getTokensOnPreviousLine;
-import static org.antlr.codebuff.Trainer.indexTree;
 import static org.antlr.codebuff.Trainer.nlcat;
 import static org.antlr.codebuff.Trainer.setListInfoFeatures;
 import static org.antlr.codebuff.misc.BuffUtils.filter;
 
+/** Format one document per a trained corpus. This is a session: it holds
+ *  the document's output and where we are in it, so format() only once.
+ *  To format many documents, maybe concurrently, use a {@link FormatEngine}.
+ */
 public class Formatter {
 	public static final int DEFAULT_K = 11;
 
 	public Corpus corpus;
 
+	/** The output if we're formatting to a string; null if streaming */
 	public StringBuilder output;
+	/** Where we send the output; counts chars for token offsets */
+	public Emitter emitter;
 	public CodeBuffTokenStream originalTokens; // copy of tokens with line/col info
 	public List<Token> realTokens;             // just the real tokens from tokens
 
-	/** A map from real token to node in the parse tree */
-	public Map<Token, TerminalNode> tokenToNodeMap = null;
-	public Map<Token, TerminalNode> originalTokenToNodeMap = null; // for debugging purposes only
-
 	/** analysis[i] is info about what we decided for token index i from
 	 *  original stream (not index into real token list)
 	 */
@@ -81,6 +85,16 @@ public class Formatter {
 	public int line = 1;
 	public int charPosInLine = 0;
 
+	/** First real token on each line we've emitted so far */
+	public LineIndex emittedLines;
+
+	/** Feature vectors of the token we're formatting, reused for every
+	 *  token so the formatting loop makes next to no garbage. Classifiers
+	 *  copy them if they need to keep them.
+	 */
+	protected final int[] featureBuffer = new int[Trainer.NUM_FEATURES];
+	protected final int[] alignFeatureBuffer = new int[Trainer.NUM_FEATURES];
+
 	public Formatter(Corpus corpus, int indentSize, int k,
 	                 FeatureMetaData[] wsFeatures, FeatureMetaData[] hposFeatures)
 	{
@@ -97,8 +111,9 @@ public class Formatter {
 		this.indentSize = indentSize;
 	}
 
+	/** The output; null if we streamed it elsewhere */
 	public String getOutput() {
-		return output.toString();
+		return output!=null ? output.toString() : null;
 	}
 
 	public List<TokenPositionAnalysis> getAnalysisPerToken() {
@@ -112,58 +127,206 @@ public class Formatter {
 		corpus = null;
 		realTokens = null;
 		originalTokens = null;
-		tokenToNodeMap = null;
-		originalTokenToNodeMap = null;
 		tokenToListInfo = null;
+		emittedLines = null;
 		wsClassifier = null;
 		hposClassifier = null;
 	}
 
 	/** Format the document. Does not affect/alter doc. */
 	public String format(InputDocument doc, boolean collectAnalysis) throws Exception {
-		if ( testDoc!=null ) throw new IllegalArgumentException("can't call format > once");
-		// for debugging we need a map from original token with actual line:col to tree node. used by token analysis
-		originalDoc = doc;
-		originalTokenToNodeMap = indexTree(doc.tree);
-		originalTokens = doc.tokens;
+		StringBuilder buf = new StringBuilder();
+		format(doc, collectAnalysis, buf);
+		output = buf;
+		return buf.toString();
+	}
 
-		this.testDoc = InputDocument.dup(doc); // make copy of doc, getting new tokens, tree
-		output = new StringBuilder();
-		this.realTokens = getRealTokens(testDoc.tokens);
-		// squeeze out ws and kill any line/col info so we can't use ground truth by mistake
-		wipeCharPositionInfoAndWhitespaceTokens(testDoc.tokens); // all except for first token
-		wsClassifier = new kNNClassifier(corpus, wsFeatures, corpus.injectWhitespace);
-		hposClassifier = new kNNClassifier(corpus, hposFeatures, corpus.hpos);
+	/** Format the document to out as we go, such as to a Writer on a file
+	 *  so we don't hold the output in memory. Does not affect/alter doc.
+	 */
+	public void format(InputDocument doc, boolean collectAnalysis, Appendable out) throws Exception {
+		format(doc, collectAnalysis, new Emitter(out));
+	}
 
-		analysis = new Vector<>(testDoc.tokens.size());
-		analysis.setSize(testDoc.tokens.size());
+	/** Format the document, sending output to emitter */
+	public void format(InputDocument doc, boolean collectAnalysis, Emitter emitter) throws Exception {
+		if ( testDoc!=null ) throw new IllegalArgumentException("can't call format > once");
+		this.emitter = emitter;
+		try {
+			emitTokens(doc, collectAnalysis);
+		}
+		catch (UncheckedIOException ioe) {
+			throw ioe.getCause();
+		}
+		emitter.flush();
+	}
 
-		// make an index on the duplicated doc tree with tokens missing line:col info
-		if ( tokenToNodeMap == null ) {
-			tokenToNodeMap = indexTree(testDoc.tree);
+	protected void emitTokens(InputDocument doc, boolean collectAnalysis) {
+		setUp(doc);
+		emitFirstToken();
+		for (int i = Trainer.ANALYSIS_START_TOKEN_INDEX; i<realTokens.size(); i++) { // can't process first token
+			int tokenIndexInStream = realTokens.get(i).getTokenIndex();
+			processToken(i, tokenIndexInStream, collectAnalysis);
 		}
 
+		releaseMemory();
+	}
+
+	/** Emit the first real token and any comments in front of it as is */
+	protected void emitFirstToken() {
 		WritableToken firstToken = (WritableToken)testDoc.tokens.getNextRealToken(-1);
 
 		String prefix = originalTokens.getText(Interval.of(0, firstToken.getTokenIndex())); // gets any comments in front + first real token
 		charPosInLine = firstToken.getCharPositionInLine()+firstToken.getText().length()+1; // start where first token left off
 		line = Tool.count(prefix, '\n') + 1;
-		output.append(prefix);
+		emitter.emit(prefix);
+		emittedLines = new LineIndex();
+		emittedLines.add(firstToken);
+	}
 
-		// first identify oversize lists with separators
-		IdentifyOversizeLists splitter = new IdentifyOversizeLists(corpus, testDoc.tokens, tokenToNodeMap);
-		ParseTreeWalker.DEFAULT.walk(splitter, testDoc.tree);
-		tokenToListInfo = splitter.tokenToListInfo;
+	/** Format only the real tokens with original line numbers in
+	 *  startLine..stopLine (1-based, inclusive) and the whitespace in front
+	 *  of each; copy the rest of doc verbatim, as in the file, tabs and all.
+	 */
+	public String formatLines(InputDocument doc, int startLine, int stopLine) throws Exception {
+		StringBuilder buf = new StringBuilder();
+		formatLines(doc, startLine, stopLine, new Emitter(buf));
+		output = buf;
+		return buf.toString();
+	}
 
-		realTokens = getRealTokens(testDoc.tokens);
-		for (int i = Trainer.ANALYSIS_START_TOKEN_INDEX; i<realTokens.size(); i++) { // can't process first token
-			int tokenIndexInStream = realTokens.get(i).getTokenIndex();
-			processToken(i, tokenIndexInStream, collectAnalysis);
+	public void formatLines(InputDocument doc, int startLine, int stopLine, Emitter emitter) throws Exception {
+		int[] range = getRealTokenRange(doc, t -> t.getLine()>=startLine && t.getLine()<=stopLine);
+		formatRange(doc, range[0], range[1], emitter);
+	}
+
+	/** Format only the real tokens starting at char offsets startIndex..stopIndex
+	 *  (0-based, inclusive) of the file's text, {@link InputDocument#getRawContent},
+	 *  as from an editor, and the whitespace in front of each; copy the rest
+	 *  of doc verbatim.
+	 */
+	public String formatOffsets(InputDocument doc, int startIndex, int stopIndex) throws Exception {
+		int[] range = getRealTokenRange(doc, t -> {
+			int start = doc.rawOffset(t.getStartIndex());
+			return start>=startIndex && start<=stopIndex;
+		});
+		StringBuilder buf = new StringBuilder();
+		formatRange(doc, range[0], range[1], new Emitter(buf));
+		output = buf;
+		return buf.toString();
+	}
+
+	/** Format the real tokens from..to (indexes into the real tokens,
+	 *  inclusive) to emitter and copy the rest of doc verbatim from the
+	 *  file's text, without expanding its tabs. We predict just
+	 *  those tokens: the ones before the range keep their original
+	 *  positions, as they're what we emit, so the features of tokens in the
+	 *  range see the lines and columns they will have in the output.
+	 */
+	public void formatRange(InputDocument doc, int from, int to, Emitter emitter) throws Exception {
+		if ( testDoc!=null ) throw new IllegalArgumentException("can't call format > once");
+		this.emitter = emitter;
+		try {
+			emitTokenRange(doc, from, to);
+		}
+		catch (UncheckedIOException ioe) {
+			throw ioe.getCause();
+		}
+		emitter.flush();
+	}
+
+	protected void emitTokenRange(InputDocument doc, int from, int to) {
+		setUp(doc);
+		from = Math.max(from, Trainer.ANALYSIS_START_TOKEN_INDEX); // can't process first token
+		to = Math.min(to, realTokens.size()-1);
+		String content = doc.content;
+		if ( from>to ) { // nothing to format
+			emitter.emit(doc.getRawContent());
+			releaseMemory();
+			return;
 		}
 
+		// emit everything up to the last real token before the range as is;
+		// lines and columns are those of the text with tabs expanded
+		int lastBefore = originalTokens.getPreviousRealTokenIndex(realTokens.get(from).getTokenIndex());
+		Token lastBeforeToken = originalTokens.get(lastBefore);
+		int prefixEnd = lastBeforeToken.getStopIndex()+1;
+		int lastNL = content.lastIndexOf('\n', prefixEnd-1);
+		line = lastBeforeToken.getLine() + Tool.count(lastBeforeToken.getText(), '\n');
+		charPosInLine = prefixEnd-(lastNL+1);
+		emitter.emit(doc.getRawText(0, prefixEnd));
+
+		// and give those tokens back their original positions
+		emittedLines = new LineIndex();
+		for (int i = 0; i<from; i++) {
+			CommonToken t = (CommonToken)realTokens.get(i);
+			Token original = originalTokens.get(t.getTokenIndex());
+			t.setLine(original.getLine());
+			t.setCharPositionInLine(original.getCharPositionInLine());
+			emittedLines.add(t);
+		}
+
+		for (int i = from; i<=to; i++) {
+			processToken(i, realTokens.get(i).getTokenIndex(), false);
+		}
+
+		// everything after the range as is
+		int lastInRange = realTokens.get(to).getTokenIndex();
+		emitter.emit(doc.getRawText(originalTokens.get(lastInRange).getStopIndex()+1, content.length()));
 		releaseMemory();
+	}
+
+	/** Indexes into the real tokens of doc of the first and last that
+	 *  satisfy inRange; {-1,-2} if none.
+	 */
+	public static int[] getRealTokenRange(InputDocument doc, Predicate<Token> inRange) {
+		List<Token> real = getRealTokens(doc.tokens);
+		int from = -1, to = -2;
+		for (int i = 0; i<real.size(); i++) {
+			if ( inRange.test(real.get(i)) ) {
+				if ( from<0 ) from = i;
+				to = i;
+			}
+		}
+		return new int[] {from, to};
+	}
+
+	/** Copy doc and get ready to predict its tokens */
+	protected void setUp(InputDocument doc) {
+		// for debugging we need the original doc's tokens with actual line:col and tree nodes. used by token analysis
+		originalDoc = doc;
+		originalTokens = doc.tokens;
+
+		this.testDoc = InputDocument.dup(doc); // copy doc's tokens so we can set their positions
+		// squeeze out ws and kill any line/col info so we can't use ground truth by mistake
+		wipeCharPositionInfoAndWhitespaceTokens(testDoc.tokens); // all except for first token
+		wsClassifier = newClassifier(wsFeatures, corpus.injectWhitespace);
+		hposClassifier = newClassifier(hposFeatures, corpus.hpos);
+
+		analysis = new Vector<>(testDoc.tokens.size());
+		analysis.setSize(testDoc.tokens.size());
+
+		// first identify oversize lists with separators unless we were given
+		// them, as when formatting part of a document
+		if ( tokenToListInfo==null ) tokenToListInfo = identifyOversizeLists(corpus, testDoc);
+
+		realTokens = getRealTokens(testDoc.tokens);
+	}
+
+	/** List info for the tokens of doc's tree, which must be a copy with
+	 *  positions wiped as in {@link #setUp}.
+	 */
+	public static Map<Token,Pair<Boolean,Integer>> identifyOversizeLists(Corpus corpus, InputDocument doc) {
+		IdentifyOversizeLists splitter = new IdentifyOversizeLists(corpus, doc.tokens, doc.getFlatTree());
+		ParseTreeWalker.DEFAULT.walk(splitter, doc.tree);
+		return splitter.tokenToListInfo;
+	}
 
-		return output.toString();
+	/** Create the classifier for whitespace or alignment decisions. Override
+	 *  to classify some other way, such as with a {@link ShardedKNNClassifier}.
+	 */
+	protected kNNClassifier newClassifier(FeatureMetaData[] features, List<Integer> Y) {
+		return new kNNClassifier(corpus, features, Y);
 	}
 
 	public float getWSEditDistance() throws Exception {
@@ -184,10 +347,10 @@ public class Formatter {
 	public void processToken(int indexIntoRealTokens, int tokenIndexInStream, boolean collectAnalysis) {
 		CommonToken curToken = (CommonToken)testDoc.tokens.get(tokenIndexInStream);
 		String tokText = curToken.getText();
-		TerminalNode node = tokenToNodeMap.get(curToken);
+		TerminalNode node = testDoc.getFlatTree().getLeaf(tokenIndexInStream);
 
 		int[] features = getFeatures(testDoc, tokenIndexInStream);
-		int[] featuresForAlign = new int[features.length];
+		int[] featuresForAlign = alignFeatureBuffer;
 		System.arraycopy(features, 0, featuresForAlign, 0, features.length);
 
 		int injectNL_WS = wsClassifier.classify(k, features, Trainer.MAX_WS_CONTEXT_DIFF_THRESHOLD);
@@ -210,7 +373,7 @@ public class Formatter {
 		int alignOrIndent = CAT_ALIGN;
 
 		if ( newlines>0 ) {
-			output.append(Tool.newlines(newlines));
+			emit('\n', newlines);
 			line+=newlines;
 			charPosInLine = 0;
 
@@ -226,12 +389,11 @@ public class Formatter {
 				indent(alignOrIndent, node);
 			}
 			else if ( (alignOrIndent&0xFF)==CAT_ALIGN ) {
-				List<Token> tokensOnPreviousLine = getTokensOnPreviousLine(testDoc.tokens, tokenIndexInStream, line);
-				if ( tokensOnPreviousLine.size()>0 ) {
-					Token firstTokenOnPrevLine = tokensOnPreviousLine.get(0);
+				Token firstTokenOnPrevLine = emittedLines.getFirstTokenOnPreviousLine(line);
+				if ( firstTokenOnPrevLine!=null ) {
 					int indentCol = firstTokenOnPrevLine.getCharPositionInLine();
 					charPosInLine = indentCol;
-					output.append(Tool.spaces(indentCol));
+					emit(' ', indentCol);
 				}
 			}
 			else if ( (alignOrIndent&0xFF)==CAT_INDENT ) {
@@ -240,7 +402,7 @@ public class Formatter {
 		}
 		else {
 			// inject whitespace instead of \n?
-			output.append(Tool.spaces(ws));
+			emit(' ', ws);
 			charPosInLine += ws;
 		}
 
@@ -248,6 +410,7 @@ public class Formatter {
 		// to emit it.
 		curToken.setLine(line);
 		curToken.setCharPositionInLine(charPosInLine);
+		emittedLines.add(curToken);
 
 		TokenPositionAnalysis tokenPositionAnalysis =
 			getTokenAnalysis(features, featuresForAlign, tokenIndexInStream, injectNL_WS, alignOrIndent, collectAnalysis);
@@ -255,39 +418,34 @@ public class Formatter {
 		analysis.set(tokenIndexInStream, tokenPositionAnalysis);
 
 		int n = tokText.length();
-		tokenPositionAnalysis.charIndexStart = output.length();
+		tokenPositionAnalysis.charIndexStart = emitter.length();
 		tokenPositionAnalysis.charIndexStop = tokenPositionAnalysis.charIndexStart + n - 1;
 
 		// emit
-		output.append(tokText);
+		emitter.emitToken(originalTokens.get(tokenIndexInStream), tokText);
 		charPosInLine += n;
 	}
 
 	public void indent(int indentCat, TerminalNode node) {
-		int tokenIndexInStream = node.getSymbol().getTokenIndex();
-		List<Token> tokensOnPreviousLine = getTokensOnPreviousLine(testDoc.tokens, tokenIndexInStream, line);
-		Token firstTokenOnPrevLine = null;
-		if ( tokensOnPreviousLine.size()>0 ) {
-			firstTokenOnPrevLine = tokensOnPreviousLine.get(0);
-		}
+		Token firstTokenOnPrevLine = emittedLines.getFirstTokenOnPreviousLine(line);
 
 		if ( indentCat==CAT_INDENT ) {
 			if ( firstTokenOnPrevLine!=null ) { // if not on first line, we cannot indent
 				int indentedCol = firstTokenOnPrevLine.getCharPositionInLine()+indentSize;
 				charPosInLine = indentedCol;
-				output.append(Tool.spaces(indentedCol));
+				emit(' ', indentedCol);
 			}
 			else {
 				// no prev token? ok, just indent from left edge
 				charPosInLine = indentSize;
-				output.append(Tool.spaces(indentSize));
+				emit(' ', indentSize);
 			}
 			return;
 		}
 		int[] deltaChild = Trainer.unindentcat(indentCat);
 		int deltaFromAncestor = deltaChild[0];
 		int childIndex = deltaChild[1];
-		ParserRuleContext earliestLeftAncestor = earliestAncestorStartingWithToken(node);
+		ParserRuleContext earliestLeftAncestor = testDoc.getFlatTree().getEarliestLeftAncestor(node.getSymbol().getTokenIndex());
 		ParserRuleContext ancestor = Trainer.getAncestor(earliestLeftAncestor, deltaFromAncestor);
 		Token start = null;
 		if ( ancestor==null ) {
@@ -307,9 +465,9 @@ public class Formatter {
 			}
 		}
 		if ( start!=null ) {
-			int indentCol = start.getCharPositionInLine()+indentSize;
+			int indentCol = getFormattedToken(start).getCharPositionInLine()+indentSize;
 			charPosInLine = indentCol;
-			output.append(Tool.spaces(indentCol));
+			emit(' ', indentCol);
 		}
 	}
 
@@ -317,7 +475,7 @@ public class Formatter {
 		int[] deltaChild = Trainer.triple(alignOrIndent);
 		int deltaFromAncestor = deltaChild[0];
 		int childIndex = deltaChild[1];
-		ParserRuleContext earliestLeftAncestor = earliestAncestorStartingWithToken(node);
+		ParserRuleContext earliestLeftAncestor = testDoc.getFlatTree().getEarliestLeftAncestor(node.getSymbol().getTokenIndex());
 		ParserRuleContext ancestor = Trainer.getAncestor(earliestLeftAncestor, deltaFromAncestor);
 		Token start = null;
 		if ( ancestor==null ) {
@@ -337,12 +495,28 @@ public class Formatter {
 			}
 		}
 		if ( start!=null ) {
-			int indentCol = start.getCharPositionInLine();
+			int indentCol = getFormattedToken(start).getCharPositionInLine();
 			charPosInLine = indentCol;
-			output.append(Tool.spaces(indentCol));
+			emit(' ', indentCol);
 		}
 	}
 
+	/** Our copy of a token from the tree, which we share with the
+	 *  document we're formatting; the copy has the position we gave it.
+	 */
+	public Token getFormattedToken(Token t) {
+		int i = t.getTokenIndex();
+		return i>=0 && i<testDoc.tokens.size() ? testDoc.tokens.get(i) : t; // conjured tokens aren't in the stream
+	}
+
+	/** Emit n copies of c without making a string */
+	protected void emit(char c, int n) {
+		emitter.emit(c, n);
+	}
+
+	/** Compute the features of a token into {@link #featureBuffer}, which
+	 *  we return; it's overwritten by the next call.
+	 */
 	public int[] getFeatures(InputDocument doc, int tokenIndexInStream) {
 		Token prevToken = doc.tokens.getPreviousRealToken(tokenIndexInStream);
 		Token prevPrevToken = prevToken!=null ? doc.tokens.getPreviousRealToken(prevToken.getTokenIndex()) : null;
@@ -350,7 +524,7 @@ public class Formatter {
 		if ( prevToken!=null && prevPrevToken!=null ) {
 			prevTokenStartsLine = prevToken.getLine()>prevPrevToken.getLine();
 		}
-		TerminalNode node = tokenToNodeMap.get(doc.tokens.get(tokenIndexInStream));
+		TerminalNode node = doc.getFlatTree().getLeaf(tokenIndexInStream);
 		if ( node==null ) {
 			System.err.println("### No node associated with token "+doc.tokens.get(tokenIndexInStream));
 			return null;
@@ -362,7 +536,7 @@ public class Formatter {
 		if ( prevToken==null ) curTokenStartsNewLine = true; // we must be at start of file
 		else if ( line > prevToken.getLine() ) curTokenStartsNewLine = true;
 
-		int[] features = getContextFeatures(corpus, tokenToNodeMap, doc, tokenIndexInStream);
+		int[] features = getContextFeatures(corpus, doc.getFlatTree(), doc, tokenIndexInStream, featureBuffer);
 
 		setListInfoFeatures(tokenToListInfo, features, curToken);
 
@@ -381,43 +555,39 @@ public class Formatter {
 	 *  is the only place that examines the original token stream during formatting.
 	 */
 	public int emitCommentsToTheLeft(int tokenIndexInStream, int injectNL_WS) {
-		List<Token> hiddenTokensToLeft = originalTokens.getHiddenTokensToLeft(tokenIndexInStream);
-		if ( hiddenTokensToLeft!=null ) {
-			// if at least one is not whitespace, assume it's a comment and print all hidden stuff including whitespace
-			boolean hasComment = Trainer.hasCommentToken(hiddenTokensToLeft);
-			if ( hasComment ) {
-				// avoid whitespace at end of sequence as we'll inject that
-				int last = -1;
-				for (int i=hiddenTokensToLeft.size()-1; i>=0; i--) {
-					Token hidden = hiddenTokensToLeft.get(i);
-					String hiddenText = hidden.getText();
-					if ( !hiddenText.matches("\\s+") ) {
-						last = i;
-						break;
-					}
-				}
-				Token commentToken = hiddenTokensToLeft.get(last);
-				List<Token> truncated = hiddenTokensToLeft.subList(0, last+1);
-				for (Token hidden : truncated) {
-					String hiddenText = hidden.getText();
-					output.append(hiddenText);
-					if ( hiddenText.matches("\\n+") ) {
-						line += Tool.count(hiddenText, '\n');
-						charPosInLine = 0;
-					}
-					else {
-						// if a comment or plain ' ', must count char position
-						charPosInLine += hiddenText.length();
-					}
+		// the hidden tokens to the left are those after the previous real token
+		int firstHidden = originalTokens.getPreviousRealTokenIndex(tokenIndexInStream)+1;
+		// avoid whitespace at end of sequence as we'll inject that
+		int last = -1;
+		for (int i = tokenIndexInStream-1; i>=firstHidden; i--) {
+			if ( !originalTokens.isWhitespace(i) ) {
+				last = i;
+				break;
+			}
+		}
+		// if at least one is not whitespace, assume it's a comment and print all hidden stuff including whitespace
+		boolean hasComment = last>=0;
+		if ( hasComment ) {
+			Token commentToken = originalTokens.get(last);
+			for (int i = firstHidden; i<=last; i++) {
+				String hiddenText = originalTokens.get(i).getText();
+				emitter.emit(hiddenText);
+				if ( originalTokens.isNewlines(i) ) {
+					line += originalTokens.getNewlineCount(i);
+					charPosInLine = 0;
 				}
-				// failsafe. make sure single-line comments have \n on the end.
-				// If not predicted, must override and inject one
-				if ( commentToken.getType()==corpus.language.singleLineCommentType &&
-					(injectNL_WS&0xFF)!=CAT_INJECT_NL )
-				{
-					return nlcat(1); // force formatter to predict newline then trigger alignment
+				else {
+					// if a comment or plain ' ', must count char position
+					charPosInLine += hiddenText.length();
 				}
 			}
+			// failsafe. make sure single-line comments have \n on the end.
+			// If not predicted, must override and inject one
+			if ( commentToken.getType()==corpus.language.singleLineCommentType &&
+				(injectNL_WS&0xFF)!=CAT_INJECT_NL )
+			{
+				return nlcat(1); // force formatter to predict newline then trigger alignment
+			}
 		}
 
 		return injectNL_WS; // send same thing back out unless we trigger failsafe
@@ -429,33 +599,34 @@ public class Formatter {
 	                                              boolean collectAnalysis)
 	{
 		CommonToken curToken = (CommonToken)originalDoc.tokens.get(tokenIndexInStream);
-		TerminalNode nodeWithOriginalToken = originalTokenToNodeMap.get(curToken);
+		TerminalNode nodeWithOriginalToken = originalDoc.getFlatTree().getLeaf(tokenIndexInStream);
 
 		int actualWS = Trainer.getInjectWSCategory(originalTokens, tokenIndexInStream);
-		String actualWSNL = getWSCategoryStr(actualWS);
-		actualWSNL = actualWSNL!=null ? actualWSNL : String.format("%8s","none");
-
-		String wsDisplay = getWSCategoryStr(injectNL_WS);
-		if ( wsDisplay==null ) wsDisplay = String.format("%8s","none");
-		String alignDisplay = getHPosCategoryStr(alignOrIndent);
-		if ( alignDisplay==null ) alignDisplay = String.format("%8s","none");
-		String newlinePredictionString =
-			String.format("### line %d: predicted %s actual %s",
-			              curToken.getLine(), wsDisplay, actualWSNL);
-
 		int actualAlignCategory = Trainer.getAlignmentCategory(originalDoc, nodeWithOriginalToken, indentSize);
-		String actualAlignDisplay = getHPosCategoryStr(actualAlignCategory);
-		actualAlignDisplay = actualAlignDisplay!=null ? actualAlignDisplay : String.format("%8s","none");
-
-		String alignPredictionString =
-			String.format("### line %d: predicted %s actual %s",
-			              curToken.getLine(),
-			              alignDisplay,
-			              actualAlignDisplay);
 
 		String newlineAnalysis = "";
 		String alignAnalysis = "";
 		if ( collectAnalysis ) { // this can be slow
+			String actualWSNL = getWSCategoryStr(actualWS);
+			actualWSNL = actualWSNL!=null ? actualWSNL : String.format("%8s","none");
+
+			String wsDisplay = getWSCategoryStr(injectNL_WS);
+			if ( wsDisplay==null ) wsDisplay = String.format("%8s","none");
+			String alignDisplay = getHPosCategoryStr(alignOrIndent);
+			if ( alignDisplay==null ) alignDisplay = String.format("%8s","none");
+			String newlinePredictionString =
+				String.format("### line %d: predicted %s actual %s",
+				              curToken.getLine(), wsDisplay, actualWSNL);
+
+			String actualAlignDisplay = getHPosCategoryStr(actualAlignCategory);
+			actualAlignDisplay = actualAlignDisplay!=null ? actualAlignDisplay : String.format("%8s","none");
+
+			String alignPredictionString =
+				String.format("### line %d: predicted %s actual %s",
+				              curToken.getLine(),
+				              alignDisplay,
+				              actualAlignDisplay);
+
 			newlineAnalysis = newlinePredictionString+"\n"+
 				wsClassifier.getPredictionAnalysis(testDoc, k, features, corpus.injectWhitespace,
 				                                   MAX_WS_CONTEXT_DIFF_THRESHOLD);
@@ -467,7 +638,7 @@ public class Formatter {
 			}
 		}
 		TokenPositionAnalysis a = new TokenPositionAnalysis(curToken, injectNL_WS, newlineAnalysis, alignOrIndent, alignAnalysis);
-		a.actualWS = Trainer.getInjectWSCategory(originalTokens, tokenIndexInStream);
+		a.actualWS = actualWS;
 		a.actualAlign = actualAlignCategory;
 		return a;
 	}
@@ -513,7 +684,7 @@ public class Formatter {
 		for (int i = 0; i<tokens.size(); i++) {
 			if ( i==firstRealToken.getTokenIndex() ) continue; // don't wack first token
 			CommonToken t = (CommonToken)tokens.get(i);
-			if ( t.getText().matches("\\s+") ) {
+			if ( tokens.isWhitespace(i) ) {
 				tokens.getTokens().set(i, dummy); // wack whitespace token so we can't use it during prediction
 			}
 			else {
@@ -521,6 +692,7 @@ public class Formatter {
 				t.setCharPositionInLine(-1);
 			}
 		}
+		tokens.clearTokenTable(); // dummies aren't whitespace
 	}
 
 }
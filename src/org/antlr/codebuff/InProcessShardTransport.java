@@ -0,0 +1,36 @@
+package org.antlr.codebuff;
+
+import java.util.List;
+
+/** Talk to a shard in this JVM */
+public class InProcessShardTransport implements ShardTransport {
+	public final ExemplarShard shard;
+
+	public InProcessShardTransport(ExemplarShard shard) {
+		this.shard = shard;
+	}
+
+	@Override
+	public int[][] countCandidates(FeatureMetaData[] FEATURES, List<int[]> unknowns) {
+		int[][] counts = new int[unknowns.size()][];
+		for (int i = 0; i<counts.length; i++) {
+			counts[i] = shard.countCandidates(FEATURES, unknowns.get(i));
+		}
+		return counts;
+	}
+
+	@Override
+	public ShardNeighbor[][] nearest(FeatureMetaData[] FEATURES, List<int[]> unknowns,
+	                                 int k, double distanceThreshold, int[] modes)
+	{
+		ShardNeighbor[][] kNNs = new ShardNeighbor[unknowns.size()][];
+		for (int i = 0; i<kNNs.length; i++) {
+			kNNs[i] = shard.nearest(FEATURES, unknowns.get(i), k, distanceThreshold, modes[i]);
+		}
+		return kNNs;
+	}
+
+	@Override
+	public void close() {
+	}
+}
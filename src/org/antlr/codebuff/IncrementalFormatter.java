@@ -0,0 +1,404 @@
+package org.antlr.codebuff;
+
+import org.antlr.codebuff.misc.CodeBuffTokenStream;
+import org.antlr.codebuff.misc.EditScriptEmitter;
+import org.antlr.codebuff.misc.LangDescriptor;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.ListTokenSource;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/** A document we format again after each edit, as in an editor or watch
+ *  mode, keeping its tokens and tree up to date rather than lexing and
+ *  parsing it all again. For an edit we relex from just before it until
+ *  the tokens line up with the old ones again and shift the rest. If the
+ *  real tokens are the same, as when the edit only touches whitespace or
+ *  comments, the tree stands. Otherwise we reparse the smallest subtree
+ *  enclosing the changed tokens whose rule we can call on its own: not
+ *  left-recursive, which depends on the caller's precedence, and needing
+ *  no args. Its tokens must parse without error as exactly that rule.
+ *  Failing that we parse the whole document.
+ *
+ *  {@link #format} reformats from the first line whose formatting an edit
+ *  could change, the start of the reparsed subtree's parent if any, and
+ *  copies the lines before it, which are as we formatted them. Tokens
+ *  are classified through our {@link FormatEngine}'s caches, which are
+ *  keyed by feature vector, so a token whose context didn't change is a
+ *  lookup, and one whose context did gets a new prediction.
+ *
+ *  Reparsed subtrees hang off the old tree by their parent's children
+ *  list, so label fields of the parent context, such as ctx.e, still see
+ *  the old subtree. Nothing in formatting uses those. Lexers with modes
+ *  are relexed from the start as we don't know the mode between tokens.
+ *  We parse with tabs expanded, as for files, but take edits and give
+ *  text in offsets of the text as given, tabs and all.
+ *  Use from one thread at a time.
+ */
+public class IncrementalFormatter {
+	/** {@link #dirtyFrom} when nothing changed since we formatted */
+	public static final int CLEAN = Integer.MAX_VALUE;
+
+	public final FormatEngine engine;
+	public final LangDescriptor language;
+	protected InputDocument doc;
+
+	/** Offset of the first char whose formatting an edit could change */
+	protected int dirtyFrom = 0;
+
+	/** How we kept the tree up to date, for reporting */
+	public int fullParses, subtreeParses, treeUnchanged;
+	/** Tokens we lexed again, in all */
+	public long relexedTokens;
+
+	public IncrementalFormatter(FormatEngine engine, String fileName, String content) throws Exception {
+		this.engine = engine;
+		this.language = engine.corpus.language;
+		doc = Tool.parseText(fileName, content, language);
+		fullParses++;
+	}
+
+	/** The document as it is after edits and formatting; don't change it */
+	public InputDocument getDocument() {
+		return doc;
+	}
+
+	/** The text as given and edited, with its tabs; the document's
+	 *  content has them expanded, as if loaded from a file.
+	 */
+	public String getContent() {
+		return doc.getRawContent();
+	}
+
+	/** Format the document and return the new content. If the document
+	 *  doesn't parse, we leave it as is.
+	 */
+	public String format() throws Exception {
+		if ( dirtyFrom==CLEAN || doc.tree==null ) return getContent();
+		int startLine = doc.tokens.get(tokenIndexAt(doc.tokens.getTokens(), dirtyFrom)).getLine();
+		EditScriptEmitter emitter = new EditScriptEmitter(doc);
+		engine.newSession().formatLines(doc, startLine, Integer.MAX_VALUE, emitter);
+		List<EditScriptEmitter.Edit> edits = emitter.getEdits();
+		if ( !edits.isEmpty() ) { // apply as one edit from the first to the end of the last
+			EditScriptEmitter.Edit first = edits.get(0);
+			EditScriptEmitter.Edit last = edits.get(edits.size()-1);
+			String content = getContent();
+			String formatted = EditScriptEmitter.apply(content, edits);
+			int end = last.offset+last.length;
+			int after = content.length()-end;
+			edit(first.offset, end-first.offset, formatted.substring(first.offset, formatted.length()-after));
+		}
+		dirtyFrom = CLEAN;
+		return getContent();
+	}
+
+	/** Replace length chars at offset of {@link #getContent} with replacement */
+	public void edit(int offset, int length, String replacement) throws Exception {
+		String raw = getContent();
+		String newRaw = raw.substring(0, offset)+replacement+raw.substring(offset+length);
+		if ( doc.rawContent==null && replacement.indexOf('\t')<0 ) { // no tabs before or after
+			edit(newRaw, newRaw, offset, length, replacement);
+			return;
+		}
+		// the same edit to the content, whose tabs are expanded; tabs after
+		// the edit on its last line may change width so it runs to the end
+		// of that line, after which the content is as it was
+		String content = doc.content;
+		String newContent = Tool.expandTabs(newRaw, language.indentSize);
+		int start = doc.contentOffset(offset);
+		int stop = content.indexOf('\n', doc.contentOffset(offset+length));
+		if ( stop<0 ) stop = content.length();
+		int newStop = newContent.length()-(content.length()-stop);
+		edit(newRaw, newContent, start, stop-start, newContent.substring(start, newStop));
+	}
+
+	/** Make the edit, in content offsets, that turns our text into newRaw
+	 *  and our content into newContent.
+	 */
+	protected void edit(String newRaw, String newContent, int offset, int length, String replacement)
+		throws Exception
+	{
+		if ( doc.tree==null ) { // nothing to repair
+			reparse(newRaw, 0);
+			return;
+		}
+		int delta = replacement.length()-length;
+		int editStop = offset+replacement.length(); // in newContent
+		List<Token> old = doc.tokens.getTokens();
+
+		ANTLRInputStream input = new ANTLRInputStream(newContent);
+		input.name = doc.fileName;
+		Lexer lexer = Tool.getLexer(language.lexerClass, input);
+		String[] modes = lexer.getModeNames();
+		boolean modal = modes!=null && modes.length>1;
+
+		// relex from the token before the edit as the edit might join it;
+		// stop at a new token starting where an old one did after the edit
+		int a = modal ? 0 : Math.max(0, tokenIndexAt(old, offset)-1);
+		Token first = old.get(a);
+		input.seek(first.getStartIndex());
+		lexer.setLine(first.getLine());
+		lexer.setCharPositionInLine(first.getCharPositionInLine());
+		List<Token> window = new ArrayList<>();
+		int b = old.size();
+		Token sync = null;
+		while ( true ) {
+			Token t = lexer.nextToken();
+			if ( !modal && t.getType()!=Token.EOF && t.getStartIndex()>=editStop ) {
+				int j = tokenIndexStartingAt(old, t.getStartIndex()-delta);
+				if ( j>=0 ) {
+					b = j;
+					sync = t;
+					break;
+				}
+			}
+			window.add(t);
+			if ( t.getType()==Token.EOF ) break;
+		}
+		relexedTokens += window.size();
+
+		// which real tokens changed? old a..b-1 became window
+		List<Integer> oldReal = realTokenIndexes(old, a, b);
+		List<Integer> newReal = realTokenIndexes(window, 0, window.size());
+		int prefix = 0;
+		while ( prefix<oldReal.size() && prefix<newReal.size() &&
+				sameToken(old.get(oldReal.get(prefix)), window.get(newReal.get(prefix))) )
+		{
+			prefix++;
+		}
+		int suffix = 0;
+		while ( suffix<oldReal.size()-prefix && suffix<newReal.size()-prefix &&
+				sameToken(old.get(oldReal.get(oldReal.size()-1-suffix)),
+						  window.get(newReal.get(newReal.size()-1-suffix))) )
+		{
+			suffix++;
+		}
+		boolean damaged = prefix<oldReal.size() || prefix<newReal.size();
+
+		// subtrees enclosing the damage, outermost first, by old token indexes
+		List<ParserRuleContext> enclosing = new ArrayList<>();
+		if ( damaged ) {
+			int before = prefix>0 ? oldReal.get(prefix-1) : doc.tokens.getPreviousRealTokenIndex(a);
+			int after = suffix>0 ? oldReal.get(oldReal.size()-suffix) : doc.tokens.getNextRealTokenIndex(b-1);
+			if ( before>=0 ) getEnclosingContexts(doc.tree, before, after, enclosing);
+		}
+
+		// keep old token objects for unchanged real tokens as the tree holds
+		// them; give them and the tokens after the window their new positions
+		List<Token> tokens = new ArrayList<>(old.size()+window.size()-(b-a));
+		tokens.addAll(old.subList(0, a));
+		for (int i = 0; i<newReal.size(); i++) {
+			boolean same = i<prefix || i>=newReal.size()-suffix;
+			if ( same ) {
+				int o = i<prefix ? oldReal.get(i) : oldReal.get(oldReal.size()-(newReal.size()-i));
+				Token t = window.get(newReal.get(i));
+				window.set(newReal.get(i), moveToken(old.get(o), t.getStartIndex()-old.get(o).getStartIndex(),
+													 t.getLine(), t.getCharPositionInLine()));
+			}
+		}
+		tokens.addAll(window);
+		if ( sync!=null ) {
+			Token syncOld = old.get(b);
+			int syncLine = syncOld.getLine();
+			int lineDelta = sync.getLine()-syncLine;
+			int colDelta = sync.getCharPositionInLine()-syncOld.getCharPositionInLine();
+			for (int j = b; j<old.size(); j++) {
+				Token t = old.get(j);
+				int col = t.getLine()==syncLine ? t.getCharPositionInLine()+colDelta : t.getCharPositionInLine();
+				tokens.add(moveToken(t, delta, t.getLine()+lineDelta, col));
+			}
+		}
+		for (int i = a; i<tokens.size(); i++) {
+			((CommonToken)tokens.get(i)).setTokenIndex(i);
+		}
+
+		int damageStart = offset;
+		if ( damaged ) {
+			ParserRuleContext reparsed = null;
+			for (int i = enclosing.size()-1; i>=0 && reparsed==null; i--) {
+				reparsed = reparse(enclosing.get(i), tokens);
+			}
+			if ( reparsed==null ) {
+				// start formatting at the outermost subtree we tried as a full
+				// parse gives the same tree outside it
+				reparse(newRaw, enclosing.isEmpty() ? 0 : enclosing.get(0).start.getStartIndex());
+				return;
+			}
+			subtreeParses++;
+			damageStart = Math.min(damageStart, ((ParserRuleContext)reparsed.parent).start.getStartIndex());
+		}
+		else {
+			treeUnchanged++;
+		}
+
+		InputDocument updated = new InputDocument(doc.fileName, newContent, language);
+		if ( newRaw.indexOf('\t')>=0 ) updated.rawContent = newRaw;
+		updated.index = doc.index;
+		updated.parser = doc.parser;
+		updated.tokens = new CodeBuffTokenStream(doc.tokens.getTokenSource(), tokens);
+		updated.setTree(doc.tree);
+		doc = updated;
+		dirtyFrom = Math.min(dirtyFrom, damageStart);
+	}
+
+	/** Parse newRaw from scratch; formatting must start from dirty, an
+	 *  offset in its content
+	 */
+	protected void reparse(String newRaw, int dirty) throws Exception {
+		InputDocument updated = Tool.parseText(doc.fileName, newRaw, language);
+		updated.index = doc.index;
+		doc = updated;
+		fullParses++;
+		dirtyFrom = Math.min(dirtyFrom, dirty);
+	}
+
+	/** Parse ctx's tokens, now tokens[ctx.start..ctx.stop], as ctx's rule and
+	 *  swap the new subtree in for ctx. Return the new subtree or null if we
+	 *  can't call the rule on its own or the tokens aren't exactly one.
+	 */
+	protected ParserRuleContext reparse(ParserRuleContext ctx, List<Token> tokens) throws Exception {
+		String ruleName = doc.parser.getRuleNames()[ctx.getRuleIndex()];
+		Method rule;
+		try {
+			rule = language.parserClass.getMethod(ruleName);
+		}
+		catch (NoSuchMethodException nsme) { // rule has args
+			return null;
+		}
+		try {
+			language.parserClass.getDeclaredMethod(ruleName, int.class);
+			return null; // left-recursive; can't know the precedence we were called with
+		}
+		catch (NoSuchMethodException nsme) {
+			// what we want
+		}
+
+		int start = ctx.start.getTokenIndex();
+		int stop = ctx.stop.getTokenIndex();
+		List<Token> span = new ArrayList<>(stop-start+1);
+		for (int i = start; i<=stop; i++) {
+			span.add(new CommonToken(tokens.get(i))); // parser renumbers tokens
+		}
+		ParserRuleContext subtree = parseRule(rule, span, PredictionMode.SLL);
+		if ( subtree==null ) subtree = parseRule(rule, span, PredictionMode.LL);
+		if ( subtree==null ) return null;
+
+		useTokens(subtree, tokens, start);
+		ParserRuleContext parent = (ParserRuleContext)ctx.parent;
+		parent.children.set(parent.children.indexOf(ctx), subtree);
+		subtree.parent = parent;
+		subtree.invokingState = ctx.invokingState;
+		return subtree;
+	}
+
+	/** Parse all of span as rule; null if that's a syntax error */
+	protected ParserRuleContext parseRule(Method rule, List<Token> span, PredictionMode mode) throws Exception {
+		CommonTokenStream stream = new CommonTokenStream(new ListTokenSource(span));
+		Parser parser = Tool.getParser(language.parserClass, stream);
+		parser.setBuildParseTree(true);
+		parser.getInterpreter().setPredictionMode(mode);
+		parser.setErrorHandler(new BailErrorStrategy());
+		parser.removeErrorListeners();
+		ParserRuleContext tree;
+		try {
+			tree = (ParserRuleContext)rule.invoke(parser);
+		}
+		catch (InvocationTargetException ex) {
+			if ( ex.getCause() instanceof ParseCancellationException ) return null;
+			throw ex;
+		}
+		return stream.LA(1)==Token.EOF ? tree : null;
+	}
+
+	/** Point t's nodes at tokens, for which the tokens t was parsed from
+	 *  start at offset.
+	 */
+	public static void useTokens(ParseTree t, List<Token> tokens, int offset) {
+		if ( t instanceof TerminalNodeImpl ) {
+			TerminalNodeImpl leaf = (TerminalNodeImpl)t;
+			leaf.symbol = tokens.get(offset+leaf.symbol.getTokenIndex());
+			return;
+		}
+		ParserRuleContext ctx = (ParserRuleContext)t;
+		if ( ctx.start!=null ) ctx.start = tokens.get(offset+ctx.start.getTokenIndex());
+		if ( ctx.stop!=null ) ctx.stop = tokens.get(offset+ctx.stop.getTokenIndex());
+		for (int i = 0; i<ctx.getChildCount(); i++) {
+			useTokens(ctx.getChild(i), tokens, offset);
+		}
+	}
+
+	/** Add the contexts under ctx, outermost first, whose tokens include
+	 *  before and after.
+	 */
+	public static void getEnclosingContexts(ParserRuleContext ctx, int before, int after,
+											List<ParserRuleContext> enclosing)
+	{
+		for (int i = 0; i<ctx.getChildCount(); i++) {
+			ParseTree child = ctx.getChild(i);
+			if ( !(child instanceof ParserRuleContext) ) continue;
+			ParserRuleContext c = (ParserRuleContext)child;
+			if ( c.start==null || c.stop==null ) continue;
+			if ( c.start.getTokenIndex()>before ) return;
+			if ( c.stop.getTokenIndex()>=after ) {
+				enclosing.add(c);
+				getEnclosingContexts(c, before, after, enclosing);
+				return;
+			}
+		}
+	}
+
+	/** t at a new place. We set the text as it no longer matches t's char
+	 *  stream.
+	 */
+	protected static Token moveToken(Token t, int delta, int line, int charPositionInLine) {
+		CommonToken ct = (CommonToken)t;
+		ct.setText(ct.getText());
+		ct.setStartIndex(ct.getStartIndex()+delta);
+		ct.setStopIndex(ct.getStopIndex()+delta);
+		ct.setLine(line);
+		ct.setCharPositionInLine(charPositionInLine);
+		return ct;
+	}
+
+	protected static boolean sameToken(Token a, Token b) {
+		return a.getType()==b.getType() && a.getText().equals(b.getText());
+	}
+
+	protected static List<Integer> realTokenIndexes(List<Token> tokens, int from, int to) {
+		List<Integer> real = new ArrayList<>();
+		for (int i = from; i<to; i++) {
+			if ( tokens.get(i).getChannel()==Token.DEFAULT_CHANNEL ) real.add(i);
+		}
+		return real;
+	}
+
+	/** Index of the last token starting at or before offset */
+	public static int tokenIndexAt(List<Token> tokens, int offset) {
+		int lo = 0, hi = tokens.size()-1;
+		while ( lo<hi ) {
+			int mid = (lo+hi+1)>>>1;
+			if ( tokens.get(mid).getStartIndex()<=offset ) lo = mid;
+			else hi = mid-1;
+		}
+		return lo;
+	}
+
+	/** Index of the token starting at offset; -1 if none */
+	public static int tokenIndexStartingAt(List<Token> tokens, int offset) {
+		int i = tokenIndexAt(tokens, offset);
+		return tokens.get(i).getStartIndex()==offset ? i : -1;
+	}
+}
@@ -2,30 +2,51 @@ package org.antlr.codebuff;
 
 import org.antlr.codebuff.misc.CodeBuffTokenStream;
 import org.antlr.codebuff.misc.LangDescriptor;
+import org.antlr.codebuff.misc.LineIndex;
 import org.antlr.v4.runtime.Parser;
 import org.antlr.v4.runtime.ParserRuleContext;
-import org.antlr.v4.runtime.Token;
-import org.antlr.v4.runtime.tree.TerminalNode;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 public class InputDocument {
 	public LangDescriptor language;
 	public String fileName;
 	public String content;
+	/** The text as in the file, if it had tabs, which content has expanded;
+	 *  null if the same as content. See {@link #getRawContent}.
+	 */
+	public String rawContent;
+	/** Offset in content of each tab of rawContent, how many spaces it
+	 *  became, and the extra chars of the tabs before it; built on first use
+	 */
+	protected int[] tabOffsets;
+	protected int[] tabWidths;
+	protected int[] tabExtra;
 	public List<String> lines; // used for debugging; a cache of lines in this.content
 	public int index;
 	public ParserRuleContext tree;
-	public Map<Token, TerminalNode> tokenToNodeMap = null;
+	protected FlatTree flatTree;
+	protected LineIndex lineIndex;
+	protected MatchingSymbols matchingSymbols;
 
 	public Parser parser;
 	public CodeBuffTokenStream tokens;
 
-	public static InputDocument dup(InputDocument old) throws Exception {
-		// reparse to get new tokens, tree
-		return Tool.parse(old.fileName, old.language);
+	/** A copy of old whose token positions we can change, such as to
+	 *  format it. We copy only the tokens; the tree, flat tree and parser
+	 *  are old's so tree nodes hold old's tokens. Get the copy's token for
+	 *  one of those by its token index. Needs no file behind old.
+	 */
+	public static InputDocument dup(InputDocument old) {
+		InputDocument doc = new InputDocument(old.fileName, old.content, old.language);
+		doc.rawContent = old.rawContent;
+		doc.index = old.index;
+		doc.parser = old.parser;
+		doc.tokens = old.tokens.copy();
+		doc.tree = old.tree;
+		doc.flatTree = old.getFlatTree();
+		return doc;
 	}
 
 	public InputDocument(String fileName, String content, LangDescriptor language) {
@@ -34,6 +55,90 @@ public class InputDocument {
 		this.language = language;
 	}
 
+	/** The text as in the file, with its tabs */
+	public String getRawContent() {
+		return rawContent!=null ? rawContent : content;
+	}
+
+	/** The offset in {@link #getRawContent} of char offset in content. An
+	 *  offset within the spaces of an expanded tab is that of the tab.
+	 */
+	public int rawOffset(int offset) {
+		if ( rawContent==null ) return offset;
+		indexTabs();
+		int lo = 0, hi = tabOffsets.length-1, t = -1; // last tab at or before offset
+		while ( lo<=hi ) {
+			int mid = (lo+hi)>>>1;
+			if ( tabOffsets[mid]<=offset ) {
+				t = mid;
+				lo = mid+1;
+			}
+			else {
+				hi = mid-1;
+			}
+		}
+		if ( t<0 ) return offset;
+		int tabRawOffset = tabOffsets[t]-tabExtra[t];
+		if ( offset<tabOffsets[t]+tabWidths[t] ) return tabRawOffset;
+		return tabRawOffset+1+offset-(tabOffsets[t]+tabWidths[t]);
+	}
+
+	/** The offset in content of char offset in {@link #getRawContent};
+	 *  the inverse of {@link #rawOffset}. A tab is at the first of its spaces.
+	 */
+	public int contentOffset(int rawOffset) {
+		if ( rawContent==null ) return rawOffset;
+		indexTabs();
+		int lo = 0, hi = tabOffsets.length-1, t = -1; // last tab before rawOffset
+		while ( lo<=hi ) {
+			int mid = (lo+hi)>>>1;
+			if ( tabOffsets[mid]-tabExtra[mid]<rawOffset ) {
+				t = mid;
+				lo = mid+1;
+			}
+			else {
+				hi = mid-1;
+			}
+		}
+		if ( t<0 ) return rawOffset;
+		return rawOffset+tabExtra[t]+tabWidths[t]-1;
+	}
+
+	/** The raw text of content chars start..stop-1 */
+	public String getRawText(int start, int stop) {
+		return getRawContent().substring(rawOffset(start), rawOffset(stop));
+	}
+
+	/** Find the tabs of rawContent as {@link Tool#expandTabs} expands them */
+	protected synchronized void indexTabs() {
+		if ( tabOffsets!=null ) return;
+		int n = Tool.count(rawContent, '\t');
+		int[] offsets = new int[n];
+		int[] widths = new int[n];
+		int[] extra = new int[n];
+		int tabSize = language.indentSize;
+		int col = 0, offset = 0, t = 0, extraSoFar = 0;
+		for (int i = 0; i<rawContent.length(); i++) {
+			char c = rawContent.charAt(i);
+			if ( c=='\t' ) {
+				int w = tabSize-col%tabSize;
+				offsets[t] = offset;
+				widths[t] = w;
+				extra[t++] = extraSoFar;
+				extraSoFar += w-1;
+				col += w;
+				offset += w;
+			}
+			else {
+				col = c=='\n' ? 0 : col+1;
+				offset++;
+			}
+		}
+		tabWidths = widths;
+		tabExtra = extra;
+		tabOffsets = offsets;
+	}
+
 	public String getLine(int line) {
 		if ( lines==null ) {
 			lines = Arrays.asList(content.split("\n"));
@@ -46,9 +151,36 @@ public class InputDocument {
 
 	public void setTree(ParserRuleContext root) {
 		this.tree = root;
-		if ( root!=null ) {
-			tokenToNodeMap = Trainer.indexTree(root);
+		this.flatTree = null;
+		this.matchingSymbols = null;
+	}
+
+	/** The tree as flat arrays for computing features; built on first use */
+	public synchronized FlatTree getFlatTree() {
+		if ( flatTree==null && tree!=null ) {
+			flatTree = new FlatTree(tree, tokens.size());
+		}
+		return flatTree;
+	}
+
+	/** Matching left symbol of each token per corpus's token pairs; built
+	 *  on first use and again if used with a corpus having other pairs.
+	 */
+	public synchronized MatchingSymbols getMatchingSymbols(Corpus corpus) {
+		if ( matchingSymbols==null ||
+			 matchingSymbols.pairTable!=corpus.getPairTable(parser.getRuleIndexMap()) )
+		{
+			matchingSymbols = new MatchingSymbols(corpus, this);
+		}
+		return matchingSymbols;
+	}
+
+	/** First real token on each line; built on first use */
+	public synchronized LineIndex getLineIndex() {
+		if ( lineIndex==null && tokens!=null ) {
+			lineIndex = new LineIndex(tokens.getTokens());
 		}
+		return lineIndex;
 	}
 
 	@Override
@@ -0,0 +1,101 @@
+package org.antlr.codebuff;
+
+import org.antlr.codebuff.misc.CodeBuffTokenStream;
+import org.antlr.codebuff.walkers.CollectTokenPairs;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.Vocabulary;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** The matching left symbol of each token in a document, such as the '('
+ *  for a ')', per a corpus's token pairs. We find them all in one pass over
+ *  the tree so the matching-symbol features are array reads; same answers
+ *  as {@link Trainer#getMatchingLeftSymbol}. A formatter's copy of the
+ *  document shares our tree so it looks up its own tokens by index.
+ */
+public class MatchingSymbols {
+	/** The corpus pair table we were built from */
+	public final Map<Integer, int[]> pairTable;
+	/** Matching left token for each token index; null if none */
+	public final Token[] matchingLeft;
+
+	public MatchingSymbols(Corpus corpus, InputDocument doc) {
+		pairTable = corpus.getPairTable(doc.parser.getRuleIndexMap());
+		matchingLeft = new Token[doc.tokens.size()];
+		if ( pairTable==null || doc.tree==null ) return;
+		FlatTree tree = doc.getFlatTree();
+		if ( tree.hasMissingTokens ) {
+			// conjured tokens have no index so "to the left" isn't child order; do it the slow way
+			for (int i = 0; i<matchingLeft.length; i++) {
+				TerminalNode leaf = tree.getLeaf(i);
+				if ( leaf==null ) continue;
+				TerminalNode left = Trainer.getMatchingLeftSymbol(corpus, doc, leaf);
+				matchingLeft[i] = left!=null ? left.getSymbol() : null;
+			}
+			return;
+		}
+		Vocabulary vocab = doc.parser.getVocabulary();
+		for (int n = 0; n<tree.size; n++) {
+			int[] pairs = tree.rulealt[n]!=-1 ? pairTable.get(tree.rulealt[n]) : null;
+			if ( pairs!=null ) {
+				matchChildren((ParserRuleContext)tree.nodes[n], pairs, vocab);
+			}
+		}
+	}
+
+	/** Match each token child of parent with the last token to its left of
+	 *  the type {@link CollectTokenPairs#getMatchingLeftTokenType} picks
+	 *  from the pairs whose left type is among parent's tokens.
+	 */
+	protected void matchChildren(ParserRuleContext parent, int[] pairs, Vocabulary vocab) {
+		Set<Integer> tokenTypes = new HashSet<>();
+		for (int c = 0; c<parent.getChildCount(); c++) {
+			ParseTree child = parent.getChild(c);
+			if ( child instanceof TerminalNode ) tokenTypes.add(((TerminalNode)child).getSymbol().getType());
+		}
+		Map<Integer, Token> lastOfType = new HashMap<>();
+		List<Integer> viableMatchingLeftTokenTypes = new ArrayList<>();
+		for (int c = 0; c<parent.getChildCount(); c++) {
+			ParseTree child = parent.getChild(c);
+			if ( !(child instanceof TerminalNode) ) continue;
+			Token curToken = ((TerminalNode)child).getSymbol();
+			if ( !(child instanceof ErrorNode) ) {
+				viableMatchingLeftTokenTypes.clear();
+				for (int p = 0; p<pairs.length; p += 2) {
+					if ( pairs[p+1]==curToken.getType() && tokenTypes.contains(pairs[p]) ) {
+						viableMatchingLeftTokenTypes.add(pairs[p]);
+					}
+				}
+				if ( !viableMatchingLeftTokenTypes.isEmpty() ) {
+					int matchingLeftTokenType =
+						CollectTokenPairs.getMatchingLeftTokenType(curToken, viableMatchingLeftTokenTypes, vocab);
+					matchingLeft[curToken.getTokenIndex()] = lastOfType.get(matchingLeftTokenType);
+				}
+			}
+			lastOfType.put(curToken.getType(), curToken);
+		}
+	}
+
+	public Token getMatchingLeftToken(int tokenIndex) {
+		return matchingLeft[tokenIndex];
+	}
+
+	/** The token of tokens at the index of tokenIndex's matching left
+	 *  token, such as from a copy of the document whose positions we're
+	 *  setting as we format; null if none.
+	 */
+	public Token getMatchingLeftToken(int tokenIndex, CodeBuffTokenStream tokens) {
+		Token left = matchingLeft[tokenIndex];
+		if ( left==null || left.getTokenIndex()<0 ) return left; // conjured tokens aren't in any stream
+		return tokens.get(left.getTokenIndex());
+	}
+}
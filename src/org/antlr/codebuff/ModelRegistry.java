@@ -0,0 +1,267 @@
+package org.antlr.codebuff;
+
+import org.antlr.codebuff.misc.LangDescriptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.ToLongFunction;
+
+import static org.antlr.codebuff.Tool.getFilenames;
+
+/** Trained corpora for many languages and styles shared by all threads of
+ *  a formatting process. Models load lazily on first request; concurrent
+ *  requests for the same model wait for a single load. When the models we
+ *  hold exceed maxResidentBytes, we drop the least recently used ones.
+ *  A dropped model stays usable by anybody still holding it; we just
+ *  forget about it and load it again if somebody asks.
+ *
+ *  Models are keyed by language name, a fingerprint of what we train or
+ *  load from, and any settings that change the model. Use
+ *  {@link #get(LangDescriptor)} to train from language.corpusDir or
+ *  {@link #get(LangDescriptor, String)} to read a saved model file; both
+ *  notice when the files change.
+ */
+public class ModelRegistry {
+	public static class Key {
+		public final String language;
+		public final String fingerprint;
+		public final String settings;
+
+		public Key(LangDescriptor language, String fingerprint, String settings) {
+			this.language = language.name;
+			this.fingerprint = fingerprint;
+			this.settings = settings;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if ( this==o ) return true;
+			if ( !(o instanceof Key) ) return false;
+			Key other = (Key)o;
+			return language.equals(other.language) &&
+				fingerprint.equals(other.fingerprint) &&
+				settings.equals(other.settings);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(language, fingerprint, settings);
+		}
+
+		@Override
+		public String toString() {
+			return language+"@"+fingerprint.substring(0, Math.min(8, fingerprint.length()))+
+				(settings.isEmpty() ? "" : "["+settings+"]");
+		}
+	}
+
+	public interface Loader {
+		Corpus load() throws Exception;
+	}
+
+	protected static class Entry {
+		public final Key key;
+		public final FutureTask<Corpus> model;
+		public long residentBytes = -1; // -1 until loaded
+		/** Size of the model, measured before waiting callers can use it */
+		public long loadedBytes;
+
+		public Entry(Key key, Loader loader, ToLongFunction<Corpus> sizer) {
+			this.key = key;
+			this.model = new FutureTask<>(() -> {
+				Corpus corpus = loader.load();
+				loadedBytes = sizer.applyAsLong(corpus);
+				return corpus;
+			});
+		}
+	}
+
+	public final long maxResidentBytes;
+	/** How we measure a loaded model */
+	public final ToLongFunction<Corpus> sizer;
+
+	/** In access order so the first entry is least recently used */
+	protected final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	protected long hits;
+	protected long misses;
+	protected long loads;
+	protected long loadFailures;
+	protected long evictions;
+	protected long totalLoadNanos;
+	protected long residentBytes;
+
+	public ModelRegistry(long maxResidentBytes) {
+		this(maxResidentBytes, corpus -> CorpusFootprint.of(corpus, false).total());
+	}
+
+	public ModelRegistry(long maxResidentBytes, ToLongFunction<Corpus> sizer) {
+		this.maxResidentBytes = maxResidentBytes;
+		this.sizer = sizer;
+	}
+
+	/** Train from language.corpusDir */
+	public Corpus get(LangDescriptor language) throws Exception {
+		List<String> files = getFilenames(new File(language.corpusDir), language.fileRegex);
+		Key key = new Key(language, fingerprint(files), "");
+		return get(key, () -> {
+			Corpus corpus = new Corpus(language.corpusDir, language);
+			corpus.train();
+			return corpus;
+		});
+	}
+
+	/** Read a model saved with {@link Corpus#writeModel} */
+	public Corpus get(LangDescriptor language, String modelFileName) throws Exception {
+		Key key = new Key(language, fingerprint(Collections.singletonList(modelFileName)), "model");
+		return get(key, () -> Corpus.readModel(modelFileName, language));
+	}
+
+	/** Return the model for key, calling loader if we don't have it. If
+	 *  another thread is already loading it, wait for that load. If the
+	 *  load fails, every waiting caller gets the failure and the next
+	 *  request tries again.
+	 */
+	public Corpus get(Key key, Loader loader) throws Exception {
+		Entry entry;
+		boolean mustLoad = false;
+		synchronized ( this ) {
+			entry = entries.get(key); // marks it most recently used
+			if ( entry==null ) {
+				entry = new Entry(key, loader, sizer);
+				entries.put(key, entry);
+				mustLoad = true;
+				misses++;
+			}
+			else {
+				hits++;
+			}
+		}
+		if ( mustLoad ) {
+			long start = System.nanoTime();
+			entry.model.run();
+			long elapsed = System.nanoTime()-start;
+			Corpus corpus = null;
+			try {
+				corpus = entry.model.get();
+			}
+			catch (ExecutionException ee) {
+				// leave corpus null
+			}
+			long bytes = corpus!=null ? entry.loadedBytes : 0;
+			synchronized ( this ) {
+				totalLoadNanos += elapsed;
+				if ( corpus!=null ) {
+					loads++;
+					if ( entries.get(key)==entry ) { // not dropped by clear() while we loaded
+						entry.residentBytes = bytes;
+						residentBytes += bytes;
+						evict(key);
+					}
+				}
+				else {
+					loadFailures++;
+					entries.remove(key, entry);
+				}
+			}
+		}
+		try {
+			return entry.model.get();
+		}
+		catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if ( cause instanceof Exception ) throw (Exception)cause;
+			throw ee;
+		}
+	}
+
+	/** Drop least recently used loaded models, except keep, until we fit */
+	protected void evict(Key keep) {
+		Iterator<Entry> it = entries.values().iterator();
+		while ( residentBytes>maxResidentBytes && it.hasNext() ) {
+			Entry e = it.next();
+			if ( e.key.equals(keep) || e.residentBytes<0 ) continue; // still loading
+			it.remove();
+			residentBytes -= e.residentBytes;
+			evictions++;
+		}
+	}
+
+	/** Forget all models */
+	public synchronized void clear() {
+		for (Entry e : entries.values()) {
+			if ( e.residentBytes>=0 ) residentBytes -= e.residentBytes;
+		}
+		entries.clear();
+	}
+
+	/** Keys of loaded models from least to most recently used */
+	public synchronized List<Key> getResidentKeys() {
+		List<Key> keys = new ArrayList<>();
+		for (Entry e : entries.values()) {
+			if ( e.residentBytes>=0 ) keys.add(e.key);
+		}
+		return keys;
+	}
+
+	public synchronized long getResidentBytes() { return residentBytes; }
+	public synchronized long getHits() { return hits; }
+	public synchronized long getMisses() { return misses; }
+	public synchronized long getLoads() { return loads; }
+	public synchronized long getLoadFailures() { return loadFailures; }
+	public synchronized long getEvictions() { return evictions; }
+
+	public synchronized double getHitRate() {
+		long requests = hits+misses;
+		return requests>0 ? hits/(double)requests : 0.0;
+	}
+
+	/** Average time to load a model, including failed loads */
+	public synchronized double getAverageLoadTimeMs() {
+		long n = loads+loadFailures;
+		return n>0 ? totalLoadNanos/1_000_000.0/n : 0.0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d models, %.1fMB of %.1fMB; hit rate %.3f (%d hits, %d misses); "+
+		                     "%d loads, %d failed, avg %.0fms; %d evictions",
+		                     getResidentKeys().size(), residentBytes/1024.0/1024.0, maxResidentBytes/1024.0/1024.0,
+		                     getHitRate(), hits, misses, loads, loadFailures, getAverageLoadTimeMs(), evictions);
+	}
+
+	/** Hash names, sizes and modification times of files so we notice
+	 *  edits without reading every file on every request.
+	 */
+	public static String fingerprint(List<String> fileNames) throws IOException {
+		List<String> sorted = new ArrayList<>(fileNames);
+		Collections.sort(sorted);
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException nsae) {
+			throw new IOException(nsae);
+		}
+		for (String fileName : sorted) {
+			File f = new File(fileName);
+			if ( !f.exists() ) throw new IOException("no such file "+fileName);
+			digest.update((f.getAbsolutePath()+"\0"+f.length()+"\0"+f.lastModified()+"\n").getBytes("UTF-8"));
+		}
+		StringBuilder buf = new StringBuilder();
+		for (byte b : digest.digest()) {
+			buf.append(String.format("%02x", b));
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,26 @@
+package org.antlr.codebuff;
+
+/** A neighbor found by an {@link ExemplarShard}. The coordinator doesn't
+ *  have the exemplars so the neighbor carries its category along with
+ *  its index into the full list of exemplars.
+ */
+public class ShardNeighbor extends Neighbor {
+	public final int category;
+
+	public ShardNeighbor(double distance, int corpusVectorIndex, int category) {
+		super(null, distance, corpusVectorIndex);
+		this.category = category;
+	}
+
+	/** Order by distance then exemplar index, which is the order kNNClassifier.kNN() yields */
+	public static int compare(Neighbor a, Neighbor b) {
+		int c = Double.compare(a.distance, b.distance);
+		if ( c!=0 ) return c;
+		return Integer.compare(a.corpusVectorIndex, b.corpusVectorIndex);
+	}
+
+	@Override
+	public String toString() {
+		return "("+distance+","+corpusVectorIndex+","+category+")";
+	}
+}
@@ -0,0 +1,24 @@
+package org.antlr.codebuff;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/** How a {@link ShardedKNNClassifier} talks to an {@link ExemplarShard},
+ *  which might be in this JVM or another one. Every call takes a batch
+ *  of feature vectors to amortize the cost of a round trip.
+ */
+public interface ShardTransport extends Closeable {
+	/** For each unknown, return {num exact matches, num matches with same
+	 *  previous and current rule} in the shard's context indexes.
+	 */
+	int[][] countCandidates(FeatureMetaData[] FEATURES, List<int[]> unknowns) throws IOException;
+
+	/** For each unknown, return up to k nearest exemplars in the shard
+	 *  within distanceThreshold, searching the exemplars picked by
+	 *  modes[i] (one of the kNNClassifier.MODE_* values).
+	 */
+	ShardNeighbor[][] nearest(FeatureMetaData[] FEATURES, List<int[]> unknowns,
+	                          int k, double distanceThreshold, int[] modes)
+		throws IOException;
+}
@@ -0,0 +1,182 @@
+package org.antlr.codebuff;
+
+import org.antlr.codebuff.validation.FeatureVectorAsObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import static org.antlr.codebuff.Trainer.FEATURES_HPOS;
+import static org.antlr.codebuff.Trainer.FEATURES_INJECT_WS;
+import static org.antlr.codebuff.Trainer.MAX_CONTEXT_DIFF_THRESHOLD2;
+
+/** A kNN classifier whose exemplars live in {@link ExemplarShard}s, possibly
+ *  in other JVMs. Classifies exactly like {@link kNNClassifier} on the full
+ *  corpus.
+ *
+ *  kNNClassifier sorts candidates stably by distance and stops after k
+ *  exact matches, which means it returns the first k candidates ordered
+ *  by (distance, exemplar index). Each shard returns its own first k in
+ *  that order and we merge them. Which candidates to consider depends on
+ *  how many exact and same-context matches there are in the whole corpus,
+ *  so we first ask the shards for their counts (the plan round) then for
+ *  their neighbors (the search round).
+ *
+ *  Each round sends one request per shard for a whole batch of feature
+ *  vectors; use {@link #classify(int, List, double)} to classify many
+ *  at once. The per-vector methods inherited from kNNClassifier work too
+ *  but pay for two round trips per vector.
+ */
+public class ShardedKNNClassifier extends kNNClassifier {
+	public final List<ShardTransport> shards;
+	/** Send requests to shards in parallel if not null */
+	public ExecutorService pool;
+
+	public ShardedKNNClassifier(Corpus corpus, FeatureMetaData[] FEATURES,
+	                            List<ShardTransport> shards, ExecutorService pool)
+	{
+		super(corpus, FEATURES, null);
+		if ( FEATURES!=FEATURES_INJECT_WS && FEATURES!=FEATURES_HPOS ) {
+			throw new IllegalArgumentException("shards only support the standard ws and hpos feature sets");
+		}
+		this.shards = shards;
+		this.pool = pool;
+	}
+
+	/** Classify a batch of feature vectors, using and filling the cache */
+	public int[] classify(int k, List<int[]> unknowns, double distanceThreshold) {
+		int[] categories = new int[unknowns.size()];
+		// group unknowns with the same features; classify each group once
+		Map<FeatureVectorAsObject, List<Integer>> misses = new LinkedHashMap<>();
+		for (int i = 0; i<unknowns.size(); i++) {
+			FeatureVectorAsObject key = new FeatureVectorAsObject(unknowns.get(i), FEATURES);
+			Integer catI = classifyCache.get(key);
+			nClassifyCalls.increment();
+			if ( catI!=null ) {
+				nClassifyCacheHits.increment();
+				categories[i] = catI;
+				continue;
+			}
+			List<Integer> same = misses.get(key);
+			if ( same==null ) {
+				same = new ArrayList<>();
+				misses.put(key, same);
+			}
+			same.add(i);
+		}
+		if ( misses.isEmpty() ) return categories;
+
+		List<FeatureVectorAsObject> keys = new ArrayList<>(misses.keySet());
+		List<int[]> queries = new ArrayList<>();
+		for (FeatureVectorAsObject key : keys) {
+			queries.add(unknowns.get(misses.get(key).get(0)));
+		}
+
+		int[] cats = new int[queries.size()];
+		List<Integer> retries = new ArrayList<>();
+		Neighbor[][] kNNs = kNN(queries, k, distanceThreshold);
+		for (int i = 0; i<queries.size(); i++) {
+			cats[i] = getCategoryWithMaxValue(getCategoryToSimilarityMap(kNNs[i], k, Y));
+			if ( cats[i]==-1 ) retries.add(i);
+		}
+		if ( !retries.isEmpty() ) {
+			// try with less strict match threshold to get some indication of alignment
+			List<int[]> retryQueries = new ArrayList<>();
+			for (int i : retries) {
+				retryQueries.add(queries.get(i));
+			}
+			kNNs = kNN(retryQueries, k, MAX_CONTEXT_DIFF_THRESHOLD2);
+			for (int r = 0; r<retries.size(); r++) {
+				cats[retries.get(r)] = getCategoryWithMaxValue(getCategoryToSimilarityMap(kNNs[r], k, Y));
+			}
+		}
+
+		for (int i = 0; i<keys.size(); i++) {
+			classifyCache.put(new FeatureVectorAsObject(queries.get(i).clone(), FEATURES), cats[i]); // callers may reuse unknowns
+			for (int j : misses.get(keys.get(i))) {
+				categories[j] = cats[i];
+			}
+		}
+		return categories;
+	}
+
+	@Override
+	public Neighbor[] kNN(int[] unknown, int k, double distanceThreshold) {
+		return kNN(Collections.singletonList(unknown), k, distanceThreshold)[0];
+	}
+
+	/** Find the k nearest neighbors of each unknown across all shards */
+	public Neighbor[][] kNN(List<int[]> unknowns, int k, double distanceThreshold) {
+		int n = unknowns.size();
+		int[] modes = new int[n];
+		if ( distanceThreshold==MAX_CONTEXT_DIFF_THRESHOLD2 ) { // couldn't find anything, open it all up.
+			Arrays.fill(modes, MODE_ALL);
+		}
+		else {
+			List<int[][]> shardCounts = fanOut(shard -> shard.countCandidates(FEATURES, unknowns));
+			for (int i = 0; i<n; i++) {
+				int exact = 0;
+				int context = 0;
+				for (int[][] counts : shardCounts) {
+					exact += counts[i][0];
+					context += counts[i][1];
+				}
+				modes[i] = getCandidateMode(FEATURES, exact, context, k);
+			}
+		}
+
+		List<ShardNeighbor[][]> shardKNNs = fanOut(shard -> shard.nearest(FEATURES, unknowns, k, distanceThreshold, modes));
+		Neighbor[][] kNNs = new Neighbor[n][];
+		for (int i = 0; i<n; i++) {
+			List<ShardNeighbor> all = new ArrayList<>();
+			for (ShardNeighbor[][] kNN : shardKNNs) {
+				all.addAll(Arrays.asList(kNN[i]));
+			}
+			kNNs[i] = nearest(all.toArray(new ShardNeighbor[all.size()]), k);
+		}
+		return kNNs;
+	}
+
+	/** Return the first k neighbors ordered by distance then exemplar index */
+	public static ShardNeighbor[] nearest(ShardNeighbor[] neighbors, int k) {
+		Arrays.sort(neighbors, ShardNeighbor::compare);
+		return Arrays.copyOfRange(neighbors, 0, Math.min(k, neighbors.length));
+	}
+
+	/** Neighbors from shards carry their category since we don't have Y */
+	@Override
+	public int getCategory(Neighbor neighbor, List<Integer> Y) {
+		return ((ShardNeighbor)neighbor).category;
+	}
+
+	public interface ShardRequest<T> {
+		T send(ShardTransport shard) throws IOException;
+	}
+
+	/** Send request to all shards and return their responses in shard order */
+	protected <T> List<T> fanOut(ShardRequest<T> request) {
+		List<Callable<T>> jobs = new ArrayList<>();
+		for (ShardTransport shard : shards) {
+			jobs.add(() -> request.send(shard));
+		}
+		try {
+			return Corpus.invokeInOrder(pool, jobs);
+		}
+		catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		catch (RuntimeException re) {
+			throw re;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
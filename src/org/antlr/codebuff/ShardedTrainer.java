@@ -0,0 +1,388 @@
+package org.antlr.codebuff;
+
+import org.antlr.codebuff.misc.LangDescriptor;
+import org.antlr.codebuff.walkers.CollectSiblingLists;
+import org.antlr.codebuff.walkers.CollectTokenPairs;
+import org.antlr.v4.runtime.Vocabulary;
+import org.antlr.v4.runtime.misc.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.antlr.codebuff.Tool.getFilenames;
+import static org.antlr.codebuff.Tool.getLexer;
+import static org.antlr.codebuff.Tool.getParser;
+import static org.antlr.codebuff.Tool.languages;
+
+/** Build a model file for a corpus too big to train in one JVM by
+ *  splitting the corpus file list into shards, each trained by a separate
+ *  local worker process. The result is the same model we'd get from
+ *  {@link Corpus#train} on all files.
+ *
+ *  Feature vectors depend on token pairs collected from all documents
+ *  so the build takes two rounds:
+ *
+ *  1. collect: each worker walks its shard to collect token pairs and
+ *     list stats; merge-pairs combines them in shard order.
+ *  2. train: each worker computes exemplars for its shard using the
+ *     merged aggregates; merge appends them in shard order, shuffles,
+ *     and writes the model.
+ *
+ *  The build command runs everything:
+ *
+ *      java org.antlr.codebuff.ShardedTrainer build -lang java_guava -shards 4 \
+ *          [-corpus dir] [-workers n] [-workdir dir] [-heap 2g] -o guava.model
+ *
+ *  and runs the other commands as worker processes:
+ *
+ *      collect     -lang L -files shard-file-list -o pairs-file
+ *      merge-pairs -lang L -o aggregates-file pairs-file...
+ *      train       -lang L -files shard-file-list -aggregates aggregates-file -o exemplars-file
+ *      merge       -lang L -aggregates aggregates-file -o model-file exemplars-file...
+ *
+ *  Format with the model using {@link Tool}'s -model option.
+ */
+public class ShardedTrainer {
+	public static final String PAIRS_FILE_FORMAT = "codebuff token pairs v1";
+	public static final String AGGREGATES_FILE_FORMAT = "codebuff aggregates v1";
+	public static final String EXEMPLARS_FILE_FORMAT = "codebuff exemplars v1";
+
+	public static void main(String[] args) throws Exception {
+		if ( args.length<1 ) {
+			System.err.println("org.antlr.codebuff.ShardedTrainer build -lang lang-name -shards n \\\n"+
+			                   "   [-corpus root-dir-of-samples] [-workers n] [-workdir dir] [-heap worker-max-heap] -o model-file");
+			System.exit(1);
+		}
+		String command = args[0];
+		String langName = null;
+		String corpusDir = null;
+		String filesFileName = null;
+		String aggregatesFileName = null;
+		String outputFileName = null;
+		String workDir = null;
+		String workerHeap = null;
+		int numShards = 2;
+		int numWorkers = -1;
+		int i = 1;
+		while ( i<args.length && args[i].startsWith("-") ) {
+			switch ( args[i] ) {
+				case "-lang" :
+					i++;
+					langName = args[i++];
+					break;
+				case "-corpus" :
+					i++;
+					corpusDir = args[i++];
+					break;
+				case "-files" :
+					i++;
+					filesFileName = args[i++];
+					break;
+				case "-aggregates" :
+					i++;
+					aggregatesFileName = args[i++];
+					break;
+				case "-shards" :
+					i++;
+					numShards = Integer.parseInt(args[i++]);
+					break;
+				case "-workers" :
+					i++;
+					numWorkers = Integer.parseInt(args[i++]);
+					break;
+				case "-workdir" :
+					i++;
+					workDir = args[i++];
+					break;
+				case "-heap" :
+					i++;
+					workerHeap = args[i++];
+					break;
+				case "-o" :
+					i++;
+					outputFileName = args[i++];
+					break;
+				default :
+					System.err.println("Unknown option "+args[i]);
+					System.exit(1);
+			}
+		}
+		List<String> inputFileNames = Arrays.asList(args).subList(i, args.length);
+
+		LangDescriptor language = getLanguage(langName);
+		if ( language==null ) {
+			System.err.println("Language "+langName+" unknown");
+			System.exit(1);
+		}
+		if ( outputFileName==null ) {
+			System.err.println("Missing -o output file");
+			System.exit(1);
+		}
+		switch ( command ) {
+			case "build" :
+				if ( corpusDir==null ) corpusDir = language.corpusDir;
+				if ( numWorkers<=0 ) numWorkers = numShards;
+				File dir = workDir!=null ? new File(workDir) : Files.createTempDirectory("codebuff").toFile();
+				build(language, corpusDir, numShards, numWorkers, dir, workerHeap, outputFileName);
+				break;
+			case "collect" :
+				collect(language, readFileList(filesFileName), outputFileName);
+				break;
+			case "merge-pairs" :
+				mergePairs(language, inputFileNames, outputFileName);
+				break;
+			case "train" :
+				train(language, readFileList(filesFileName), aggregatesFileName, outputFileName);
+				break;
+			case "merge" :
+				merge(language, aggregatesFileName, inputFileNames, outputFileName);
+				break;
+			default :
+				System.err.println("Unknown command "+command);
+				System.exit(1);
+		}
+	}
+
+	public static LangDescriptor getLanguage(String name) {
+		for (LangDescriptor language : languages) {
+			if ( language.name.equals(name) ) {
+				return language;
+			}
+		}
+		return null;
+	}
+
+	public static void build(LangDescriptor language, String corpusDir,
+	                         int numShards, int numWorkers,
+	                         File workDir, String workerHeap,
+	                         String modelFileName)
+		throws Exception
+	{
+		List<String> allFiles = getFilenames(new File(corpusDir), language.fileRegex);
+		List<List<String>> shards = Corpus.partition(allFiles, numShards);
+		workDir.mkdirs();
+		System.out.printf("Building %s model from %d files in %d shards; work dir %s\n",
+		                  language.name, allFiles.size(), shards.size(), workDir);
+
+		List<List<String>> collectCommands = new ArrayList<>();
+		List<List<String>> trainCommands = new ArrayList<>();
+		List<String> pairsFileNames = new ArrayList<>();
+		List<String> exemplarsFileNames = new ArrayList<>();
+		String aggregatesFileName = new File(workDir, "aggregates").getPath();
+		for (int i = 0; i<shards.size(); i++) {
+			String filesFileName = new File(workDir, "shard"+i+".files").getPath();
+			String pairsFileName = new File(workDir, "shard"+i+".pairs").getPath();
+			String exemplarsFileName = new File(workDir, "shard"+i+".exemplars").getPath();
+			Files.write(new File(filesFileName).toPath(), shards.get(i));
+			pairsFileNames.add(pairsFileName);
+			exemplarsFileNames.add(exemplarsFileName);
+			collectCommands.add(workerCommand(workerHeap, "collect", "-lang", language.name,
+			                                  "-files", filesFileName, "-o", pairsFileName));
+			trainCommands.add(workerCommand(workerHeap, "train", "-lang", language.name,
+			                                "-files", filesFileName, "-aggregates", aggregatesFileName,
+			                                "-o", exemplarsFileName));
+		}
+
+		long start = System.nanoTime();
+		runWorkers(collectCommands, numWorkers);
+		// barrier: can't compute features until we have pairs from all shards
+		mergePairs(language, pairsFileNames, aggregatesFileName);
+		long round1 = System.nanoTime();
+		runWorkers(trainCommands, numWorkers);
+		merge(language, aggregatesFileName, exemplarsFileNames, modelFileName);
+		long stop = System.nanoTime();
+		System.out.printf("Wrote %s; collect round %dms, train round %dms\n",
+		                  modelFileName, (round1-start)/1_000_000, (stop-round1)/1_000_000);
+	}
+
+	/** Round 1 worker: collect token pairs and list stats from files */
+	public static void collect(LangDescriptor language, List<String> fileNames, String pairsFileName)
+		throws Exception
+	{
+		Vocabulary vocab = getLexer(language.lexerClass, null).getVocabulary();
+		String[] ruleNames = getParser(language.parserClass, null).getRuleNames();
+		CollectTokenPairs collectTokenPairs = new CollectTokenPairs(vocab, ruleNames, true);
+		CollectSiblingLists collectSiblingLists = new CollectSiblingLists();
+		// parse one doc at a time so workers only hold one tree
+		for (String fileName : fileNames) {
+			InputDocument doc = Tool.parse(fileName, language);
+			Corpus.collectTokenPairsAndSplitListInfo(doc, collectTokenPairs, collectSiblingLists);
+		}
+		try ( DataOutputStream out = openOutput(pairsFileName, PAIRS_FILE_FORMAT) ) {
+			collectTokenPairs.write(out);
+			collectSiblingLists.writeListStats(out);
+		}
+	}
+
+	/** Merge round 1 results in shard order into token pair dependencies
+	 *  and list stats for the whole corpus.
+	 */
+	public static void mergePairs(LangDescriptor language, List<String> pairsFileNames, String aggregatesFileName)
+		throws Exception
+	{
+		Vocabulary vocab = getLexer(language.lexerClass, null).getVocabulary();
+		String[] ruleNames = getParser(language.parserClass, null).getRuleNames();
+		CollectTokenPairs collectTokenPairs = new CollectTokenPairs(vocab, ruleNames);
+		CollectSiblingLists collectSiblingLists = new CollectSiblingLists();
+		for (String pairsFileName : pairsFileNames) {
+			CollectTokenPairs partialPairs = new CollectTokenPairs(vocab, ruleNames, true);
+			CollectSiblingLists partialLists = new CollectSiblingLists();
+			try ( DataInputStream in = openInput(pairsFileName, PAIRS_FILE_FORMAT) ) {
+				partialPairs.read(in);
+				partialLists.readListStats(in);
+			}
+			collectTokenPairs.merge(partialPairs);
+			collectSiblingLists.merge(partialLists);
+		}
+		Corpus corpus = new Corpus(new ArrayList<>(), language);
+		corpus.ruleToPairsBag = collectTokenPairs.getDependencies();
+		corpus.rootAndChildListStats = collectSiblingLists.getListStats();
+		corpus.rootAndSplitChildListStats = collectSiblingLists.getSplitListStats();
+		try ( DataOutputStream out = openOutput(aggregatesFileName, AGGREGATES_FILE_FORMAT) ) {
+			corpus.writeAggregates(out);
+		}
+	}
+
+	/** Round 2 worker: compute exemplars for files using merged aggregates.
+	 *  As in {@link Corpus#trainStreaming}, we hold one document at a time;
+	 *  exemplars refer to placeholders with just its file name, which is
+	 *  all we write.
+	 */
+	public static void train(LangDescriptor language, List<String> fileNames,
+	                         String aggregatesFileName, String exemplarsFileName)
+		throws Exception
+	{
+		Corpus corpus = new Corpus(new ArrayList<>(), language);
+		try ( DataInputStream in = openInput(aggregatesFileName, AGGREGATES_FILE_FORMAT) ) {
+			corpus.readAggregates(in);
+		}
+		ExemplarBuffer exemplars = new ExemplarBuffer();
+		for (String fileName : fileNames) {
+			InputDocument doc = Tool.parse(fileName, language);
+			// list membership of tokens comes from this doc alone
+			CollectSiblingLists docLists = new CollectSiblingLists();
+			docLists.setDocument(doc);
+			doc.getFlatTree().walk(docLists);
+			corpus.tokenToListInfo = docLists.getTokenToListInfo();
+			InputDocument placeholder = new InputDocument(fileName, "", language);
+			Trainer trainer = new Trainer(corpus, exemplars, doc, language.indentSize) {
+				@Override
+				protected void addExemplar(int[] features, int injectNL_WS, int aligned) {
+					exemplars.addExemplar(placeholder, features!=null ? features.clone() : null, injectNL_WS, aligned);
+				}
+			};
+			trainer.computeFeatureVectors();
+		}
+		try ( DataOutputStream out = openOutput(exemplarsFileName, EXEMPLARS_FILE_FORMAT) ) {
+			exemplars.write(out);
+		}
+	}
+
+	/** Append round 2 exemplars in shard order and write the model */
+	public static void merge(LangDescriptor language, String aggregatesFileName,
+	                         List<String> exemplarsFileNames, String modelFileName)
+		throws Exception
+	{
+		Corpus corpus = new Corpus(new ArrayList<>(), language);
+		try ( DataInputStream in = openInput(aggregatesFileName, AGGREGATES_FILE_FORMAT) ) {
+			corpus.readAggregates(in);
+		}
+		for (String exemplarsFileName : exemplarsFileNames) {
+			try ( DataInputStream in = openInput(exemplarsFileName, EXEMPLARS_FILE_FORMAT) ) {
+				corpus.addExemplars(ExemplarBuffer.read(in, language));
+			}
+		}
+		corpus.randomShuffleInPlace();
+		corpus.writeModel(modelFileName);
+	}
+
+	public static List<String> workerCommand(String workerHeap, String... args) {
+		List<String> cmd = new ArrayList<>();
+		cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		if ( workerHeap!=null ) {
+			cmd.add("-Xmx"+workerHeap);
+		}
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(ShardedTrainer.class.getName());
+		cmd.addAll(Arrays.asList(args));
+		return cmd;
+	}
+
+	/** Run commands as local processes, at most numWorkers at once,
+	 *  and wait for all of them. Fail if any worker fails. As each worker
+	 *  finishes, whichever it is, we start the next command in its place.
+	 *  If we stop early, such as on an interrupt, we kill the workers
+	 *  still running rather than leave them writing shard files.
+	 */
+	public static void runWorkers(List<List<String>> commands, int numWorkers) throws Exception {
+		LinkedList<List<String>> work = new LinkedList<>(commands);
+		ExecutorService waiters = Executors.newFixedThreadPool(numWorkers); // a thread waits on each running worker
+		CompletionService<Pair<List<String>,Integer>> finished = new ExecutorCompletionService<>(waiters);
+		List<String> failures = new ArrayList<>();
+		List<Process> processes = new ArrayList<>();
+		int running = 0;
+		try {
+			while ( !work.isEmpty() || running>0 ) {
+				while ( !work.isEmpty() && running<numWorkers ) {
+					List<String> cmd = work.removeFirst();
+					Process process = new ProcessBuilder(cmd).inheritIO().start();
+					processes.add(process);
+					finished.submit(() -> new Pair<>(cmd, process.waitFor()));
+					running++;
+				}
+				Pair<List<String>,Integer> worker = finished.take().get();
+				running--;
+				int exitCode = worker.b;
+				if ( exitCode!=0 ) {
+					List<String> cmd = worker.a;
+					failures.add(String.join(" ", cmd.subList(cmd.indexOf(ShardedTrainer.class.getName())+1, cmd.size()))+
+					             " exited with "+exitCode);
+				}
+			}
+		}
+		finally {
+			waiters.shutdownNow();
+			for (Process process : processes) {
+				if ( process.isAlive() ) process.destroyForcibly();
+			}
+		}
+		if ( !failures.isEmpty() ) {
+			throw new IOException(failures.size()+" worker(s) failed: "+failures);
+		}
+	}
+
+	public static List<String> readFileList(String filesFileName) throws IOException {
+		return Files.readAllLines(new File(filesFileName).toPath());
+	}
+
+	public static DataOutputStream openOutput(String fileName, String format) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+		out.writeUTF(format);
+		return out;
+	}
+
+	public static DataInputStream openInput(String fileName, String format) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+		if ( !in.readUTF().equals(format) ) {
+			in.close();
+			throw new IOException(fileName+" is not a "+format+" file");
+		}
+		return in;
+	}
+}
@@ -0,0 +1,75 @@
+package org.antlr.codebuff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+
+/** Talk to a shard served by {@link ExemplarShard#serve} in another JVM.
+ *  Each batch is one request and one response over a single connection;
+ *  calls are synchronized so a transport can be shared by threads.
+ */
+public class SocketShardTransport implements ShardTransport {
+	protected final Socket socket;
+	protected final DataInputStream in;
+	protected final DataOutputStream out;
+
+	public SocketShardTransport(String host, int port) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	@Override
+	public synchronized int[][] countCandidates(FeatureMetaData[] FEATURES, List<int[]> unknowns)
+		throws IOException
+	{
+		out.writeByte(ExemplarShard.OP_COUNT);
+		out.writeInt(ExemplarShard.getFeatureSetID(FEATURES));
+		out.writeInt(unknowns.size());
+		for (int[] unknown : unknowns) {
+			ExemplarShard.writeVector(out, unknown);
+		}
+		out.flush();
+		int[][] counts = new int[unknowns.size()][];
+		for (int i = 0; i<counts.length; i++) {
+			counts[i] = new int[] {in.readInt(), in.readInt()};
+		}
+		return counts;
+	}
+
+	@Override
+	public synchronized ShardNeighbor[][] nearest(FeatureMetaData[] FEATURES, List<int[]> unknowns,
+	                                              int k, double distanceThreshold, int[] modes)
+		throws IOException
+	{
+		out.writeByte(ExemplarShard.OP_NEAREST);
+		out.writeInt(ExemplarShard.getFeatureSetID(FEATURES));
+		out.writeInt(unknowns.size());
+		out.writeInt(k);
+		out.writeDouble(distanceThreshold);
+		for (int i = 0; i<unknowns.size(); i++) {
+			out.writeInt(modes[i]);
+			ExemplarShard.writeVector(out, unknowns.get(i));
+		}
+		out.flush();
+		ShardNeighbor[][] kNNs = new ShardNeighbor[unknowns.size()][];
+		for (int i = 0; i<kNNs.length; i++) {
+			ShardNeighbor[] kNN = new ShardNeighbor[in.readInt()];
+			for (int j = 0; j<kNN.length; j++) {
+				kNN[j] = new ShardNeighbor(in.readDouble(), in.readInt(), in.readInt());
+			}
+			kNNs[i] = kNN;
+		}
+		return kNNs;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		socket.close();
+	}
+}
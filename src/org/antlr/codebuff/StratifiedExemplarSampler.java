@@ -0,0 +1,153 @@
+package org.antlr.codebuff;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+/** Keep at most maxExemplars of a stream of exemplars, sampled per
+ *  (previous rule, current rule) context like the kNN context index.
+ *  Each context keeps a uniform random sample of its exemplars (a
+ *  reservoir). When we're full, we make room by dropping a random
+ *  exemplar from the biggest reservoir, so common contexts shrink toward
+ *  the same size while rare contexts keep everything they have.
+ *
+ *  A reservoir that has dropped exemplars only replaces them from then
+ *  on, with the usual probability size/seen, so it stays a uniform sample
+ *  of its context. With room for everything, we keep everything.
+ *
+ *  {@link #getSample} returns the kept exemplars in the order we saw them
+ *  so an unlimited sampler gives the same exemplars as {@link Corpus#train}.
+ */
+public class StratifiedExemplarSampler {
+	protected static class Exemplar {
+		public final long seq;
+		public final InputDocument doc;
+		public final int[] features;
+		public final int ws;
+		public final int hpos;
+
+		public Exemplar(long seq, InputDocument doc, int[] features, int ws, int hpos) {
+			this.seq = seq;
+			this.doc = doc;
+			this.features = features;
+			this.ws = ws;
+			this.hpos = hpos;
+		}
+	}
+
+	protected static class Reservoir {
+		public final int id;
+		public long numSeen;
+		public final List<Exemplar> sample = new ArrayList<>();
+
+		public Reservoir(int id) {
+			this.id = id;
+		}
+	}
+
+	public final int maxExemplars;
+	protected final Random random;
+
+	protected final Map<Object, Reservoir> reservoirs = new LinkedHashMap<>();
+	/** Biggest reservoir first */
+	protected final TreeSet<Reservoir> bySize =
+		new TreeSet<>(Comparator.comparingInt((Reservoir r) -> -r.sample.size()).thenComparingInt(r -> r.id));
+	protected int size;
+	protected long numSeen;
+
+	public StratifiedExemplarSampler(int maxExemplars, Random random) {
+		this.maxExemplars = maxExemplars;
+		this.random = random;
+	}
+
+	public void offer(ExemplarBuffer exemplars) {
+		for (int i = 0; i<exemplars.size(); i++) {
+			offer(exemplars.documentsPerExemplar.get(i), exemplars.featureVectors.get(i),
+			      exemplars.injectWhitespace.get(i), exemplars.hpos.get(i));
+		}
+	}
+
+	/** Consider an exemplar; we copy features only if we keep it so callers
+	 *  can reuse their array.
+	 */
+	public void offer(InputDocument doc, int[] features, int ws, int hpos) {
+		long seq = numSeen++;
+		Object key = getStratum(features);
+		Reservoir r = reservoirs.get(key);
+		if ( r==null ) {
+			r = new Reservoir(reservoirs.size());
+			reservoirs.put(key, r);
+		}
+		boolean keptAll = r.sample.size()==r.numSeen;
+		r.numSeen++;
+		if ( maxExemplars<=0 ) return;
+		if ( size<maxExemplars ) {
+			add(r, new Exemplar(seq, doc, features.clone(), ws, hpos));
+			return;
+		}
+		Reservoir biggest = bySize.first();
+		if ( keptAll && r.sample.size()<biggest.sample.size() ) {
+			// make room in the biggest context for one more from a smaller one
+			drop(biggest);
+			add(r, new Exemplar(seq, doc, features.clone(), ws, hpos));
+			return;
+		}
+		// replace a random member with probability size/seen
+		long j = (long)(random.nextDouble()*r.numSeen);
+		if ( j<r.sample.size() ) {
+			r.sample.set((int)j, new Exemplar(seq, doc, features.clone(), ws, hpos));
+		}
+	}
+
+	/** Which context an exemplar belongs to; override to sample differently */
+	public Object getStratum(int[] features) {
+		return Corpus.getRuleContextKey(features);
+	}
+
+	protected void add(Reservoir r, Exemplar e) {
+		bySize.remove(r);
+		r.sample.add(e);
+		bySize.add(r);
+		size++;
+	}
+
+	protected void drop(Reservoir r) {
+		bySize.remove(r);
+		int i = random.nextInt(r.sample.size());
+		int last = r.sample.size()-1;
+		r.sample.set(i, r.sample.get(last));
+		r.sample.remove(last);
+		bySize.add(r);
+		size--;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getNumSeen() {
+		return numSeen;
+	}
+
+	public int getNumStrata() {
+		return reservoirs.size();
+	}
+
+	/** The exemplars we kept, in the order offered */
+	public ExemplarBuffer getSample() {
+		List<Exemplar> all = new ArrayList<>(size);
+		for (Reservoir r : reservoirs.values()) {
+			all.addAll(r.sample);
+		}
+		all.sort(Comparator.comparingLong(e -> e.seq));
+		ExemplarBuffer exemplars = new ExemplarBuffer();
+		for (Exemplar e : all) {
+			exemplars.addExemplar(e.doc, e.features, e.ws, e.hpos);
+		}
+		return exemplars;
+	}
+}
@@ -0,0 +1,160 @@
+package org.antlr.codebuff;
+
+import org.antlr.codebuff.misc.LangDescriptor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.antlr.codebuff.Tool.getFilenames;
+
+/** Guess which trained corpus best matches the style of some code without
+ *  formatting anything. We parse a sample of the target files, compute
+ *  exemplars like {@link Corpus#train} does, and compare a
+ *  {@link StyleSketch} of them with each candidate model's sketch. The
+ *  best candidate makes the same whitespace and alignment decisions in
+ *  the same contexts for most of the target's exemplars.
+ *
+ *  Candidates must have a grammar that parses the target files. We
+ *  extract target exemplars once per grammar and indent size, since the
+ *  alignment categories depend on the indent size.
+ *
+ *      java org.antlr.codebuff.StyleDetector [-sample n] [-seed s] \
+ *          -target dir lang-name[=model-file]...
+ *
+ *  A candidate without a model file trains on its language's corpus.
+ */
+public class StyleDetector {
+	public static final int DEFAULT_SAMPLE_SIZE = 20;
+
+	public static class Match {
+		public final Corpus model;
+		public final double similarity;
+		public final double wsSimilarity;
+		public final double hposSimilarity;
+		/** How many sampled target files parsed with the model's grammar */
+		public final int numParsed;
+		public final int numSampled;
+
+		public Match(Corpus model, StyleSketch target, int numParsed, int numSampled) {
+			this.model = model;
+			StyleSketch sketch = model.getStyleSketch();
+			this.wsSimilarity = sketch.wsSimilarity(target);
+			this.hposSimilarity = sketch.hposSimilarity(target);
+			this.numParsed = numParsed;
+			this.numSampled = numSampled;
+			// a grammar that can't parse some files is a worse match
+			this.similarity = (wsSimilarity+hposSimilarity)/2 * numParsed/Math.max(1, numSampled);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-14s %.3f (ws %.3f, hpos %.3f, parsed %d/%d)",
+			                     model.language.name, similarity, wsSimilarity, hposSimilarity, numParsed, numSampled);
+		}
+	}
+
+	/** Rank models from most to least similar to a random sample of target files */
+	public static List<Match> rank(List<Corpus> models, List<String> targetFiles, int sampleSize, long seed)
+		throws Exception
+	{
+		List<String> shuffled = new ArrayList<>(targetFiles);
+		Collections.sort(shuffled); // same sample no matter how we listed the files
+		Collections.shuffle(shuffled, new Random(seed));
+
+		Map<String, StyleSketch> targetSketches = new HashMap<>();
+		Map<String, int[]> parseCounts = new HashMap<>();
+		List<Match> matches = new ArrayList<>();
+		for (Corpus model : models) {
+			LangDescriptor language = model.language;
+			String key = language.parserClass.getName()+":"+language.indentSize+":"+language.fileRegex;
+			StyleSketch target = targetSketches.get(key);
+			if ( target==null ) {
+				List<String> sample = new ArrayList<>();
+				for (String fileName : shuffled) {
+					if ( sample.size()>=sampleSize ) break;
+					if ( new File(fileName).getName().matches(language.fileRegex) ) sample.add(fileName);
+				}
+				List<InputDocument> docs = new ArrayList<>();
+				for (String fileName : sample) {
+					InputDocument doc = Tool.parse(fileName, language);
+					if ( doc.tree!=null ) docs.add(doc);
+				}
+				target = sketch(docs, language);
+				targetSketches.put(key, target);
+				parseCounts.put(key, new int[] {docs.size(), sample.size()});
+			}
+			int[] counts = parseCounts.get(key);
+			matches.add(new Match(model, target, counts[0], counts[1]));
+		}
+		matches.sort((a, b) -> Double.compare(b.similarity, a.similarity));
+		return matches;
+	}
+
+	/** Compute the exemplars of parsed docs as if training on them and sketch them */
+	public static StyleSketch sketch(List<InputDocument> docs, LangDescriptor language) throws Exception {
+		if ( docs.isEmpty() ) return new StyleSketch();
+		Corpus sample = new Corpus(docs, language);
+		sample.collectTokenPairsAndSplitListInfo();
+		sample.trainOnSampleDocs();
+		return sample.getStyleSketch();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int sampleSize = DEFAULT_SAMPLE_SIZE;
+		long seed = Corpus.FEATURE_VECTOR_RANDOM_SEED;
+		String targetDir = null;
+		int i = 0;
+		while ( i<args.length && args[i].startsWith("-") ) {
+			switch ( args[i] ) {
+				case "-sample" :
+					i++;
+					sampleSize = Integer.parseInt(args[i++]);
+					break;
+				case "-seed" :
+					i++;
+					seed = Long.parseLong(args[i++]);
+					break;
+				case "-target" :
+					i++;
+					targetDir = args[i++];
+					break;
+				default :
+					System.err.println("Unknown option "+args[i]);
+					System.exit(1);
+			}
+		}
+		if ( targetDir==null || i==args.length ) {
+			System.err.println("org.antlr.codebuff.StyleDetector [-sample n] [-seed s] \\\n"+
+			                   "   -target dir lang-name[=model-file]...");
+			System.exit(1);
+		}
+
+		ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE);
+		List<Corpus> models = new ArrayList<>();
+		for (; i<args.length; i++) {
+			String[] candidate = args[i].split("=", 2);
+			LangDescriptor language = ShardedTrainer.getLanguage(candidate[0]);
+			if ( language==null ) {
+				System.err.println("Language "+candidate[0]+" unknown");
+				System.exit(1);
+			}
+			Corpus model = candidate.length>1 ? registry.get(language, candidate[1]) : registry.get(language);
+			model.getStyleSketch();
+			models.add(model);
+		}
+
+		List<String> targetFiles = getFilenames(new File(targetDir), ".*");
+		long start = System.nanoTime();
+		List<Match> matches = rank(models, targetFiles, sampleSize, seed);
+		long stop = System.nanoTime();
+		for (Match match : matches) {
+			System.out.println(match);
+		}
+		System.out.printf("ranked %d models in %dms\n", models.size(), (stop-start)/1_000_000);
+	}
+}
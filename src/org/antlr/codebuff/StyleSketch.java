@@ -0,0 +1,91 @@
+package org.antlr.codebuff;
+
+import org.antlr.codebuff.misc.BottomKSketch;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.antlr.codebuff.Trainer.FEATURES_HPOS;
+import static org.antlr.codebuff.Trainer.FEATURES_INJECT_WS;
+
+/** MinHash sketches of a corpus' formatting decisions: the set of
+ *  distinct (ws context, ws category) pairs and the set of distinct
+ *  (hpos context, hpos category) pairs over all exemplars. Two corpora
+ *  in the same style make the same decisions in the same contexts so
+ *  their sets overlap a lot. See {@link StyleDetector}.
+ */
+public class StyleSketch {
+	public final BottomKSketch ws;
+	public final BottomKSketch hpos;
+
+	public StyleSketch() {
+		this(new BottomKSketch(), new BottomKSketch());
+	}
+
+	public StyleSketch(BottomKSketch ws, BottomKSketch hpos) {
+		this.ws = ws;
+		this.hpos = hpos;
+	}
+
+	public static StyleSketch of(Corpus corpus) {
+		StyleSketch sketch = new StyleSketch();
+		if ( corpus.featureVectors==null ) return sketch;
+		sketch.add(corpus.featureVectors, corpus.injectWhitespace, corpus.hpos);
+		return sketch;
+	}
+
+	public void add(List<int[]> featureVectors, List<Integer> injectWhitespace, List<Integer> hposCategories) {
+		for (int i = 0; i<featureVectors.size(); i++) {
+			int[] features = featureVectors.get(i);
+			ws.add(contextHash(features, FEATURES_INJECT_WS, injectWhitespace.get(i)));
+			int h = hposCategories.get(i);
+			if ( h!=-1 ) { // only tokens starting a line have an alignment
+				hpos.add(contextHash(features, FEATURES_HPOS, h));
+			}
+		}
+	}
+
+	/** How much of target's ws and hpos decisions does this corpus also
+	 *  make? 1.0 means all of them.
+	 */
+	public double similarity(StyleSketch target) {
+		return (wsSimilarity(target)+hposSimilarity(target))/2;
+	}
+
+	public double wsSimilarity(StyleSketch target) {
+		return ws.containment(target.ws);
+	}
+
+	public double hposSimilarity(StyleSketch target) {
+		return hpos.containment(target.hpos);
+	}
+
+	/** Hash the features kNNClassifier compares for FEATURES (like
+	 *  {@link org.antlr.codebuff.validation.FeatureVectorAsObject} does)
+	 *  plus the category.
+	 */
+	public static long contextHash(int[] features, FeatureMetaData[] FEATURES, int category) {
+		long h = 0x9e3779b97f4a7c15L;
+		for (int i = 0; i<features.length-3; i++) { // don't include INFO
+			if ( FEATURES[i]==FeatureMetaData.UNUSED ) continue;
+			h = BottomKSketch.hash(h ^ (features[i] & 0xFFFFFFFFL));
+		}
+		return BottomKSketch.hash(h ^ (category & 0xFFFFFFFFL) ^ 0x5bd1e995L);
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		ws.write(out);
+		hpos.write(out);
+	}
+
+	public static StyleSketch read(DataInputStream in) throws IOException {
+		return new StyleSketch(BottomKSketch.read(in), BottomKSketch.read(in));
+	}
+
+	@Override
+	public String toString() {
+		return "ws ~"+Math.round(ws.cardinality())+" distinct, hpos ~"+Math.round(hpos.cardinality())+" distinct";
+	}
+}
@@ -1,6 +1,8 @@
 package org.antlr.codebuff;
 
 import org.antlr.codebuff.misc.CodeBuffTokenStream;
+import org.antlr.codebuff.misc.EditScriptEmitter;
+import org.antlr.codebuff.misc.Emitter;
 import org.antlr.codebuff.misc.LangDescriptor;
 import org.antlr.v4.runtime.ANTLRErrorListener;
 import org.antlr.v4.runtime.ANTLRInputStream;
@@ -20,11 +22,19 @@ import org.antlr.v4.runtime.atn.ATNConfigSet;
 import org.antlr.v4.runtime.atn.PredictionMode;
 import org.antlr.v4.runtime.dfa.DFA;
 import org.antlr.v4.runtime.misc.ParseCancellationException;
-import org.antlr.v4.runtime.misc.Utils;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -37,8 +47,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
-import static org.antlr.codebuff.Trainer.FEATURES_HPOS;
-import static org.antlr.codebuff.Trainer.FEATURES_INJECT_WS;
 import static org.antlr.codebuff.misc.BuffUtils.filter;
 import static org.antlr.v4.runtime.atn.PredictionMode.SLL;
 
@@ -62,7 +70,9 @@ import static org.antlr.v4.runtime.atn.PredictionMode.SLL;
  * If the grammar is in a package, use fully-qualified like
  * "-g org.antlr.codebuff.ANTLRv4"
  *
- * Output goes to stdout if no -o option used.
+ * Output goes to stdout if no -o option used. Use "-model" to format with
+ * a model built by {@link ShardedTrainer} rather than training on -corpus.
+ * Use "-lines start:stop" to reformat only those lines, copying the rest.
  */
 public class Tool {
 	public static boolean showFileNames = false;
@@ -99,6 +109,14 @@ public class Tool {
 	public static final LangDescriptor TSQL_CLEAN_DESCR =
 		new LangDescriptor("tsql", "corpus/sqlclean/training", ".*\\.sql", tsqlLexer.class, tsqlParser.class, "tsql_file", 4, tsqlLexer.LINE_COMMENT);
 
+	static {
+		// SQL scripts are sequences of statements we can format one at a time
+		SQLITE_NOISY_DESCR.statementTerminatorTypes = new int[] {SQLiteLexer.SCOL};
+		SQLITE_CLEAN_DESCR.statementTerminatorTypes = new int[] {SQLiteLexer.SCOL};
+		TSQL_NOISY_DESCR.statementTerminatorTypes = new int[] {tsqlLexer.SEMI, tsqlLexer.GO};
+		TSQL_CLEAN_DESCR.statementTerminatorTypes = new int[] {tsqlLexer.SEMI, tsqlLexer.GO};
+	}
+
 	public static LangDescriptor[] languages = new LangDescriptor[] {
 		QUORUM_DESCR,
 		JAVA_DESCR,
@@ -112,6 +130,9 @@ public class Tool {
 		TSQL_CLEAN_DESCR,
 	};
 
+	/** File name meaning read the document to format from stdin */
+	public static final String STDIN = "-";
+
 	public static String version;
 
 	static {
@@ -127,7 +148,11 @@ public class Tool {
 		if ( args.length<7 ) {
 			System.err.println("org.antlr.codebuff.Tool -g grammar-name -rule start-rule -corpus root-dir-of-samples \\\n" +
 			                   "   [-files file-extension] [-indent num-spaces] \\" +
-			                   "   [-comment line-comment-name] [-o output-file] file-to-format");
+			                   "   [-comment line-comment-name] [-model model-file] [-o output-file] [-lines start:stop] [-edits] \\\n" +
+			                   "   [-stream terminator-names] file-to-format\n" +
+			                   "Use - as file-to-format to read stdin. -lines formats only those lines.\n" +
+			                   "-edits emits offset,length,\"replacement\" edits to the input rather than the output.\n" +
+			                   "-stream formats a statement at a time, ending statements at tokens like SEMI,GO.");
 			return;
 		}
 
@@ -138,9 +163,13 @@ public class Tool {
 		String commentS = null;
 		String testFileName = null;
 		String outputFileName = null;
+		String modelFileName = null;
 		String fileExtension = null;
+		int[] lines = null;
+		boolean edits = false;
+		String terminatorsS = null;
 		int i = 0;
-		while ( i<args.length && args[i].startsWith("-") ) {
+		while ( i<args.length && args[i].startsWith("-") && !args[i].equals(STDIN) ) {
 			switch ( args[i] ) {
 				case "-g":
 					i++;
@@ -170,11 +199,31 @@ public class Tool {
 					i++;
 					outputFileName = args[i++];
 					break;
+				case "-model" :
+					i++;
+					modelFileName = args[i++];
+					break;
+				case "-lines" :
+					i++;
+					String[] startStop = args[i++].split(":");
+					lines = new int[] {Integer.parseInt(startStop[0]), Integer.parseInt(startStop[1])};
+					break;
+				case "-edits" :
+					i++;
+					edits = true;
+					break;
+				case "-stream" :
+					i++;
+					terminatorsS = args[i++];
+					break;
 			}
 		}
 		testFileName = args[i]; // must be last
+		if ( terminatorsS!=null && (lines!=null || edits) ) {
+			System.err.println("-stream formats the whole input; it can't be used with -lines or -edits");
+			return;
+		}
 
-		System.out.println("gramm: "+grammarName);
 		String parserClassName = grammarName+"Parser";
 		String lexerClassName = grammarName+"Lexer";
 		Class<? extends Parser> parserClass = null;
@@ -194,7 +243,8 @@ public class Tool {
 		}
 		int indentSize = Integer.parseInt(indentS);
 		int singleLineCommentType = -1;
-		if ( commentS!=null ) {
+		int[] terminatorTypes = null;
+		if ( commentS!=null || terminatorsS!=null ) {
 			try {
 				lexer = getLexer(lexerClass, null);
 			}
@@ -204,9 +254,20 @@ public class Tool {
 			}
 			if ( lexer==null ) return;
 			Map<String, Integer> tokenTypeMap = lexer.getTokenTypeMap();
-			if ( tokenTypeMap.containsKey(commentS) ) {
+			if ( commentS!=null && tokenTypeMap.containsKey(commentS) ) {
 				singleLineCommentType = tokenTypeMap.get(commentS);
 			}
+			if ( terminatorsS!=null ) {
+				String[] names = terminatorsS.split(",");
+				terminatorTypes = new int[names.length];
+				for (int t = 0; t<names.length; t++) {
+					if ( !tokenTypeMap.containsKey(names[t]) ) {
+						System.err.println("No token "+names[t]+" in "+lexerClassName);
+						return;
+					}
+					terminatorTypes[t] = tokenTypeMap.get(names[t]);
+				}
+			}
 		}
 		String fileRegex = null;
 		if ( fileExtension!=null ) {
@@ -215,7 +276,17 @@ public class Tool {
 		LangDescriptor language = new LangDescriptor(grammarName, corpusDir, fileRegex,
 		                                             lexerClass, parserClass, startRule,
 		                                             indentSize, singleLineCommentType);
-		format(language, testFileName, outputFileName);
+		language.statementTerminatorTypes = terminatorTypes;
+		if ( terminatorTypes!=null ) {
+			Corpus corpus = modelFileName!=null ? Corpus.readModel(modelFileName, language) : train(language, testFileName);
+			formatStatements(corpus, testFileName, outputFileName);
+		}
+		else if ( modelFileName!=null ) {
+			format(Corpus.readModel(modelFileName, language), testFileName, outputFileName, lines, edits);
+		}
+		else {
+			format(language, testFileName, outputFileName, lines, edits);
+		}
 	}
 
 	public static void format(LangDescriptor language,
@@ -223,25 +294,115 @@ public class Tool {
 	                          String outputFileName)
 		throws Exception
 	{
+		format(language, testFileName, outputFileName, null, false);
+	}
+
+	/** Train on language.corpusDir and format testFileName; just lines
+	 *  {start, stop} of it unless lines is null. If edits, write the edits
+	 *  to make to testFileName rather than the formatted text.
+	 */
+	public static void format(LangDescriptor language,
+	                          String testFileName,
+	                          String outputFileName,
+	                          int[] lines,
+	                          boolean edits)
+		throws Exception
+	{
+		format(train(language, testFileName), testFileName, outputFileName, lines, edits);
+	}
+
+	/** Train on language.corpusDir less testFileName if it's in there */
+	public static Corpus train(LangDescriptor language, String testFileName) throws Exception {
 		// load all files up front
 		List<String> allFiles = getFilenames(new File(language.corpusDir), language.fileRegex);
 		List<InputDocument> documents = load(allFiles, language);
 		// if in corpus, don't include in corpus
 		final String path = new File(testFileName).getAbsolutePath();
 		List<InputDocument> others = filter(documents, d -> !d.fileName.equals(path));
-		InputDocument testDoc = parse(testFileName, language);
 		Corpus corpus = new Corpus(others, language);
 		corpus.train();
+		return corpus;
+	}
 
-		Formatter formatter = new Formatter(corpus, language.indentSize, Formatter.DEFAULT_K,
-		                                    FEATURES_INJECT_WS, FEATURES_HPOS);
-		String output = formatter.format(testDoc, false);
+	/** Format using an already trained corpus such as one loaded with
+	 *  {@link Corpus#readModel}.
+	 */
+	public static void format(Corpus corpus,
+	                          String testFileName,
+	                          String outputFileName)
+		throws Exception
+	{
+		format(corpus, testFileName, outputFileName, null, false);
+	}
 
+	public static void format(Corpus corpus,
+	                          String testFileName,
+	                          String outputFileName,
+	                          int[] lines,
+	                          boolean edits)
+		throws Exception
+	{
+		LangDescriptor language = corpus.language;
+		InputDocument testDoc;
+		if ( testFileName.equals(STDIN) ) {
+			testDoc = parseText(testFileName, read(System.in), language);
+		}
+		else {
+			testDoc = parse(testFileName, language);
+		}
+		FormatEngine engine = new FormatEngine(corpus);
 		if ( outputFileName!=null ) {
-			Utils.writeFile(outputFileName, output);
+			try ( Writer out = new BufferedWriter(new FileWriter(outputFileName)) ) {
+				format(engine, testDoc, lines, edits, out); // stream rather than hold all output
+			}
 		}
 		else {
-			System.out.print(output);
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+			format(engine, testDoc, lines, edits, out);
+			out.flush();
+		}
+	}
+
+	/** Format testFileName a statement at a time, reading and writing as
+	 *  we go; see {@link FormatEngine#formatStatements}.
+	 */
+	public static void formatStatements(Corpus corpus, String testFileName, String outputFileName)
+		throws Exception
+	{
+		FormatEngine engine = new FormatEngine(corpus);
+		try ( Reader in = testFileName.equals(STDIN) ?
+			      new InputStreamReader(System.in) :
+			      new BufferedReader(new FileReader(testFileName)) )
+		{
+			if ( outputFileName!=null ) {
+				try ( Writer out = new BufferedWriter(new FileWriter(outputFileName)) ) {
+					engine.formatStatements(testFileName, in, out);
+				}
+			}
+			else {
+				Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+				engine.formatStatements(testFileName, in, out);
+				out.flush();
+			}
+		}
+	}
+
+	protected static void format(FormatEngine engine, InputDocument testDoc, int[] lines, boolean edits, Writer out)
+		throws Exception
+	{
+		Emitter emitter = edits ? new EditScriptEmitter(testDoc) : new Emitter(out);
+		Formatter formatter = engine.newSession();
+		if ( lines!=null ) {
+			formatter.formatLines(testDoc, lines[0], lines[1], emitter);
+		}
+		else {
+			formatter.format(testDoc, false, emitter);
+		}
+		if ( edits ) {
+			for (EditScriptEmitter.Edit edit : ((EditScriptEmitter)emitter).getEdits()) {
+				out.write(edit.toString());
+				out.write('\n');
+			}
 		}
 	}
 
@@ -269,7 +430,7 @@ public class Tool {
 		return parserCtor.newInstance(tokens);
 	}
 
-	public static Lexer getLexer(Class<? extends Lexer> lexerClass, ANTLRInputStream input) throws NoSuchMethodException, InstantiationException, IllegalAccessException, java.lang.reflect.InvocationTargetException {
+	public static Lexer getLexer(Class<? extends Lexer> lexerClass, CharStream input) throws NoSuchMethodException, InstantiationException, IllegalAccessException, java.lang.reflect.InvocationTargetException {
 		Constructor<? extends Lexer> lexerCtor =
 			lexerClass.getConstructor(CharStream.class);
 		return lexerCtor.newInstance(input);
@@ -293,11 +454,29 @@ public class Tool {
 	public static String load(String fileName, int tabSize)
 		throws Exception
 	{
+		return expandTabs(read(fileName), tabSize);
+	}
+
+	/** The text of a file as is */
+	public static String read(String fileName) throws IOException {
 		Path path = FileSystems.getDefault().getPath(fileName);
 		byte[] filearray = Files.readAllBytes(path);
-		String content = new String(filearray);
-		String notabs = expandTabs(content, tabSize);
-		return notabs;
+		return new String(filearray);
+	}
+
+	/** Read all of in, such as stdin, expanding tabs like {@link #load(String, int)} */
+	public static String load(InputStream in, int tabSize) throws IOException {
+		return expandTabs(read(in), tabSize);
+	}
+
+	/** All of in as is */
+	public static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		for (int n = in.read(buf); n>=0; n = in.read(buf)) {
+			bytes.write(buf, 0, n);
+		}
+		return new String(bytes.toByteArray());
 	}
 
 	/**
@@ -306,12 +485,38 @@ public class Tool {
 	public static InputDocument parse(String fileName, LangDescriptor language)
 		throws Exception
 	{
-		String content = load(fileName, language.indentSize);
-		return parse(fileName, content, language);
+		return parseText(fileName, read(fileName), language);
+	}
+
+	/** Parse text as in a file: expand its tabs like {@link #load(String, int)}
+	 *  and keep text as the doc's raw content so we can map offsets and copy
+	 *  text back to the file as it was.
+	 */
+	public static InputDocument parseText(String fileName, String text, LangDescriptor language)
+		throws Exception
+	{
+		return parseText(fileName, text, language, true);
+	}
+
+	public static InputDocument parseText(String fileName, String text, LangDescriptor language, boolean reportErrors)
+		throws Exception
+	{
+		InputDocument doc = parse(fileName, expandTabs(text, language.indentSize), language, reportErrors);
+		if ( text.indexOf('\t')>=0 ) doc.rawContent = text;
+		return doc;
 	}
 
 	public static InputDocument parse(String fileName, String content, LangDescriptor language)
 		throws Exception
+	{
+		return parse(fileName, content, language, true);
+	}
+
+	/** Parse content; the tree is null if it has syntax errors, which we
+	 *  print only if reportErrors.
+	 */
+	public static InputDocument parse(String fileName, String content, LangDescriptor language, boolean reportErrors)
+		throws Exception
 	{
 		ANTLRInputStream input = new ANTLRInputStream(content);
 		Lexer lexer = getLexer(language.lexerClass, input);
@@ -338,7 +543,7 @@ public class Tool {
 				doc.parser.reset();
 				doc.tokens.reset(); // rewind input stream
 				// back to standard listeners/handlers
-				doc.parser.addErrorListener(
+				if ( reportErrors ) doc.parser.addErrorListener(
 					new ANTLRErrorListener() {
 						@Override
 						public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine, String msg, RecognitionException e) {
@@ -472,6 +677,7 @@ public class Tool {
 	}
 
 	public static String spaces(int n) {
+		if ( n<=Emitter.RUN_LENGTH ) return Emitter.SPACES.substring(0, Math.max(n, 0));
 		return sequence(n, " ");
 //		StringBuilder buf = new StringBuilder();
 //		for (int sp=1; sp<=n; sp++) buf.append(" ");
@@ -479,6 +685,7 @@ public class Tool {
 	}
 
 	public static String newlines(int n) {
+		if ( n<=Emitter.RUN_LENGTH ) return Emitter.NEWLINES.substring(0, Math.max(n, 0));
 		return sequence(n, "\n");
 //		StringBuilder buf = new StringBuilder();
 //		for (int sp=1; sp<=n; sp++) buf.append("\n");
@@ -19,6 +19,7 @@ import org.apache.commons.lang3.StringUtils;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -223,14 +224,25 @@ public class Trainer {
 	protected CodeBuffTokenStream tokens; // track stream so we can examine previous tokens
 	protected int indentSize;
 
-	/** Make it fast to get a node for a specific token */
-	protected Map<Token, TerminalNode> tokenToNodeMap = null;
+	/** Where to put exemplars; if null, add them directly to corpus */
+	protected ExemplarBuffer exemplars;
+
+	/** Make it fast to get a node and its ancestors for a specific token */
+	protected FlatTree flatTree;
+
+	/** Features of the current token; exemplars we keep get a copy */
+	protected final int[] featureBuffer = new int[NUM_FEATURES];
 
 	public Trainer(Corpus corpus, InputDocument doc, int indentSize) {
+		this(corpus, null, doc, indentSize);
+	}
+
+	public Trainer(Corpus corpus, ExemplarBuffer exemplars, InputDocument doc, int indentSize) {
 		this.corpus = corpus;
+		this.exemplars = exemplars;
 		this.doc = doc;
 		this.root = doc.tree;
-		this.tokenToNodeMap = doc.tokenToNodeMap;
+		this.flatTree = doc.getFlatTree();
 		this.tokens = doc.tokens;
 		this.indentSize = indentSize;
 	}
@@ -248,18 +260,31 @@ public class Trainer {
 		Token curToken = tokens.get(i);
 		if ( curToken.getType()==Token.EOF ) return;
 
-		int[] features = getFeatures(i);
+		int[] features = getFeatures(i, featureBuffer);
 
 		int injectNL_WS = getInjectWSCategory(tokens, i);
 
 		int aligned = -1; // "don't care"
 		if ( (injectNL_WS&0xFF)==CAT_INJECT_NL ) {
-			TerminalNode node = tokenToNodeMap.get(curToken);
+			TerminalNode node = flatTree.getLeaf(i);
 			aligned = getAlignmentCategory(doc, node, indentSize);
 		}
 
 		// track feature -> injectws, align decisions for token i
-		corpus.addExemplar(doc, features, injectNL_WS, aligned);
+		addExemplar(features, injectNL_WS, aligned);
+	}
+
+	/** Keep the features and decisions for a token of doc. Features is
+	 *  our scratch buffer so we store a copy. Override to keep only some.
+	 */
+	protected void addExemplar(int[] features, int injectNL_WS, int aligned) {
+		int[] copy = features!=null ? features.clone() : null;
+		if ( exemplars!=null ) {
+			exemplars.addExemplar(doc, copy, injectNL_WS, aligned);
+		}
+		else {
+			corpus.addExemplar(doc, copy, injectNL_WS, aligned);
+		}
 	}
 
 	public static int getInjectWSCategory(CodeBuffTokenStream tokens, int i) {
@@ -293,7 +318,7 @@ public class Trainer {
 		Token curToken = node.getSymbol();
 
 		// at a newline, are we aligned with a prior sibling (in a list) etc...
-		ParserRuleContext earliestLeftAncestor = earliestAncestorStartingWithToken(node);
+		ParserRuleContext earliestLeftAncestor = doc.getFlatTree().getEarliestLeftAncestor(curToken.getTokenIndex());
 		Pair<ParserRuleContext, Integer> alignPair =
 			earliestAncestorWithChildStartingAtCharPos(earliestLeftAncestor, curToken, curToken.getCharPositionInLine());
 //		String[] ruleNames = doc.parser.getRuleNames();
@@ -309,12 +334,9 @@ public class Trainer {
 		}
 
 		// perhaps we are indented as well?
-		int tokenIndexInStream = node.getSymbol().getTokenIndex();
-		List<Token> tokensOnPreviousLine = getTokensOnPreviousLine(doc.tokens, tokenIndexInStream, curToken.getLine());
-		Token firstTokenOnPrevLine = null;
+		Token firstTokenOnPrevLine = doc.getLineIndex().getFirstTokenOnPreviousLine(curToken.getLine());
 		int columnDelta = 0;
-		if ( tokensOnPreviousLine.size()>0 ) {
-			firstTokenOnPrevLine = tokensOnPreviousLine.get(0);
+		if ( firstTokenOnPrevLine!=null ) {
 			columnDelta = curToken.getCharPositionInLine() - firstTokenOnPrevLine.getCharPositionInLine();
 		}
 
@@ -374,6 +396,13 @@ public class Trainer {
 
 	public static int getPrecedingNL(CommonTokenStream tokens, int i) {
 		int precedingNL = 0;
+		if ( tokens instanceof CodeBuffTokenStream ) { // use the token table
+			CodeBuffTokenStream buffTokens = (CodeBuffTokenStream)tokens;
+			for (int j = buffTokens.getPreviousRealTokenIndex(i)+1; j<i; j++) {
+				if ( buffTokens.isWhitespace(j) ) precedingNL += buffTokens.getNewlineCount(j);
+			}
+			return precedingNL;
+		}
 		List<Token> previousWS = getPreviousWS(tokens, i);
 		if ( previousWS!=null ) {
 			for (Token ws : previousWS) {
@@ -387,14 +416,14 @@ public class Trainer {
 	public static List<Token> getPreviousWS(CommonTokenStream tokens, int i) {
 		List<Token> hiddenTokensToLeft = tokens.getHiddenTokensToLeft(i);
 		if ( hiddenTokensToLeft==null ) return null;
-		return filter(hiddenTokensToLeft, t -> t.getText().matches("\\s+"));
+		return filter(hiddenTokensToLeft, t -> CodeBuffTokenStream.isWhitespace(t.getText()));
 	}
 
 	public static boolean hasCommentToken(List<Token> hiddenTokensToLeft) {
 		boolean hasComment = false;
 		for (Token hidden : hiddenTokensToLeft) {
 			String hiddenText = hidden.getText();
-			if ( !hiddenText.matches("\\s+") ) {
+			if ( !CodeBuffTokenStream.isWhitespace(hiddenText) ) {
 				hasComment = true;
 				break;
 			}
@@ -510,8 +539,15 @@ public class Trainer {
 	}
 
 	public int[] getFeatures(int i)	{
+		return getFeatures(i, new int[NUM_FEATURES]);
+	}
+
+	/** Compute the features of token i into features and return it; null
+	 *  if i has no tree node.
+	 */
+	public int[] getFeatures(int i, int[] features) {
 		CodeBuffTokenStream tokens = doc.tokens;
-		TerminalNode node = tokenToNodeMap.get(tokens.get(i));
+		TerminalNode node = flatTree.getLeaf(i);
 		if ( node==null ) {
 			System.err.println("### No node associated with token "+tokens.get(i));
 			return null;
@@ -530,7 +566,7 @@ public class Trainer {
 		if ( prevToken==null ) curTokenStartsNewLine = true; // we must be at start of file
 		else if ( curToken.getLine() > prevToken.getLine() ) curTokenStartsNewLine = true;
 
-		int[] features = getContextFeatures(corpus, tokenToNodeMap, doc, i);
+		getContextFeatures(corpus, flatTree, doc, i, features);
 
 		setListInfoFeatures(corpus.tokenToListInfo, features, curToken);
 
@@ -544,64 +580,63 @@ public class Trainer {
 	 *  the same for both training and formatting.
 	 */
 	public static int[] getContextFeatures(Corpus corpus,
-	                                       Map<Token, TerminalNode> tokenToNodeMap,
+	                                       FlatTree tree,
 	                                       InputDocument doc,
 	                                       int i)
 	{
-		int[] features = new int[NUM_FEATURES];
+		return getContextFeatures(corpus, tree, doc, i, new int[NUM_FEATURES]);
+	}
+
+	/** Same as {@link #getContextFeatures(Corpus, FlatTree, InputDocument, int)}
+	 *  but fill in and return features rather than a new array.
+	 */
+	public static int[] getContextFeatures(Corpus corpus,
+	                                       FlatTree tree,
+	                                       InputDocument doc,
+	                                       int i,
+	                                       int[] features)
+	{
+		Arrays.fill(features, 0);
 		CodeBuffTokenStream tokens = doc.tokens;
-		TerminalNode node = tokenToNodeMap.get(tokens.get(i));
-		if ( node==null ) {
+		int node = tree.tokenToNode[i];
+		if ( node==FlatTree.NO_NODE ) {
 			System.err.println("### No node associated with token "+tokens.get(i));
 			return features;
 		}
-		Token curToken = node.getSymbol();
+		Token curToken = tokens.get(i);
 
 		// Get context information for previous token
 		Token prevToken = tokens.getPreviousRealToken(i);
-		TerminalNode prevNode = tokenToNodeMap.get(prevToken);
-
-		ParserRuleContext prevEarliestRightAncestor = earliestAncestorEndingWithToken(prevNode);
-		int prevEarliestAncestorRuleIndex = prevEarliestRightAncestor.getRuleIndex();
-		int prevEarliestAncestorRuleAltNum = prevEarliestRightAncestor.getAltNumber();
+		int prevEarliestRightAncestor = tree.earliestRightAncestor[prevToken.getTokenIndex()];
 
 		// Get context information for current token
-		ParserRuleContext earliestLeftAncestor = earliestAncestorStartingWithToken(node);
-
-		ParserRuleContext earliestLeftAncestorParent  =
-			earliestLeftAncestor!=null ? earliestLeftAncestor.getParent() : null;
-
-		ParserRuleContext earliestLeftAncestorParent2 =
-			earliestLeftAncestorParent!=null ? earliestLeftAncestorParent.getParent() : null;
-
-		ParserRuleContext earliestLeftAncestorParent3 =
-			earliestLeftAncestorParent2!=null ? earliestLeftAncestorParent2.getParent() : null;
-
-		ParserRuleContext earliestLeftAncestorParent4 =
-			earliestLeftAncestorParent3!=null ? earliestLeftAncestorParent3.getParent() : null;
-
-		ParserRuleContext earliestLeftAncestorParent5 =
-			earliestLeftAncestorParent4!=null ? earliestLeftAncestorParent4.getParent() : null;
+		int earliestLeftAncestor = tree.earliestLeftAncestor[i];
+		int earliestLeftAncestorParent  = tree.getParent(earliestLeftAncestor);
+		int earliestLeftAncestorParent2 = tree.getParent(earliestLeftAncestorParent);
+		int earliestLeftAncestorParent3 = tree.getParent(earliestLeftAncestorParent2);
+		int earliestLeftAncestorParent4 = tree.getParent(earliestLeftAncestorParent3);
+		int earliestLeftAncestorParent5 = tree.getParent(earliestLeftAncestorParent4);
 
 		features[INDEX_PREV_TYPE]                     = prevToken.getType();
-		features[INDEX_PREV_EARLIEST_RIGHT_ANCESTOR]  = rulealt(prevEarliestAncestorRuleIndex,prevEarliestAncestorRuleAltNum);
+		features[INDEX_PREV_EARLIEST_RIGHT_ANCESTOR]  = tree.getRuleAlt(prevEarliestRightAncestor);
 		features[INDEX_CUR_TOKEN_TYPE]                = curToken.getType();
-		features[INDEX_CUR_TOKEN_CHILD_INDEX]         = getChildIndexOrListMembership(node);
-		features[INDEX_EARLIEST_LEFT_ANCESTOR]        = rulealt(earliestLeftAncestor);
-		features[INDEX_ANCESTORS_CHILD_INDEX]         = getChildIndexOrListMembership(earliestLeftAncestor);
-		features[INDEX_ANCESTORS_PARENT_RULE]         = earliestLeftAncestorParent!=null ? rulealt(earliestLeftAncestorParent) : -1;
-		features[INDEX_ANCESTORS_PARENT_CHILD_INDEX]  = getChildIndexOrListMembership(earliestLeftAncestorParent);
-		features[INDEX_ANCESTORS_PARENT2_RULE]        = earliestLeftAncestorParent2!=null ? rulealt(earliestLeftAncestorParent2) : -1;
-		features[INDEX_ANCESTORS_PARENT2_CHILD_INDEX] = getChildIndexOrListMembership(earliestLeftAncestorParent2);
-		features[INDEX_ANCESTORS_PARENT3_RULE]        = earliestLeftAncestorParent3!=null ? rulealt(earliestLeftAncestorParent3) : -1;
-		features[INDEX_ANCESTORS_PARENT3_CHILD_INDEX] = getChildIndexOrListMembership(earliestLeftAncestorParent3);
-		features[INDEX_ANCESTORS_PARENT4_RULE]        = earliestLeftAncestorParent4!=null ? rulealt(earliestLeftAncestorParent4) : -1;
-		features[INDEX_ANCESTORS_PARENT4_CHILD_INDEX] = getChildIndexOrListMembership(earliestLeftAncestorParent4);
-		features[INDEX_ANCESTORS_PARENT5_RULE]        = earliestLeftAncestorParent5!=null ? rulealt(earliestLeftAncestorParent5) : -1;
-		features[INDEX_ANCESTORS_PARENT5_CHILD_INDEX] = getChildIndexOrListMembership(earliestLeftAncestorParent5);
-
-		features[INDEX_MATCHING_TOKEN_STARTS_LINE] = getMatchingSymbolStartsLine(corpus, doc, node);
-		features[INDEX_MATCHING_TOKEN_ENDS_LINE]   = getMatchingSymbolEndsLine(corpus, doc, node);
+		features[INDEX_CUR_TOKEN_CHILD_INDEX]         = tree.getChildIndexOrListMembership(node);
+		features[INDEX_EARLIEST_LEFT_ANCESTOR]        = tree.getRuleAlt(earliestLeftAncestor);
+		features[INDEX_ANCESTORS_CHILD_INDEX]         = tree.getChildIndexOrListMembership(earliestLeftAncestor);
+		features[INDEX_ANCESTORS_PARENT_RULE]         = tree.getRuleAlt(earliestLeftAncestorParent);
+		features[INDEX_ANCESTORS_PARENT_CHILD_INDEX]  = tree.getChildIndexOrListMembership(earliestLeftAncestorParent);
+		features[INDEX_ANCESTORS_PARENT2_RULE]        = tree.getRuleAlt(earliestLeftAncestorParent2);
+		features[INDEX_ANCESTORS_PARENT2_CHILD_INDEX] = tree.getChildIndexOrListMembership(earliestLeftAncestorParent2);
+		features[INDEX_ANCESTORS_PARENT3_RULE]        = tree.getRuleAlt(earliestLeftAncestorParent3);
+		features[INDEX_ANCESTORS_PARENT3_CHILD_INDEX] = tree.getChildIndexOrListMembership(earliestLeftAncestorParent3);
+		features[INDEX_ANCESTORS_PARENT4_RULE]        = tree.getRuleAlt(earliestLeftAncestorParent4);
+		features[INDEX_ANCESTORS_PARENT4_CHILD_INDEX] = tree.getChildIndexOrListMembership(earliestLeftAncestorParent4);
+		features[INDEX_ANCESTORS_PARENT5_RULE]        = tree.getRuleAlt(earliestLeftAncestorParent5);
+		features[INDEX_ANCESTORS_PARENT5_CHILD_INDEX] = tree.getChildIndexOrListMembership(earliestLeftAncestorParent5);
+
+		TerminalNode leaf = (TerminalNode)tree.nodes[node];
+		features[INDEX_MATCHING_TOKEN_STARTS_LINE] = getMatchingSymbolStartsLine(corpus, doc, leaf);
+		features[INDEX_MATCHING_TOKEN_ENDS_LINE]   = getMatchingSymbolEndsLine(corpus, doc, leaf);
 
 		features[INDEX_INFO_FILE]    = 0; // dummy; _toString() dumps filename w/o this value; placeholder for col in printout
 		features[INDEX_INFO_LINE]    = curToken.getLine();
@@ -622,6 +657,15 @@ public class Trainer {
 		features[INDEX_LIST_ELEMENT_TYPE]        = listElementType;
 	}
 
+	/** Same as {@link #getSiblingsLength(List)} using tree's token offsets */
+	public static int getSiblingsLength(FlatTree tree, List<? extends ParserRuleContext> siblings) {
+		int len = 0;
+		for (ParserRuleContext sib : siblings) {
+			len += tree.getTextLength(sib);
+		}
+		return len;
+	}
+
 	public static int getSiblingsLength(List<? extends ParserRuleContext> siblings) {
 		int len = 0;
 		for (ParserRuleContext sib : siblings) {
@@ -644,9 +688,8 @@ public class Trainer {
 	                                              InputDocument doc,
 	                                              TerminalNode node)
 	{
-		TerminalNode matchingLeftNode = getMatchingLeftSymbol(corpus, doc, node);
-		if ( matchingLeftNode != null ) {
-			Token matchingLeftToken = matchingLeftNode.getSymbol();
+		Token matchingLeftToken = doc.getMatchingSymbols(corpus).getMatchingLeftToken(node.getSymbol().getTokenIndex(), doc.tokens);
+		if ( matchingLeftToken != null ) {
 			int i = matchingLeftToken.getTokenIndex();
 			if ( i==0 ) return 1; // first token is considered first on line
 			Token tokenBeforeMatchingToken = doc.tokens.getPreviousRealToken(i);
@@ -666,9 +709,8 @@ public class Trainer {
 	                                            InputDocument doc,
 	                                            TerminalNode node)
 	{
-		TerminalNode matchingLeftNode = getMatchingLeftSymbol(corpus, doc, node);
-		if ( matchingLeftNode != null ) {
-			Token matchingLeftToken = matchingLeftNode.getSymbol();
+		Token matchingLeftToken = doc.getMatchingSymbols(corpus).getMatchingLeftToken(node.getSymbol().getTokenIndex(), doc.tokens);
+		if ( matchingLeftToken != null ) {
 			int i = matchingLeftToken.getTokenIndex();
 			Token tokenAfterMatchingToken = doc.tokens.getNextRealToken(i);
 //			System.out.printf("doc=%s node=%s, pair=%s, after=%s\n",
@@ -683,6 +725,10 @@ public class Trainer {
 		return NOT_PAIR;
 	}
 
+	/** Find node's matching left symbol by looking up its parent's pairs.
+	 *  The features use {@link MatchingSymbols}, which finds them for all
+	 *  tokens at once.
+	 */
 	public static TerminalNode getMatchingLeftSymbol(Corpus corpus,
 	                                                 InputDocument doc,
 	                                                 TerminalNode node)
@@ -10,6 +10,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.antlr.codebuff.Trainer.CAT_INJECT_NL;
 import static org.antlr.codebuff.Trainer.CAT_INJECT_WS;
@@ -46,6 +47,11 @@ import static org.antlr.codebuff.Trainer.MAX_CONTEXT_DIFF_THRESHOLD2;
 
 /** A kNN (k-Nearest Neighbor) classifier */
 public class kNNClassifier {
+	/** Which exemplars to search for neighbors; see {@link #getCandidateMode} */
+	public static final int MODE_EXACT = 0;   // exemplars whose features match exactly
+	public static final int MODE_CONTEXT = 1; // exemplars with same previous and current rule
+	public static final int MODE_ALL = 2;     // all exemplars
+
 	protected final Corpus corpus;
 	protected final FeatureMetaData[] FEATURES;
 	protected List<Integer> Y;
@@ -54,12 +60,20 @@ public class kNNClassifier {
 	public boolean dumpVotes = false;
 
 	public Map<FeatureVectorAsObject,Integer> classifyCache = new HashMap<>();
-	public static int nClassifyCalls=0;
-	public static int nClassifyCacheHits=0;
+	/** Cache statistics for all classifiers, which may be on many threads */
+	public static final LongAdder nClassifyCalls = new LongAdder();
+	public static final LongAdder nClassifyCacheHits = new LongAdder();
 
 	public Map<FeatureVectorAsObject, Neighbor[]> neighborCache = new HashMap<>();
-	public static int nNNCalls=0;
-	public static int nNNCacheHits=0;
+	public static final LongAdder nNNCalls = new LongAdder();
+	public static final LongAdder nNNCacheHits = new LongAdder();
+
+	/** Key for looking up {@link #classifyCache} without allocating; we
+	 *  copy each unknown into it. Callers may reuse their feature vectors
+	 *  so keys we keep get their own copy.
+	 */
+	protected final int[] probeFeatures = new int[Trainer.NUM_FEATURES];
+	protected final FeatureVectorAsObject probe;
 
 	public kNNClassifier(Corpus corpus, FeatureMetaData[] FEATURES, List<Integer> Y) {
 		this.corpus = corpus;
@@ -71,24 +85,24 @@ public class kNNClassifier {
 		}
 		maxDistanceCount = n;
 		this.Y = Y;
+		probe = new FeatureVectorAsObject(probeFeatures, FEATURES);
 	}
 
 	public void resetCache() {
 		classifyCache.clear();
 		neighborCache.clear();
-		nClassifyCacheHits = 0;
-		nClassifyCalls=0;
-		nClassifyCacheHits=0;
-		nNNCalls=0;
-		nNNCacheHits=0;
+		nClassifyCalls.reset();
+		nClassifyCacheHits.reset();
+		nNNCalls.reset();
+		nNNCacheHits.reset();
 	}
 
 	public int classify(int k, int[] unknown, double distanceThreshold) {
-		FeatureVectorAsObject key = new FeatureVectorAsObject(unknown, FEATURES);
-		Integer catI = classifyCache.get(key);
-		nClassifyCalls++;
+		System.arraycopy(unknown, 0, probeFeatures, 0, probeFeatures.length);
+		Integer catI = classifyCache.get(probe);
+		nClassifyCalls.increment();
 		if ( catI!=null ) {
-			nClassifyCacheHits++;
+			nClassifyCacheHits.increment();
 			return catI;
 		}
 		Neighbor[] kNN = kNN(unknown, k, distanceThreshold);
@@ -102,7 +116,7 @@ public class kNNClassifier {
 			cat = getCategoryWithMaxValue(similarities);
 		}
 
-		classifyCache.put(key, cat);
+		classifyCache.put(new FeatureVectorAsObject(unknown.clone(), FEATURES), cat);
 		return cat;
 	}
 
@@ -127,7 +141,7 @@ public class kNNClassifier {
 	public HashBag<Integer> getVotesBag(Neighbor[] kNN, int k, int[] unknown, List<Integer> Y) {
 		HashBag<Integer> votes = new HashBag<>();
 		for (int i = 0; i<k && i<kNN.length; i++) {
-			votes.add(Y.get(kNN[i].corpusVectorIndex));
+			votes.add(getCategory(kNN[i], Y));
 		}
 		if ( dumpVotes && kNN.length>0 ) {
 			System.out.print(Trainer.featureNameHeader(FEATURES));
@@ -153,7 +167,7 @@ public class kNNClassifier {
 	public Map<Integer,MutableDouble> getCategoryToSimilarityMap(Neighbor[] kNN, int k, List<Integer> Y) {
 		Map<Integer,MutableDouble> catSimilarities = new HashMap<>();
 		for (int i = 0; i<k && i<kNN.length; i++) {
-			int y = Y.get(kNN[i].corpusVectorIndex);
+			int y = getCategory(kNN[i], Y);
 			MutableDouble d = catSimilarities.get(y);
 			if ( d==null ) {
 				d = new MutableDouble(0.0);
@@ -165,6 +179,10 @@ public class kNNClassifier {
 		return catSimilarities;
 	}
 
+	public int getCategory(Neighbor neighbor, List<Integer> Y) {
+		return Y.get(neighbor.corpusVectorIndex);
+	}
+
 	public int getCategoryWithMaxValue(Map<Integer,MutableDouble> catSimilarities) {
 		double max = Integer.MIN_VALUE;
 		int catWithMaxSimilarity = -1;
@@ -182,13 +200,13 @@ public class kNNClassifier {
 	public String getPredictionAnalysis(InputDocument doc, int k, int[] unknown, List<Integer> Y, double distanceThreshold) {
 		FeatureVectorAsObject key = new FeatureVectorAsObject(unknown, FEATURES);
 		Neighbor[] kNN = neighborCache.get(key);
-		nNNCalls++;
+		nNNCalls.increment();
 		if ( kNN==null ) {
 			kNN = kNN(unknown, k, distanceThreshold);
-			neighborCache.put(key, kNN);
+			neighborCache.put(new FeatureVectorAsObject(unknown.clone(), FEATURES), kNN); // callers may reuse unknown
 		}
 		else {
-			nNNCacheHits++;
+			nNNCacheHits.increment();
 		}
 		Map<Integer, MutableDouble> similarities = getCategoryToSimilarityMap(kNN, k, Y);
 		int cat = getCategoryWithMaxValue(similarities);
@@ -231,40 +249,63 @@ public class kNNClassifier {
 	}
 
 	public Neighbor[] distances(int[] unknown, int k, double distanceThreshold) {
-		int curTokenRuleIndex = unknown[Trainer.INDEX_PREV_EARLIEST_RIGHT_ANCESTOR];
-		int prevTokenRuleIndex = unknown[Trainer.INDEX_EARLIEST_LEFT_ANCESTOR];
-		int pr = Trainer.unrulealt(prevTokenRuleIndex)[0];
-		int cr = Trainer.unrulealt(curTokenRuleIndex)[0];
-
-		List<Integer> vectorIndexesMatchingContext = null;
+		return distances(unknown, k, distanceThreshold, getCandidateExemplars(unknown, k, distanceThreshold));
+	}
 
-		// look for exact match and take result even if < k results.  If we have exact matches they always win let's say
-		if ( FEATURES==FEATURES_INJECT_WS ) {
-			vectorIndexesMatchingContext = corpus.wsFeaturesToExemplarIndexes.get(new FeatureVectorAsObject(unknown, FEATURES));
+	/** Return indexes of exemplars to compute distance to or null if we
+	 *  must scan all exemplars.
+	 */
+	public List<Integer> getCandidateExemplars(int[] unknown, int k, double distanceThreshold) {
+		if ( distanceThreshold==MAX_CONTEXT_DIFF_THRESHOLD2 ) { // couldn't find anything, open it all up.
+			return null;
 		}
-		else if ( FEATURES==FEATURES_HPOS ) {
-			vectorIndexesMatchingContext = corpus.hposFeaturesToExemplarIndexes.get(new FeatureVectorAsObject(unknown, FEATURES));
+		List<Integer> exact = getExactMatches(unknown);
+		List<Integer> context = getContextMatches(unknown);
+		int mode = getCandidateMode(FEATURES, exact!=null ? exact.size() : 0, context!=null ? context.size() : 0, k);
+		if ( mode==MODE_EXACT ) return exact;
+		if ( mode==MODE_CONTEXT ) return context;
+		return null;
+	}
+
+	/** Which exemplars to search given how many match the unknown's
+	 *  features exactly and how many have its previous and current rule.
+	 *  Exact matches win even if fewer than k, let's say, but WS must have
+	 *  4 or more at dist=0.0 and HPOS k, else we search exemplars with the
+	 *  same context, else all. {@link ShardedKNNClassifier} decides with
+	 *  counts summed over its shards so it searches the exemplars we would.
+	 */
+	public static int getCandidateMode(FeatureMetaData[] FEATURES, int numExactMatches, int numContextMatches, int k) {
+		if ( FEATURES!=FEATURES_INJECT_WS && FEATURES!=FEATURES_HPOS ) {
+			return MODE_ALL; // might be specialized feature set for testing; we have no indexes for it
 		}
-		// else might be specialized feature set for testing so ignore these caches in that case
-
-		if ( FEATURES==FEATURES_INJECT_WS && // can't use this cache if we are testing out different feature sets
-			(vectorIndexesMatchingContext==null || vectorIndexesMatchingContext.size()<=3) ) // must have at 4 or more dist=0.0 for WS else we search wider
-		{
-			// ok, not exact. look for match with prev and current rule index
-			Pair<Integer, Integer> key = new Pair<>(pr, cr);
-			vectorIndexesMatchingContext = corpus.curAndPrevTokenRuleIndexToExemplarIndexes.get(key);
+		int enough = FEATURES==FEATURES_INJECT_WS ? 4 : k;
+		if ( numExactMatches>0 && numExactMatches>=enough ) return MODE_EXACT;
+		return numContextMatches>0 ? MODE_CONTEXT : MODE_ALL;
+	}
+
+	/** Indexes of exemplars whose features match unknown exactly; null if none */
+	public List<Integer> getExactMatches(int[] unknown) {
+		if ( FEATURES==FEATURES_INJECT_WS ) {
+			return corpus.wsFeaturesToExemplarIndexes.get(new FeatureVectorAsObject(unknown, FEATURES));
 		}
-		if ( FEATURES==FEATURES_HPOS &&
-			(vectorIndexesMatchingContext==null || vectorIndexesMatchingContext.size()<k) )
-		{
-			// ok, not exact. look for match with prev and current rule index
-			Pair<Integer, Integer> key = new Pair<>(pr, cr);
-			vectorIndexesMatchingContext = corpus.curAndPrevTokenRuleIndexToExemplarIndexes.get(key);
+		if ( FEATURES==FEATURES_HPOS ) {
+			return corpus.hposFeaturesToExemplarIndexes.get(new FeatureVectorAsObject(unknown, FEATURES));
 		}
+		return null;
+	}
 
-		if ( distanceThreshold==MAX_CONTEXT_DIFF_THRESHOLD2 ) { // couldn't find anything, open it all up.
-			vectorIndexesMatchingContext = null;
-		}
+	/** Indexes of exemplars with unknown's previous and current rule; null if none */
+	public List<Integer> getContextMatches(int[] unknown) {
+		int curTokenRuleIndex = unknown[Trainer.INDEX_PREV_EARLIEST_RIGHT_ANCESTOR];
+		int prevTokenRuleIndex = unknown[Trainer.INDEX_EARLIEST_LEFT_ANCESTOR];
+		int pr = Trainer.unrulealt(prevTokenRuleIndex)[0];
+		int cr = Trainer.unrulealt(curTokenRuleIndex)[0];
+		return corpus.curAndPrevTokenRuleIndexToExemplarIndexes.get(new Pair<>(pr, cr));
+	}
+
+	public Neighbor[] distances(int[] unknown, int k, double distanceThreshold,
+	                            List<Integer> vectorIndexesMatchingContext)
+	{
 		List<Neighbor> distances = new ArrayList<>();
 		if ( vectorIndexesMatchingContext==null ) {
 			// no matching contexts for this feature, must rely on full training set
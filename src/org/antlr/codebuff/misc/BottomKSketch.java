@@ -0,0 +1,128 @@
+package org.antlr.codebuff.misc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/** A bottom-k MinHash sketch of a set: the k smallest distinct 64-bit
+ *  hashes of its elements. From two sketches we can estimate the Jaccard
+ *  similarity of the sets (how many of the k smallest hashes of the union
+ *  are in both) and from one we can estimate the number of distinct
+ *  elements (k-minimum-values, like HyperLogLog but with the same data).
+ *  Sketches of parts of a set merge into the sketch of the whole.
+ *
+ *  Hash elements well before adding them; see {@link #hash}.
+ */
+public class BottomKSketch {
+	public static final int DEFAULT_K = 1024;
+
+	public final int k;
+	/** Smallest k distinct hashes seen so far, compared as unsigned */
+	protected TreeSet<Long> mins = new TreeSet<>(Long::compareUnsigned);
+
+	public BottomKSketch() {
+		this(DEFAULT_K);
+	}
+
+	public BottomKSketch(int k) {
+		this.k = k;
+	}
+
+	public void add(long hash) {
+		if ( mins.size()<k ) {
+			mins.add(hash);
+		}
+		else if ( Long.compareUnsigned(hash, mins.last())<0 && mins.add(hash) ) {
+			mins.pollLast();
+		}
+	}
+
+	public void merge(BottomKSketch other) {
+		if ( other.k!=k ) throw new IllegalArgumentException("can't merge sketches with different k");
+		for (long h : other.mins) {
+			add(h);
+		}
+	}
+
+	/** Estimated number of distinct elements added; exact below k */
+	public double cardinality() {
+		if ( mins.size()<k ) return mins.size();
+		// kth smallest of n uniform hashes in [0,1) is about k/n
+		return (k-1)/toUnitInterval(mins.last());
+	}
+
+	/** Estimate |A intersect B| / |A union B| */
+	public double jaccard(BottomKSketch other) {
+		if ( other.k!=k ) throw new IllegalArgumentException("can't compare sketches with different k");
+		BottomKSketch union = new BottomKSketch(k);
+		union.merge(this);
+		union.merge(other);
+		if ( union.mins.isEmpty() ) return 0.0;
+		int both = 0;
+		for (long h : union.mins) {
+			if ( mins.contains(h) && other.mins.contains(h) ) both++;
+		}
+		return both/(double)union.mins.size();
+	}
+
+	/** Estimate what fraction of other's elements are also in this set,
+	 *  |A intersect B| / |B|, from the Jaccard estimate and cardinalities.
+	 */
+	public double containment(BottomKSketch other) {
+		double b = other.cardinality();
+		if ( b==0 ) return 0.0;
+		double j = jaccard(other);
+		double a = cardinality();
+		// |A intersect B| = J * |A union B| = J * (|A|+|B|) / (1+J)
+		return Math.min(1.0, j*(a+b)/(1+j)/b);
+	}
+
+	public int size() {
+		return mins.size();
+	}
+
+	public long[] getHashes() {
+		long[] hashes = new long[mins.size()];
+		int i = 0;
+		for (long h : mins) {
+			hashes[i++] = h;
+		}
+		return hashes;
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(k);
+		out.writeInt(mins.size());
+		for (long h : mins) {
+			out.writeLong(h);
+		}
+	}
+
+	public static BottomKSketch read(DataInputStream in) throws IOException {
+		BottomKSketch sketch = new BottomKSketch(in.readInt());
+		int n = in.readInt();
+		for (int i = 0; i<n; i++) {
+			sketch.mins.add(in.readLong());
+		}
+		return sketch;
+	}
+
+	/** Mix an element's bits so hashes look uniform (splitmix64 finalizer) */
+	public static long hash(long x) {
+		x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+		x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+		return x ^ (x >>> 31);
+	}
+
+	protected static double toUnitInterval(long hash) {
+		return (hash >>> 11) * 0x1.0p-53;
+	}
+
+	@Override
+	public String toString() {
+		return "BottomKSketch(k="+k+", ~"+Math.round(cardinality())+" distinct, "+
+			Arrays.toString(Arrays.copyOf(getHashes(), Math.min(3, mins.size())))+"...)";
+	}
+}
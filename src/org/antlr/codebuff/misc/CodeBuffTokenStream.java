@@ -9,8 +9,28 @@ import org.antlr.v4.runtime.TokenSource;
 import java.util.ArrayList;
 import java.util.List;
 
-/** Override to fix bug in LB() */
+/** Override to fix bug in LB(). Also keeps a table of facts about each
+ *  token, built on first use: where the previous and next real tokens are
+ *  and whether a token is whitespace and how many newlines it has. These
+ *  answer without scanning channels or matching regexes. Call
+ *  {@link #clearTokenTable} after replacing tokens.
+ */
 public class CodeBuffTokenStream extends CommonTokenStream {
+	/** Text is all whitespace, like "\\s+" */
+	public static final int WHITESPACE = 1;
+	/** Text is all newlines, like "\\n+" */
+	public static final int NEWLINES = 2;
+
+	/** Index of the previous/next real token (or EOF) for each token; -1 if none.
+	 *  We set prevReal last so threads that see it see the whole table.
+	 */
+	protected volatile int[] prevReal;
+	protected int[] nextReal;
+	/** Newlines in each token's text */
+	protected int[] newlines;
+	/** {@link #WHITESPACE} and {@link #NEWLINES} flags for each token */
+	protected byte[] kind;
+
 	public CodeBuffTokenStream(CommonTokenStream stream) {
 		super(stream.getTokenSource());
 		this.fetchedEOF = false;
@@ -24,6 +44,31 @@ public class CodeBuffTokenStream extends CommonTokenStream {
 		super(tokenSource);
 	}
 
+	/** A stream of tokens we already have, all of them through EOF, such
+	 *  as after relexing part of a document.
+	 */
+	public CodeBuffTokenStream(TokenSource tokenSource, List<? extends Token> tokens) {
+		super(tokenSource);
+		this.tokens.addAll(tokens);
+		this.fetchedEOF = true;
+	}
+
+	/** A stream of copies of our tokens, all of them through EOF, so the
+	 *  copies' positions can change without touching ours. Shares our token
+	 *  table as the copies have the same text and channels.
+	 */
+	public CodeBuffTokenStream copy() {
+		indexTokens();
+		int[] table = prevReal; // read first so we see the rest of the table
+		CodeBuffTokenStream copy = new CodeBuffTokenStream(this);
+		copy.fetchedEOF = true;
+		copy.nextReal = nextReal;
+		copy.newlines = newlines;
+		copy.kind = kind;
+		copy.prevReal = table;
+		return copy;
+	}
+
 	@Override
 	protected Token LB(int k) {
 		if ( k==0 || (p-k)<0 ) return null;
@@ -41,8 +86,7 @@ public class CodeBuffTokenStream extends CommonTokenStream {
 	}
 
 	public Token getPreviousRealToken(int i) {
-		i--; // previousTokenOnChannel is inclusive
-		int pi = previousTokenOnChannel(i, Token.DEFAULT_CHANNEL);
+		int pi = getPreviousRealTokenIndex(i);
 		if ( pi>=0 && pi<size() ) {
 			return get(pi);
 		}
@@ -50,14 +94,126 @@ public class CodeBuffTokenStream extends CommonTokenStream {
 	}
 
 	public Token getNextRealToken(int i) {
-		i++; // nextTokenOnChannel is inclusive
-		int ni = nextTokenOnChannel(i, Token.DEFAULT_CHANNEL);
+		int ni = getNextRealTokenIndex(i);
 		if ( ni>=0 && ni<size() ) {
 			return get(ni);
 		}
 		return null;
 	}
 
+	/** Index of the real token (or EOF) before i; -1 if none */
+	public int getPreviousRealTokenIndex(int i) {
+		indexTokens();
+		if ( i>0 && i<prevReal.length ) {
+			return prevReal[i];
+		}
+		return previousTokenOnChannel(i-1, Token.DEFAULT_CHANNEL); // previousTokenOnChannel is inclusive
+	}
+
+	/** Index of the real token (or EOF) after i */
+	public int getNextRealTokenIndex(int i) {
+		indexTokens();
+		if ( i>=-1 && i<nextReal.length-1 ) {
+			return i>=0 ? nextReal[i] : nextReal.length>0 && isReal(0) ? 0 : nextReal[0];
+		}
+		return nextTokenOnChannel(i+1, Token.DEFAULT_CHANNEL); // nextTokenOnChannel is inclusive
+	}
+
+	public boolean isWhitespace(int i) {
+		indexTokens();
+		return (kind[i]&WHITESPACE)!=0;
+	}
+
+	public boolean isNewlines(int i) {
+		indexTokens();
+		return (kind[i]&NEWLINES)!=0;
+	}
+
+	public int getNewlineCount(int i) {
+		indexTokens();
+		return newlines[i];
+	}
+
+	/** Is i a hidden token other than whitespace, such as a comment? */
+	public boolean isComment(int i) {
+		indexTokens();
+		return (kind[i]&WHITESPACE)==0 && get(i).getChannel()!=Token.DEFAULT_CHANNEL;
+	}
+
+	/** Forget the token table; e.g., after replacing tokens */
+	public void clearTokenTable() {
+		prevReal = null;
+	}
+
+	protected boolean isReal(int i) {
+		Token t = tokens.get(i);
+		return t.getChannel()==Token.DEFAULT_CHANNEL || t.getType()==Token.EOF;
+	}
+
+	/** Build the token table if we haven't or have more tokens since.
+	 *  Once built for all tokens through EOF, threads can share the table
+	 *  without locking.
+	 */
+	protected void indexTokens() {
+		int[] table = prevReal;
+		if ( table!=null && table.length==tokens.size() ) return;
+		buildTokenTable();
+	}
+
+	protected synchronized void buildTokenTable() {
+		if ( tokens.isEmpty() || tokens.get(tokens.size()-1).getType()!=Token.EOF ) {
+			fill(); // the parser might not have looked at all tokens
+		}
+		int n = tokens.size();
+		if ( prevReal!=null && prevReal.length==n ) return;
+		int[] prevReal = new int[n];
+		int[] nextReal = new int[n];
+		int[] newlines = new int[n];
+		byte[] kind = new byte[n];
+		int prev = -1;
+		for (int i = 0; i<n; i++) {
+			prevReal[i] = prev;
+			if ( isReal(i) ) prev = i;
+			String text = tokens.get(i).getText();
+			int nl = 0;
+			boolean ws = text!=null && !text.isEmpty();
+			boolean allNL = ws;
+			if ( text!=null ) {
+				for (int c = 0; c<text.length(); c++) {
+					char ch = text.charAt(c);
+					if ( ch=='\n' ) nl++;
+					else allNL = false;
+					if ( !isWhitespace(ch) ) ws = false;
+				}
+			}
+			newlines[i] = nl;
+			kind[i] = (byte)((ws ? WHITESPACE : 0) | (allNL ? NEWLINES : 0));
+		}
+		int next = n-1; // like nextTokenOnChannel, we stop at the last token
+		for (int i = n-1; i>=0; i--) {
+			nextReal[i] = next;
+			if ( isReal(i) ) next = i;
+		}
+		this.nextReal = nextReal;
+		this.newlines = newlines;
+		this.kind = kind;
+		this.prevReal = prevReal;
+	}
+
+	/** Same chars as "\\s" in a regex */
+	public static boolean isWhitespace(char c) {
+		return c==' ' || c=='\t' || c=='\n' || c==0x0B || c=='\f' || c=='\r';
+	}
+
+	/** Same as text.matches("\\s+") */
+	public static boolean isWhitespace(String text) {
+		if ( text.isEmpty() ) return false;
+		for (int i = 0; i<text.length(); i++) {
+			if ( !isWhitespace(text.charAt(i)) ) return false;
+		}
+		return true;
+	}
+
 	public List<Token> getRealTokens() {
 		return getRealTokens(0, size()-1);
 	}
@@ -0,0 +1,177 @@
+package org.antlr.codebuff.misc;
+
+import org.antlr.codebuff.InputDocument;
+import org.antlr.v4.runtime.Token;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Rather than the formatted text, collect the edits that turn the
+ *  original text into it. Formatting only changes the whitespace and
+ *  comments between real tokens, so we compare what we're sent between
+ *  tokens with the original text between the same tokens as it comes and
+ *  make an edit only where they differ, trimmed to the chars that differ.
+ *  While what we're sent matches we keep nothing, so formatting a file
+ *  that doesn't change allocates no output at all.
+ *
+ *  Given a document, the original text is the file's, tabs and all, not
+ *  the content we parsed, so edits apply to the file; we map token offsets
+ *  back to it.
+ */
+public class EditScriptEmitter extends Emitter {
+	/** Replace length chars at offset of the original text with replacement */
+	public static class Edit {
+		public final int offset;
+		public final int length;
+		public final String replacement;
+
+		public Edit(int offset, int length, String replacement) {
+			this.offset = offset;
+			this.length = length;
+			this.replacement = replacement;
+		}
+
+		@Override
+		public String toString() {
+			return offset+","+length+",\""+escape(replacement)+"\"";
+		}
+	}
+
+	protected final String original;
+	/** The document whose tokens we're sent, to map their offsets into
+	 *  original; null if original is the text they were lexed from
+	 */
+	protected final InputDocument doc;
+	protected List<Edit> edits = Collections.emptyList();
+
+	/** Offset in original of the text between the last token and the next */
+	protected int gapStart;
+	/** How many chars we've been sent since gapStart that match original */
+	protected int matched;
+	/** Has a char we've been sent since gapStart not matched? */
+	protected boolean mismatched;
+	/** Chars sent since the first that didn't match; reused across gaps */
+	protected StringBuilder changed;
+
+	public EditScriptEmitter(String original) {
+		super(null);
+		this.original = original;
+		this.doc = null;
+	}
+
+	/** Edits against doc's file text, {@link InputDocument#getRawContent} */
+	public EditScriptEmitter(InputDocument doc) {
+		super(null);
+		this.original = doc.getRawContent();
+		this.doc = doc;
+	}
+
+	public List<Edit> getEdits() {
+		return edits;
+	}
+
+	@Override
+	public void emit(CharSequence text) {
+		for (int i = 0; i<text.length(); i++) {
+			compare(text.charAt(i));
+		}
+		length += text.length();
+	}
+
+	@Override
+	public void emit(char c, int n) {
+		if ( n<=0 ) return;
+		for (int i = 1; i<=n; i++) {
+			compare(c);
+		}
+		length += n;
+	}
+
+	@Override
+	public void emitToken(Token original, CharSequence text) {
+		endGap(offset(original.getStartIndex()));
+		gapStart = offset(original.getStopIndex()+1);
+		length += text.length();
+	}
+
+	/** Close the text after the last token */
+	@Override
+	public void flush() {
+		endGap(original.length());
+		gapStart = original.length();
+	}
+
+	/** The offset in original of offset in the text tokens were lexed from */
+	protected int offset(int offset) {
+		return doc!=null ? doc.rawOffset(offset) : offset;
+	}
+
+	protected void compare(char c) {
+		if ( !mismatched ) {
+			int i = gapStart+matched;
+			if ( i<original.length() && original.charAt(i)==c ) {
+				matched++;
+				return;
+			}
+			mismatched = true;
+			if ( changed==null ) changed = new StringBuilder();
+		}
+		changed.append(c);
+	}
+
+	/** We've been sent all the text in front of the original text at gapEnd;
+	 *  record an edit if it differs from what was there.
+	 */
+	protected void endGap(int gapEnd) {
+		int gapLength = gapEnd-gapStart;
+		if ( mismatched || matched!=gapLength ) {
+			// what we were sent after the common prefix vs what was there
+			int prefix = Math.min(matched, gapLength);
+			StringBuilder sent = new StringBuilder();
+			sent.append(original, gapStart+prefix, gapStart+matched);
+			if ( mismatched ) sent.append(changed);
+			int was = gapLength-prefix;
+			int suffix = 0;
+			while ( suffix<was && suffix<sent.length() &&
+				    sent.charAt(sent.length()-1-suffix)==original.charAt(gapEnd-1-suffix) )
+			{
+				suffix++;
+			}
+			if ( edits.isEmpty() ) edits = new ArrayList<>();
+			edits.add(new Edit(gapStart+prefix, was-suffix, sent.substring(0, sent.length()-suffix)));
+		}
+		matched = 0;
+		if ( mismatched ) changed.setLength(0);
+		mismatched = false;
+	}
+
+	/** Apply edits, in order of offset, to text */
+	public static String apply(String text, List<Edit> edits) {
+		StringBuilder buf = new StringBuilder();
+		int p = 0;
+		for (Edit edit : edits) {
+			buf.append(text, p, edit.offset);
+			buf.append(edit.replacement);
+			p = edit.offset+edit.length;
+		}
+		buf.append(text, p, text.length());
+		return buf.toString();
+	}
+
+	public static String escape(String s) {
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			switch ( c ) {
+				case '\n' : buf.append("\\n"); break;
+				case '\r' : buf.append("\\r"); break;
+				case '\t' : buf.append("\\t"); break;
+				case '"' : buf.append("\\\""); break;
+				case '\\' : buf.append("\\\\"); break;
+				default : buf.append(c);
+			}
+		}
+		return buf.toString();
+	}
+}
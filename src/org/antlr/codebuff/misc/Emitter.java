@@ -0,0 +1,112 @@
+package org.antlr.codebuff.misc;
+
+import org.antlr.v4.runtime.Token;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/** Where a formatter sends its output: any {@link Appendable}, such as a
+ *  StringBuilder or a Writer streaming to a file, so we needn't hold the
+ *  whole output. Runs of spaces and newlines come from shared constant
+ *  runs rather than new strings. We count the chars emitted so callers
+ *  can record where each token landed.
+ *
+ *  Appendables can throw IOException; we rethrow it unchecked so the
+ *  per-token formatting methods needn't declare it.
+ */
+public class Emitter {
+	public static final int RUN_LENGTH = 256;
+
+	/** RUN_LENGTH spaces; use substring(0, n) for fewer */
+	public static final String SPACES = run(' ');
+	/** RUN_LENGTH newlines; use substring(0, n) for fewer */
+	public static final String NEWLINES = run('\n');
+
+	protected static final char[] SPACE_CHARS = SPACES.toCharArray();
+	protected static final char[] NEWLINE_CHARS = NEWLINES.toCharArray();
+
+	protected final Appendable out;
+	/** out if it's a Writer, which can write part of a char[] without copying */
+	protected final Writer writer;
+	protected int length;
+
+	public Emitter(Appendable out) {
+		this.out = out;
+		this.writer = out instanceof Writer ? (Writer)out : null;
+	}
+
+	public void emit(CharSequence text) {
+		try {
+			out.append(text);
+		}
+		catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		length += text.length();
+	}
+
+	/** Emit the text of a real token; original is that token in the
+	 *  document we're formatting, which has its offsets in the original
+	 *  text. Everything else we emit is whitespace and comments.
+	 */
+	public void emitToken(Token original, CharSequence text) {
+		emit(text);
+	}
+
+	/** Emit n copies of c */
+	public void emit(char c, int n) {
+		if ( n<=0 ) return;
+		try {
+			if ( c==' ' || c=='\n' ) {
+				for (int left = n; left>0; left -= RUN_LENGTH) {
+					emitRun(c, Math.min(left, RUN_LENGTH));
+				}
+			}
+			else {
+				for (int i = 1; i<=n; i++) {
+					out.append(c);
+				}
+			}
+		}
+		catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		length += n;
+	}
+
+	protected void emitRun(char c, int n) throws IOException {
+		if ( writer!=null ) {
+			writer.write(c==' ' ? SPACE_CHARS : NEWLINE_CHARS, 0, n);
+		}
+		else {
+			out.append(c==' ' ? SPACES : NEWLINES, 0, n);
+		}
+	}
+
+	/** Number of chars emitted so far, which is the offset of the next */
+	public int length() {
+		return length;
+	}
+
+	public Appendable getOut() {
+		return out;
+	}
+
+	public void flush() {
+		if ( writer==null ) return;
+		try {
+			writer.flush();
+		}
+		catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+	protected static String run(char c) {
+		char[] chars = new char[RUN_LENGTH];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}
@@ -59,6 +59,18 @@ public class HashBag<T> implements Map<T, Integer> {
 		return get(key);
 	}
 
+	/** Add n more of key */
+	public Integer add(T key, int n) {
+		MutableInt I = data.get(key);
+		if ( I==null ) {
+			data.put(key, new MutableInt(n));
+		}
+		else {
+			I.i += n;
+		}
+		return get(key);
+	}
+
 	@Override
 	public Integer remove(Object key) {
 		Integer I = get(key);
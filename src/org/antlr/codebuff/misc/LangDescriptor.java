@@ -15,6 +15,11 @@ public class LangDescriptor {
 	 *  rule matches newline, then this is optional.
 	 */
 	public int singleLineCommentType;
+	/** Token types that end a statement, like ';' in SQL, if we can format
+	 *  a script of this language a statement at a time; null if not. See
+	 *  {@link org.antlr.codebuff.FormatEngine#formatStatements}.
+	 */
+	public int[] statementTerminatorTypes;
 
 	public LangDescriptor(String name,
 	                      String corpusDir,
@@ -0,0 +1,58 @@
+package org.antlr.codebuff.misc;
+
+import org.antlr.v4.runtime.Token;
+
+import java.util.Arrays;
+import java.util.List;
+
+/** The first real token on each line of a token stream so we can find
+ *  the first token on the previous non-empty line without scanning back
+ *  through the tokens. Add real tokens in order once they have their line
+ *  numbers; during formatting, that's as we emit them.
+ */
+public class LineIndex {
+	/** First real token on each line, indexed by line; null if none */
+	protected Token[] firstTokenOnLine = new Token[64];
+	/** Nearest line before each line that has a real token; 0 if none */
+	protected int[] prevNonEmptyLine = new int[64];
+	/** Line of the last token added */
+	protected int lastLine;
+	protected Token firstToken;
+
+	public LineIndex() {
+	}
+
+	public LineIndex(List<? extends Token> tokens) {
+		for (Token t : tokens) {
+			if ( t.getChannel()==Token.DEFAULT_CHANNEL ) add(t);
+		}
+	}
+
+	public void add(Token t) {
+		if ( firstToken==null ) firstToken = t;
+		int line = t.getLine();
+		if ( line<=lastLine ) return; // not first on its line
+		if ( line>=firstTokenOnLine.length ) {
+			int n = Math.max(line+1, firstTokenOnLine.length*2);
+			firstTokenOnLine = Arrays.copyOf(firstTokenOnLine, n);
+			prevNonEmptyLine = Arrays.copyOf(prevNonEmptyLine, n);
+		}
+		for (int l = lastLine+1; l<=line; l++) {
+			prevNonEmptyLine[l] = lastLine;
+		}
+		firstTokenOnLine[line] = t;
+		lastLine = line;
+	}
+
+	/** First token on the nearest line before line with a real token on it.
+	 *  Like {@link org.antlr.codebuff.Trainer#getTokensOnPreviousLine}, give
+	 *  the first token if there is no such line and null if no tokens.
+	 */
+	public Token getFirstTokenOnPreviousLine(int line) {
+		int prev;
+		if ( line>lastLine ) prev = lastLine;
+		else if ( line>0 ) prev = prevNonEmptyLine[line];
+		else prev = 0;
+		return prev>0 ? firstTokenOnLine[prev] : firstToken;
+	}
+}
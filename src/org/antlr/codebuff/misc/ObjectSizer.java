@@ -0,0 +1,237 @@
+package org.antlr.codebuff.misc;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** Add up the heap bytes of object graphs. Each object counts once, for
+ *  the first graph that reaches it, so measuring the parts of a structure
+ *  one after the other splits its size among them without double counting.
+ *
+ *  Sizes assume a 64-bit HotSpot JVM with compressed pointers: 12-byte
+ *  headers, 4-byte references, 8-byte alignment. We walk our own and
+ *  ANTLR's objects field by field with reflection. JDK collections,
+ *  strings and boxes are opaque on newer JVMs, so we size them from
+ *  their public API using the layout of the OpenJDK 8+ implementations,
+ *  and walk their elements. Other JDK objects count their own fields
+ *  only. Class objects are shared so count as nothing.
+ */
+public class ObjectSizer {
+	public static final int HEADER = 12;
+	public static final int ARRAY_HEADER = 16;
+	public static final int REF = 4;
+
+	protected final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+	protected final Map<Class<?>, Field[]> fieldCache = new HashMap<>();
+	protected final Map<Class<?>, Long> shallowCache = new HashMap<>();
+
+	/** Objects sized so far */
+	public long numObjects;
+
+	/** Don't count or walk these objects; e.g., shared language descriptors */
+	public void ignore(Object o) {
+		if ( o!=null ) visited.add(o);
+	}
+
+	/** Bytes of o alone, such as a list without its elements; its
+	 *  references are left for other parts to count.
+	 */
+	public long shellSizeOf(Object o) {
+		if ( o==null || !visited.add(o) ) return 0;
+		numObjects++;
+		return size(o, null);
+	}
+
+	/** Bytes of everything reachable from root not already counted */
+	public long sizeOf(Object root) {
+		long bytes = 0;
+		Deque<Object> work = new ArrayDeque<>();
+		push(work, root);
+		while ( !work.isEmpty() ) {
+			Object o = work.pop();
+			numObjects++;
+			bytes += size(o, work);
+		}
+		return bytes;
+	}
+
+	/** Queue o to size later unless seen; if work is null, we're sizing a shell */
+	protected void push(Deque<Object> work, Object o) {
+		if ( work==null || o==null || o instanceof Class || o instanceof Boolean || o instanceof Enum ) return;
+		if ( visited.add(o) ) work.push(o);
+	}
+
+	/** Size of o itself, pushing what it references */
+	protected long size(Object o, Deque<Object> work) {
+		Class<?> c = o.getClass();
+		if ( c.isArray() ) {
+			int n = Array.getLength(o);
+			Class<?> elementType = c.getComponentType();
+			if ( !elementType.isPrimitive() ) {
+				Object[] elements = (Object[])o;
+				for (Object e : elements) {
+					push(work, e);
+				}
+			}
+			return align(ARRAY_HEADER+(long)n*sizeOfType(elementType));
+		}
+		if ( o instanceof String ) {
+			String s = (String)o;
+			boolean latin1 = true;
+			for (int i = 0; i<s.length() && latin1; i++) {
+				latin1 = s.charAt(i)<256;
+			}
+			return 24+align(ARRAY_HEADER+(long)s.length()*(latin1 ? 1 : 2));
+		}
+		if ( o instanceof Integer && Integer.valueOf((Integer)o)==o ) {
+			return 0; // shared from the box cache
+		}
+		if ( o instanceof Integer || o instanceof Short || o instanceof Character || o instanceof Byte || o instanceof Float ) {
+			return 16;
+		}
+		if ( o instanceof Long || o instanceof Double ) {
+			return 24;
+		}
+		if ( (o instanceof Collection || o instanceof Map) && extendsJDKClass(c) ) {
+			// size the JDK part by API, then fields of subclasses like MultiMap
+			long bytes = sizeOfCollection(o, work);
+			for (Class<?> k = c; !isJDKClass(k); k = k.getSuperclass()) {
+				for (Field f : k.getDeclaredFields()) {
+					if ( !Modifier.isStatic(f.getModifiers()) ) bytes += sizeOfType(f.getType());
+				}
+			}
+			pushFields(o, c, work, false);
+			return bytes;
+		}
+		pushFields(o, c, work, true);
+		return shallowSize(c);
+	}
+
+	protected void pushFields(Object o, Class<?> c, Deque<Object> work, boolean includeJDKFields) {
+		for (Field f : getReferenceFields(c)) {
+			if ( !includeJDKFields && isJDKClass(f.getDeclaringClass()) ) continue;
+			try {
+				push(work, f.get(o));
+			}
+			catch (IllegalAccessException iae) {
+				// can't see inside; count the object itself only
+			}
+		}
+	}
+
+	protected static boolean isJDKClass(Class<?> c) {
+		return c.getName().startsWith("java.");
+	}
+
+	protected static boolean extendsJDKClass(Class<?> c) {
+		for (Class<?> k = c; k!=null && k!=Object.class; k = k.getSuperclass()) {
+			if ( isJDKClass(k) ) return true;
+		}
+		return false;
+	}
+
+	protected long sizeOfCollection(Object o, Deque<Object> work) {
+		if ( o instanceof Map ) {
+			Map<?,?> m = (Map<?,?>)o;
+			for (Map.Entry<?,?> e : m.entrySet()) {
+				push(work, e.getKey());
+				push(work, e.getValue());
+			}
+			int n = m.size();
+			if ( o instanceof TreeMap ) return 48+40L*n;
+			if ( o instanceof IdentityHashMap ) return 40+align(ARRAY_HEADER+2L*REF*tableSize(n, 2.0/3));
+			// HashMap and friends
+			long node = o instanceof LinkedHashMap ? 40 : 32;
+			long map = o instanceof LinkedHashMap ? 56 : 48;
+			return map+(n>0 ? align(ARRAY_HEADER+(long)REF*tableSize(n, 0.75)) : 0)+node*n;
+		}
+		Collection<?> c = (Collection<?>)o;
+		for (Object e : c) {
+			push(work, e);
+		}
+		int n = c.size();
+		if ( o instanceof ArrayList ) {
+			return 24+(n>0 ? align(ARRAY_HEADER+(long)REF*n) : 0); // assumes trimmed; may have up to 50% more
+		}
+		if ( o instanceof LinkedList ) return 32+24L*n;
+		if ( o instanceof TreeSet ) return 16+48+40L*n;
+		if ( o instanceof HashSet ) { // including LinkedHashSet
+			long node = o instanceof LinkedHashSet ? 40 : 32;
+			long map = o instanceof LinkedHashSet ? 56 : 48;
+			return 16+map+(n>0 ? align(ARRAY_HEADER+(long)REF*tableSize(n, 0.75)) : 0)+node*n;
+		}
+		return 24+align(ARRAY_HEADER+(long)REF*n);
+	}
+
+	protected static int tableSize(int n, double loadFactor) {
+		int size = 16;
+		while ( size*loadFactor<n ) size <<= 1;
+		return size;
+	}
+
+	/** Bytes of an instance of c not counting what it references */
+	public long shallowSize(Class<?> c) {
+		Long size = shallowCache.get(c);
+		if ( size!=null ) return size;
+		long bytes = HEADER;
+		for (Class<?> k = c; k!=null; k = k.getSuperclass()) {
+			for (Field f : k.getDeclaredFields()) {
+				if ( Modifier.isStatic(f.getModifiers()) ) continue;
+				bytes += sizeOfType(f.getType());
+			}
+		}
+		bytes = align(bytes);
+		shallowCache.put(c, bytes);
+		return bytes;
+	}
+
+	/** Non-static reference fields of c and superclasses we can read */
+	protected Field[] getReferenceFields(Class<?> c) {
+		Field[] fields = fieldCache.get(c);
+		if ( fields!=null ) return fields;
+		List<Field> refs = new ArrayList<>();
+		for (Class<?> k = c; k!=null; k = k.getSuperclass()) {
+			for (Field f : k.getDeclaredFields()) {
+				if ( Modifier.isStatic(f.getModifiers()) || f.getType().isPrimitive() ) continue;
+				try {
+					f.setAccessible(true);
+					refs.add(f);
+				}
+				catch (RuntimeException e) {
+					// JDK internals closed to us
+				}
+			}
+		}
+		fields = refs.toArray(new Field[refs.size()]);
+		fieldCache.put(c, fields);
+		return fields;
+	}
+
+	public static int sizeOfType(Class<?> type) {
+		if ( type==long.class || type==double.class ) return 8;
+		if ( type==int.class || type==float.class ) return 4;
+		if ( type==short.class || type==char.class ) return 2;
+		if ( type==byte.class || type==boolean.class ) return 1;
+		return REF;
+	}
+
+	public static long align(long bytes) {
+		return (bytes+7) & ~7L;
+	}
+}
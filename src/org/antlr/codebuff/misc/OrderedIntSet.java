@@ -0,0 +1,67 @@
+package org.antlr.codebuff.misc;
+
+import java.util.Arrays;
+
+/** A set of ints that remembers the order we added them, without boxing.
+ *  The table holds, per open-addressed slot, the position plus one of a
+ *  value in the list of values; 0 if empty.
+ */
+public class OrderedIntSet {
+	protected int[] values = new int[4];
+	protected int size;
+	protected int[] table = new int[8];
+
+	/** Add v if it's not here; return whether we did */
+	public boolean add(int v) {
+		int mask = table.length-1;
+		int slot = hash(v)&mask;
+		while ( table[slot]!=0 ) {
+			if ( values[table[slot]-1]==v ) return false;
+			slot = (slot+1)&mask;
+		}
+		if ( size==values.length ) values = Arrays.copyOf(values, size*2);
+		values[size++] = v;
+		table[slot] = size;
+		if ( size*2>table.length ) rehash();
+		return true;
+	}
+
+	/** Add other's values in the order other added them */
+	public void addAll(OrderedIntSet other) {
+		for (int i = 0; i<other.size; i++) {
+			add(other.values[i]);
+		}
+	}
+
+	public boolean contains(int v) {
+		int mask = table.length-1;
+		for (int slot = hash(v)&mask; table[slot]!=0; slot = (slot+1)&mask) {
+			if ( values[table[slot]-1]==v ) return true;
+		}
+		return false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** The ith value we added */
+	public int get(int i) {
+		return values[i];
+	}
+
+	protected void rehash() {
+		table = new int[table.length*2];
+		int mask = table.length-1;
+		for (int p = 0; p<size; p++) {
+			int slot = hash(values[p])&mask;
+			while ( table[slot]!=0 ) slot = (slot+1)&mask;
+			table[slot] = p+1;
+		}
+	}
+
+	protected static int hash(int v) {
+		int h = v*0x9E3779B9;
+		return h^(h>>>16);
+	}
+}
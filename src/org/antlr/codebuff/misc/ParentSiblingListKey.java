@@ -22,6 +22,17 @@ public class ParentSiblingListKey {
 		this.separatorTokenType = separatorTokenType;
 	}
 
+	public ParentSiblingListKey(int parentRuleIndex, int parentRuleAlt,
+	                            int childRuleIndex, int childRuleAlt,
+	                            int separatorTokenType)
+	{
+		this.parentRuleIndex = parentRuleIndex;
+		this.parentRuleAlt = parentRuleAlt;
+		this.childRuleIndex = childRuleIndex;
+		this.childRuleAlt = childRuleAlt;
+		this.separatorTokenType = separatorTokenType;
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		if (obj == this) {
@@ -1,20 +1,185 @@
 package org.antlr.codebuff.misc;
 
-/** Track stats about a single parent:alt,child:alt list or split-list */
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Track stats about a single parent:alt,child:alt list or split-list.
+ *
+ *  Rather than keep every list length we see, keep a compact sketch
+ *  that we can update one length at a time and merge with sketches
+ *  computed from other documents. Moments are exact: list lengths are
+ *  ints so we keep integer power sums, which merge without rounding.
+ *  Quantiles are exact until we've seen more than maxExactValues distinct
+ *  lengths; then we fold counts into logarithmic buckets so that any
+ *  quantile is within relativeAccuracy of a length we actually saw
+ *  (the DDSketch approach). Bucket of a length doesn't depend on what
+ *  else we've seen, so merging partial sketches in any order gives the
+ *  same sketch as adding all lengths to one.
+ */
 public class SiblingListStats {
-	public final int numSamples, min, median, max;
-	public final double variance;
+	public static final int DEFAULT_MAX_EXACT_VALUES = 256;
+	public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+	public int numSamples;
+	public int min = Integer.MAX_VALUE;
+	public int max = Integer.MIN_VALUE;
+	public long sum;
+	public long sumOfSquares;
+
+	public final int maxExactValues;
+	public final double relativeAccuracy;
+	protected final double logGamma;
+
+	/** Maps length to count if exact else bucket index to count */
+	protected TreeMap<Integer,Integer> counts = new TreeMap<>();
+	protected boolean exact = true;
+
+	public SiblingListStats() {
+		this(DEFAULT_MAX_EXACT_VALUES, DEFAULT_RELATIVE_ACCURACY);
+	}
+
+	public SiblingListStats(int maxExactValues, double relativeAccuracy) {
+		this.maxExactValues = maxExactValues;
+		this.relativeAccuracy = relativeAccuracy;
+		this.logGamma = Math.log((1+relativeAccuracy)/(1-relativeAccuracy));
+	}
+
+	public void add(int len) {
+		numSamples++;
+		min = Math.min(min, len);
+		max = Math.max(max, len);
+		sum += len;
+		sumOfSquares += (long)len*len;
+		increment(exact ? len : bucket(len), 1);
+		if ( exact && counts.size()>maxExactValues ) {
+			foldIntoBuckets();
+		}
+	}
+
+	/** Add in stats from another sketch with the same maxExactValues and relativeAccuracy */
+	public void merge(SiblingListStats other) {
+		if ( other.maxExactValues!=maxExactValues || other.relativeAccuracy!=relativeAccuracy ) {
+			throw new IllegalArgumentException("can't merge sketches with different parameters");
+		}
+		numSamples += other.numSamples;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+		sum += other.sum;
+		sumOfSquares += other.sumOfSquares;
+		if ( exact && !other.exact ) foldIntoBuckets();
+		for (Map.Entry<Integer,Integer> e : other.counts.entrySet()) {
+			int key = exact==other.exact ? e.getKey() : bucket(e.getKey());
+			increment(key, e.getValue());
+		}
+		if ( exact && counts.size()>maxExactValues ) {
+			foldIntoBuckets();
+		}
+	}
+
+	/** Return the length at rank floor(q*numSamples) in sorted order,
+	 *  which for q=0.5 is the upper median like lens.get(n/2).
+	 */
+	public int quantile(double q) {
+		if ( numSamples==0 ) return 0;
+		long rank = Math.min(numSamples-1, Math.max(0, (long)(q*numSamples)));
+		long seen = 0;
+		for (Map.Entry<Integer,Integer> e : counts.entrySet()) {
+			seen += e.getValue();
+			if ( seen>rank ) {
+				int v = exact ? e.getKey() : bucketValue(e.getKey());
+				return Math.max(min, Math.min(max, v));
+			}
+		}
+		return max;
+	}
+
+	public int median() {
+		return quantile(0.5);
+	}
+
+	public double mean() {
+		return numSamples>0 ? sum/(double)numSamples : 0.0;
+	}
+
+	/** Population variance like {@link BuffUtils#variance} */
+	public double variance() {
+		if ( numSamples==0 ) return 0.0;
+		double mean = mean();
+		double var = sumOfSquares/(double)numSamples - mean*mean;
+		return Math.max(0.0, var);
+	}
+
+	public boolean isExact() {
+		return exact;
+	}
+
+	/** How many distinct lengths or buckets we're tracking */
+	public int size() {
+		return counts.size();
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(maxExactValues);
+		out.writeDouble(relativeAccuracy);
+		out.writeInt(numSamples);
+		out.writeInt(min);
+		out.writeInt(max);
+		out.writeLong(sum);
+		out.writeLong(sumOfSquares);
+		out.writeBoolean(exact);
+		out.writeInt(counts.size());
+		for (Map.Entry<Integer,Integer> e : counts.entrySet()) {
+			out.writeInt(e.getKey());
+			out.writeInt(e.getValue());
+		}
+	}
+
+	public static SiblingListStats read(DataInputStream in) throws IOException {
+		SiblingListStats stats = new SiblingListStats(in.readInt(), in.readDouble());
+		stats.numSamples = in.readInt();
+		stats.min = in.readInt();
+		stats.max = in.readInt();
+		stats.sum = in.readLong();
+		stats.sumOfSquares = in.readLong();
+		stats.exact = in.readBoolean();
+		int n = in.readInt();
+		for (int i = 0; i<n; i++) {
+			stats.counts.put(in.readInt(), in.readInt());
+		}
+		return stats;
+	}
+
+	protected void foldIntoBuckets() {
+		TreeMap<Integer,Integer> lens = counts;
+		counts = new TreeMap<>();
+		exact = false;
+		for (Map.Entry<Integer,Integer> e : lens.entrySet()) {
+			increment(bucket(e.getKey()), e.getValue());
+		}
+	}
+
+	protected void increment(int key, int n) {
+		Integer count = counts.get(key);
+		counts.put(key, count!=null ? count+n : n);
+	}
+
+	/** Lengths in (gamma^(i-2), gamma^(i-1)] go in bucket i; lengths <= 0 in bucket 0 */
+	protected int bucket(int len) {
+		if ( len<=0 ) return 0;
+		return 1+(int)Math.ceil(Math.log(len)/logGamma);
+	}
 
-	public SiblingListStats(int numSamples, int min, int median, double variance, int max) {
-		this.numSamples = numSamples;
-		this.max = max;
-		this.median = median;
-		this.min = min;
-		this.variance = variance;
+	protected int bucketValue(int bucket) {
+		if ( bucket<=0 ) return 0;
+		double gamma = Math.exp(logGamma);
+		return (int)Math.round(2*Math.exp((bucket-1)*logGamma)/(gamma+1));
 	}
 
 	@Override
 	public String toString() {
-		return "("+numSamples+","+min+","+median+","+variance+","+max+")";
+		return "("+numSamples+","+min+","+median()+","+variance()+","+max+")";
 	}
 }
@@ -0,0 +1,75 @@
+package org.antlr.codebuff.misc;
+
+import org.antlr.codebuff.Tool;
+import org.antlr.v4.runtime.CommonTokenFactory;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.UnbufferedCharStream;
+
+import java.io.Reader;
+
+/** Reads a script a statement at a time, lexing as we go so we hold just
+ *  the text of the statement we're on, not the script. A statement ends
+ *  with the newline after one of the language's
+ *  {@link LangDescriptor#statementTerminatorTypes}, if no real token
+ *  follows the terminator on its line, so each statement starts at the
+ *  start of a line and comments at the end of its last line go with it.
+ *
+ *  We don't parse so a terminator isn't always the end of a statement,
+ *  such as the ';' after each statement in a trigger; callers join
+ *  statements that don't parse alone to the next.
+ */
+public class StatementReader {
+	protected final Lexer lexer;
+	protected final int[] terminatorTypes;
+	/** Text lexed beyond the last statement we returned */
+	protected final StringBuilder buf = new StringBuilder();
+	protected boolean done;
+
+	/** Most chars we held at once */
+	public int maxChars;
+
+	public StatementReader(Reader in, LangDescriptor language) throws Exception {
+		lexer = Tool.getLexer(language.lexerClass, new UnbufferedCharStream(in));
+		lexer.setTokenFactory(new CommonTokenFactory(true)); // the stream won't keep the chars
+		terminatorTypes = language.statementTerminatorTypes;
+	}
+
+	/** The text of the next statement, with the whitespace and comments
+	 *  before it; null at the end of the script.
+	 */
+	public String next() {
+		if ( done ) return null;
+		boolean terminated = false;
+		for (Token t = lexer.nextToken(); t.getType()!=Token.EOF; t = lexer.nextToken()) {
+			String text = t.getText();
+			buf.append(text);
+			maxChars = Math.max(maxChars, buf.length());
+			if ( t.getChannel()==Token.DEFAULT_CHANNEL ) {
+				terminated = isTerminator(t.getType());
+			}
+			else if ( terminated && CodeBuffTokenStream.isWhitespace(text) ) {
+				int nl = text.indexOf('\n');
+				if ( nl>=0 ) {
+					return take(buf.length()-text.length()+nl+1);
+				}
+			}
+		}
+		done = true;
+		return buf.length()>0 ? take(buf.length()) : null;
+	}
+
+	protected boolean isTerminator(int ttype) {
+		for (int type : terminatorTypes) {
+			if ( type==ttype ) return true;
+		}
+		return false;
+	}
+
+	/** Remove and return the first n chars we hold */
+	protected String take(int n) {
+		String s = buf.substring(0, n);
+		buf.delete(0, n);
+		return s;
+	}
+}
@@ -0,0 +1,112 @@
+package org.antlr.codebuff.validation;
+
+import org.antlr.codebuff.ChunkedFormatter;
+import org.antlr.codebuff.Corpus;
+import org.antlr.codebuff.FormatEngine;
+import org.antlr.codebuff.InputDocument;
+import org.antlr.codebuff.ShardedTrainer;
+import org.antlr.codebuff.Tool;
+import org.antlr.codebuff.Trainer;
+import org.antlr.codebuff.misc.LangDescriptor;
+import org.antlr.v4.runtime.Token;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.antlr.codebuff.Tool.getFilenames;
+
+/** How much faster does {@link ChunkedFormatter} format a big document on
+ *  all cores than one {@link FormatEngine#format} call, and is the output
+ *  the same? Train on a corpus and glue its documents into one of at least
+ *  LINES lines: SQL scripts end to end or, for Java, the bodies of all
+ *  classes in one class. Format it both ways TRIALS times after warming
+ *  up the classifier caches and report the best times. As we may have
+ *  fewer cores than chunks, also report how long chunked formatting
+ *  would take with a core per chunk: the time to split and to format
+ *  chunks again plus the longest chunk.
+ *
+ *  Args: [lang-name...]; defaults to sqlite, tsql, java_st.
+ */
+public class ChunkedFormatSpeed {
+	public static final int LINES = 20_000;
+	public static final int TRIALS = 3;
+
+	public static void main(String[] args) throws Exception {
+		if ( args.length==0 ) {
+			args = new String[] {"sqlite", "tsql", "java_st"};
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		int failures = 0;
+		for (String langName : args) {
+			LangDescriptor language = ShardedTrainer.getLanguage(langName);
+			List<String> files = getFilenames(new File(language.corpusDir), language.fileRegex);
+			List<InputDocument> documents = Tool.load(files, language);
+			Corpus corpus = new Corpus(documents, language);
+			corpus.train();
+			FormatEngine engine = new FormatEngine(corpus);
+
+			InputDocument big = Tool.parse("big", bigDocument(documents), language);
+			if ( big.tree==null ) {
+				System.out.println(language.name+": sample doesn't parse");
+				continue;
+			}
+			String expected = engine.format(big); // warm up
+			ChunkedFormatter chunked = new ChunkedFormatter(engine, pool, threads);
+			long sequential = Long.MAX_VALUE, concurrent = Long.MAX_VALUE, perCore = Long.MAX_VALUE;
+			boolean same = true;
+			for (int t = 0; t<TRIALS; t++) {
+				long before = chunked.splitNanos+chunked.reformatNanos+chunked.longestChunkNanos;
+				long start = System.nanoTime();
+				engine.format(big);
+				long mid = System.nanoTime();
+				String output = chunked.format(big);
+				long stop = System.nanoTime();
+				sequential = Math.min(sequential, mid-start);
+				concurrent = Math.min(concurrent, stop-mid);
+				perCore = Math.min(perCore, chunked.splitNanos+chunked.reformatNanos+chunked.longestChunkNanos-before);
+				same &= output.equals(expected);
+			}
+			if ( !same ) failures++;
+			System.out.printf("%s: %d lines, %d chars, %d threads; %d chunks, %d formatted again; output %s\n",
+			                  language.name, Tool.count(big.content, '\n'), big.content.length(), threads,
+			                  chunked.chunks/TRIALS, chunked.reformattedChunks/TRIALS,
+			                  same ? "the same" : "DIFFERENT");
+			System.out.printf("  one thread %7.1fms, chunked %7.1fms: %.2fx; with a core per chunk %7.1fms: %.2fx\n",
+			                  sequential/1_000_000.0, concurrent/1_000_000.0, (double)sequential/concurrent,
+			                  perCore/1_000_000.0, (double)sequential/perCore);
+		}
+		pool.shutdown();
+		if ( failures>0 ) {
+			System.err.println(failures+" chunked outputs differ");
+			System.exit(1);
+		}
+	}
+
+	/** The documents glued into one of at least LINES lines */
+	public static String bigDocument(List<InputDocument> documents) {
+		boolean java = documents.get(0).fileName.endsWith(".java");
+		StringBuilder buf = new StringBuilder();
+		if ( java ) buf.append("public class Big {\n");
+		while ( Tool.count(buf.toString(), '\n')<LINES ) {
+			for (InputDocument doc : documents) {
+				String content = doc.content;
+				if ( java ) { // just what's between the braces of the first class
+					List<Token> real = Trainer.getRealTokens(doc.tokens);
+					int c = 0;
+					while ( c<real.size() && !real.get(c).getText().equals("class") ) c++;
+					while ( c<real.size() && !real.get(c).getText().equals("{") ) c++;
+					Token last = real.get(real.size()-1);
+					if ( c>=real.size() || !last.getText().equals("}") ) continue;
+					content = content.substring(real.get(c).getStopIndex()+1, last.getStartIndex());
+				}
+				buf.append(content);
+				buf.append('\n');
+			}
+		}
+		if ( java ) buf.append("}\n");
+		return buf.toString();
+	}
+}
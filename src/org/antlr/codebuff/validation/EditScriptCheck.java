@@ -0,0 +1,89 @@
+package org.antlr.codebuff.validation;
+
+import org.antlr.codebuff.Corpus;
+import org.antlr.codebuff.FormatEngine;
+import org.antlr.codebuff.InputDocument;
+import org.antlr.codebuff.ShardedTrainer;
+import org.antlr.codebuff.Tool;
+import org.antlr.codebuff.misc.EditScriptEmitter;
+import org.antlr.codebuff.misc.Emitter;
+import org.antlr.codebuff.misc.LangDescriptor;
+import org.antlr.v4.runtime.Token;
+
+import java.io.File;
+import java.util.List;
+
+import static org.antlr.codebuff.Tool.getFilenames;
+
+/** Do the edits from {@link FormatEngine#formatEdits} turn each file
+ *  into exactly what {@link FormatEngine#format} gives, and how small are
+ *  they? Train on a corpus and, for each document, apply its edits to the
+ *  file as read, tabs and all, and compare with the formatted text, whose
+ *  real tokens we take from the file as edits leave them. Then parse the
+ *  formatted text and get
+ *  its edits; formatting that again mostly changes nothing so we'd like
+ *  few or no edits.
+ *
+ *  Args: [lang-name...]; defaults to antlr, java_st, sqlite, tsql, quorum.
+ */
+public class EditScriptCheck {
+	public static void main(String[] args) throws Exception {
+		if ( args.length==0 ) {
+			args = new String[] {"antlr", "java_st", "sqlite", "tsql", "quorum"};
+		}
+		int failures = 0;
+		for (String langName : args) {
+			LangDescriptor language = ShardedTrainer.getLanguage(langName);
+			List<String> files = getFilenames(new File(language.corpusDir), language.fileRegex);
+			List<InputDocument> documents = Tool.load(files, language);
+			Corpus corpus = new Corpus(documents, language);
+			corpus.train();
+			FormatEngine engine = new FormatEngine(corpus);
+
+			int n = 0, mismatches = 0, edits = 0, unchanged = 0, reformatEdits = 0;
+			long chars = 0, replaced = 0;
+			for (InputDocument doc : documents) {
+				String formatted = engine.format(doc);
+				List<EditScriptEmitter.Edit> docEdits = engine.formatEdits(doc);
+				String file = Tool.read(doc.fileName);
+				if ( !EditScriptEmitter.apply(file, docEdits).equals(formatWithFileTokens(engine, doc)) ) mismatches++;
+				n++;
+				edits += docEdits.size();
+				chars += formatted.length();
+				for (EditScriptEmitter.Edit edit : docEdits) {
+					replaced += edit.replacement.length();
+				}
+
+				InputDocument formattedDoc = Tool.parse(doc.fileName, formatted, language);
+				if ( formattedDoc.tree==null ) continue;
+				List<EditScriptEmitter.Edit> again = engine.formatEdits(formattedDoc);
+				if ( !EditScriptEmitter.apply(formatted, again).equals(engine.format(formattedDoc)) ) mismatches++;
+				if ( again.isEmpty() ) unchanged++;
+				reformatEdits += again.size();
+			}
+			failures += mismatches;
+			System.out.printf("%s: %d docs, %d where edits don't give the formatted text\n",
+			                  language.name, n, mismatches);
+			System.out.printf("  %d edits, %d of %d chars of output sent (%.1f%%)\n",
+			                  edits, replaced, chars, 100.0*replaced/chars);
+			System.out.printf("  reformatting formatted docs: %d with no edits, %d edits in all\n",
+			                  unchanged, reformatEdits);
+		}
+		if ( failures>0 ) {
+			System.err.println(failures+" edit scripts differ from formatting");
+			System.exit(1);
+		}
+	}
+
+	/** Format doc but emit its real tokens as they are in its file */
+	public static String formatWithFileTokens(FormatEngine engine, InputDocument doc) throws Exception {
+		StringBuilder buf = new StringBuilder();
+		engine.newSession().format(doc, false, new Emitter(buf) {
+			@Override
+			public void emitToken(Token original, CharSequence text) {
+				emit(doc.getRawText(original.getStartIndex(), original.getStopIndex()+1));
+			}
+		});
+		return buf.toString();
+	}
+}
@@ -0,0 +1,141 @@
+package org.antlr.codebuff.validation;
+
+import org.antlr.codebuff.FlatTree;
+import org.antlr.codebuff.InputDocument;
+import org.antlr.codebuff.ShardedTrainer;
+import org.antlr.codebuff.Tool;
+import org.antlr.codebuff.misc.LangDescriptor;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import static org.antlr.codebuff.Tool.getFilenames;
+import static org.antlr.codebuff.Trainer.earliestAncestorEndingWithToken;
+import static org.antlr.codebuff.Trainer.earliestAncestorStartingWithToken;
+import static org.antlr.codebuff.Trainer.getChildIndex;
+import static org.antlr.codebuff.Trainer.getChildIndexOrListMembership;
+import static org.antlr.codebuff.Trainer.indexTree;
+import static org.antlr.codebuff.Trainer.rulealt;
+
+/** Check that {@link FlatTree} agrees with the tree walks and subtree
+ *  text lengths it replaces for every node and token of a corpus, then compare the time to get
+ *  the ancestor features of every token by walking the tree vs looking
+ *  them up in the flat tree (including the time to flatten it).
+ *
+ *  Args: [lang-name...]; defaults to antlr, java_st, sqlite, tsql, quorum.
+ */
+public class FlatTreeSpeed {
+	public static final int TRIALS = 10;
+	public static final int ANCESTOR_LEVELS = 5;
+
+	public static void main(String[] args) throws Exception {
+		if ( args.length==0 ) {
+			args = new String[] {"antlr", "java_st", "sqlite", "tsql", "quorum"};
+		}
+		for (String langName : args) {
+			LangDescriptor language = ShardedTrainer.getLanguage(langName);
+			List<String> files = getFilenames(new File(language.corpusDir), language.fileRegex);
+			List<InputDocument> documents = Tool.load(files, language);
+			int numTokens = 0, numNodes = 0, mismatches = 0;
+			for (InputDocument doc : documents) {
+				if ( doc.tree==null ) continue;
+				FlatTree tree = new FlatTree(doc.tree, doc.tokens.size());
+				numNodes += tree.size;
+				mismatches += check(doc, tree);
+				numTokens += doc.tokens.size();
+			}
+
+			long walkNanos = Long.MAX_VALUE, flatNanos = Long.MAX_VALUE;
+			long checksum = 0;
+			for (int t = 0; t<TRIALS; t++) {
+				long start = System.nanoTime();
+				for (InputDocument doc : documents) {
+					if ( doc.tree!=null ) checksum += walk(doc);
+				}
+				long mid = System.nanoTime();
+				for (InputDocument doc : documents) {
+					if ( doc.tree!=null ) checksum -= lookup(doc, new FlatTree(doc.tree, doc.tokens.size()));
+				}
+				long stop = System.nanoTime();
+				walkNanos = Math.min(walkNanos, mid-start);
+				flatNanos = Math.min(flatNanos, stop-mid);
+			}
+			System.out.printf("%s: %d docs, %d tokens, %d nodes, %d mismatches%s\n",
+			                  language.name, documents.size(), numTokens, numNodes, mismatches,
+			                  checksum!=0 ? ", CHECKSUMS DIFFER" : "");
+			System.out.printf("  tree walks %6.1fms, flatten+lookups %6.1fms: %.1fx\n",
+			                  walkNanos/1_000_000.0, flatNanos/1_000_000.0, (double)walkNanos/flatNanos);
+		}
+	}
+
+	/** Number of nodes and tokens where the flat tree disagrees with tree walks */
+	public static int check(InputDocument doc, FlatTree tree) {
+		int mismatches = 0;
+		Map<Token, TerminalNode> tokenToNodeMap = indexTree(doc.tree);
+		for (int n = 0; n<tree.size; n++) {
+			if ( tree.childIndex[n]!=getChildIndex(tree.nodes[n]) ||
+				 tree.childIndexOrListMembership[n]!=getChildIndexOrListMembership(tree.nodes[n]) ||
+				 (tree.parent[n]==FlatTree.NO_NODE ? null : tree.nodes[tree.parent[n]])!=tree.nodes[n].getParent() ||
+				 (tree.nodes[n] instanceof ParserRuleContext &&
+				  tree.getTextLength((ParserRuleContext)tree.nodes[n])!=tree.nodes[n].getText().length()) )
+			{
+				mismatches++;
+			}
+		}
+		for (Token token : doc.tokens.getTokens()) {
+			TerminalNode leaf = tokenToNodeMap.get(token);
+			int i = token.getTokenIndex();
+			if ( leaf!=tree.getLeaf(i) ) {
+				mismatches++;
+			}
+			else if ( leaf!=null &&
+				      (earliestAncestorStartingWithToken(leaf)!=tree.getEarliestLeftAncestor(i) ||
+				       earliestAncestorEndingWithToken(leaf)!=tree.nodes[tree.earliestRightAncestor[i]]) )
+			{
+				mismatches++;
+			}
+		}
+		return mismatches;
+	}
+
+	/** Sum of ancestor features of all tokens the old way */
+	public static long walk(InputDocument doc) {
+		long sum = 0;
+		Map<Token, TerminalNode> tokenToNodeMap = indexTree(doc.tree);
+		for (Token token : doc.tokens.getTokens()) {
+			TerminalNode leaf = tokenToNodeMap.get(token);
+			if ( leaf==null ) continue;
+			sum += rulealt(earliestAncestorEndingWithToken(leaf));
+			sum += getChildIndexOrListMembership(leaf);
+			ParserRuleContext p = earliestAncestorStartingWithToken(leaf);
+			for (int level = 0; level<=ANCESTOR_LEVELS; level++) {
+				sum += p!=null ? rulealt(p) : -1;
+				sum += getChildIndexOrListMembership(p);
+				p = p!=null ? p.getParent() : null;
+			}
+		}
+		return sum;
+	}
+
+	/** Sum of ancestor features of all tokens using the flat tree */
+	public static long lookup(InputDocument doc, FlatTree tree) {
+		long sum = 0;
+		for (int i = 0; i<tree.tokenToNode.length; i++) {
+			int leaf = tree.tokenToNode[i];
+			if ( leaf==FlatTree.NO_NODE ) continue;
+			sum += tree.getRuleAlt(tree.earliestRightAncestor[i]);
+			sum += tree.getChildIndexOrListMembership(leaf);
+			int p = tree.earliestLeftAncestor[i];
+			for (int level = 0; level<=ANCESTOR_LEVELS; level++) {
+				sum += tree.getRuleAlt(p);
+				sum += tree.getChildIndexOrListMembership(p);
+				p = tree.getParent(p);
+			}
+		}
+		return sum;
+	}
+}
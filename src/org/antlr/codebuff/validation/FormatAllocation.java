@@ -0,0 +1,95 @@
+package org.antlr.codebuff.validation;
+
+import org.antlr.codebuff.Corpus;
+import org.antlr.codebuff.Formatter;
+import org.antlr.codebuff.InputDocument;
+import org.antlr.codebuff.ShardedTrainer;
+import org.antlr.codebuff.Tool;
+import org.antlr.codebuff.misc.LangDescriptor;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.antlr.codebuff.Trainer.FEATURES_HPOS;
+import static org.antlr.codebuff.Trainer.FEATURES_INJECT_WS;
+import static org.antlr.codebuff.Tool.getFilenames;
+
+/** How much garbage do we make per formatted token? Train on a corpus,
+ *  format each of its documents and ask the JVM how many bytes the
+ *  thread allocated in each {@link Formatter#processToken} call. That
+ *  leaves out per-document setup like reparsing. It includes the
+ *  {@link TokenPositionAnalysis} we keep for
+ *  every token, the token's text, and the work of classifying a context
+ *  the first time; contexts seen before come from the classifiers'
+ *  caches so the median token shows the cost without a kNN search.
+ *
+ *  Needs a HotSpot JVM for per-thread allocation counts.
+ *
+ *  Args: [lang-name...]; defaults to antlr, java_st, sqlite, tsql, quorum.
+ */
+public class FormatAllocation {
+	public static final com.sun.management.ThreadMXBean threads =
+		(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+	public static class MeasuredFormatter extends Formatter {
+		public long bytes;
+		public int tokens;
+		/** Bytes allocated by each token, in order */
+		public List<Long> perToken = new ArrayList<>();
+		public long overhead;
+
+		public MeasuredFormatter(Corpus corpus, int indentSize) {
+			super(corpus, indentSize, Formatter.DEFAULT_K, FEATURES_INJECT_WS, FEATURES_HPOS);
+			long id = Thread.currentThread().getId();
+			long before = threads.getThreadAllocatedBytes(id);
+			overhead = threads.getThreadAllocatedBytes(id)-before;
+		}
+
+		@Override
+		public void processToken(int indexIntoRealTokens, int tokenIndexInStream, boolean collectAnalysis) {
+			long id = Thread.currentThread().getId();
+			long before = threads.getThreadAllocatedBytes(id);
+			super.processToken(indexIntoRealTokens, tokenIndexInStream, collectAnalysis);
+			long allocated = threads.getThreadAllocatedBytes(id)-before-overhead;
+			bytes += allocated;
+			tokens++;
+			perToken.add(allocated); // after measuring so it's not counted
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if ( args.length==0 ) {
+			args = new String[] {"antlr", "java_st", "sqlite", "tsql", "quorum"};
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+		for (String langName : args) {
+			LangDescriptor language = ShardedTrainer.getLanguage(langName);
+			List<String> files = getFilenames(new File(language.corpusDir), language.fileRegex);
+			List<InputDocument> documents = Tool.load(files, language);
+			Corpus corpus = new Corpus(documents, language);
+			corpus.train();
+
+			long bytes = 0;
+			int tokens = 0;
+			List<Long> perToken = new ArrayList<>();
+			for (int pass = 0; pass<2; pass++) { // first pass warms up the JIT
+				bytes = 0;
+				tokens = 0;
+				perToken.clear();
+				for (InputDocument doc : documents) {
+					MeasuredFormatter formatter = new MeasuredFormatter(corpus, language.indentSize);
+					formatter.format(doc, false);
+					bytes += formatter.bytes;
+					tokens += formatter.tokens;
+					perToken.addAll(formatter.perToken);
+				}
+			}
+			Collections.sort(perToken);
+			System.out.printf("%s: %d tokens, %.0f bytes/token, median %d\n",
+			                  language.name, tokens, (double)bytes/tokens, perToken.get(perToken.size()/2));
+		}
+	}
+}
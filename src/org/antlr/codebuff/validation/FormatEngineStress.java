@@ -0,0 +1,99 @@
+package org.antlr.codebuff.validation;
+
+import org.antlr.codebuff.Corpus;
+import org.antlr.codebuff.FormatEngine;
+import org.antlr.codebuff.Formatter;
+import org.antlr.codebuff.InputDocument;
+import org.antlr.codebuff.ShardedTrainer;
+import org.antlr.codebuff.Tool;
+import org.antlr.codebuff.misc.LangDescriptor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.antlr.codebuff.Tool.getFilenames;
+import static org.antlr.codebuff.Trainer.FEATURES_HPOS;
+import static org.antlr.codebuff.Trainer.FEATURES_INJECT_WS;
+
+/** Does one {@link FormatEngine} shared by many threads format exactly
+ *  like a fresh {@link Formatter} per document on one thread? Train on a
+ *  corpus, format each document single-threaded, then have THREADS
+ *  threads format every document ROUNDS times through one engine, each
+ *  thread in its own shuffled order so the same documents and contexts
+ *  are in flight at once. Every output must match.
+ *
+ *  Args: [lang-name...]; defaults to antlr, java_st, sqlite, tsql, quorum.
+ */
+public class FormatEngineStress {
+	public static final int THREADS = 8;
+	public static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		if ( args.length==0 ) {
+			args = new String[] {"antlr", "java_st", "sqlite", "tsql", "quorum"};
+		}
+		int failures = 0;
+		for (String langName : args) {
+			LangDescriptor language = ShardedTrainer.getLanguage(langName);
+			List<String> files = getFilenames(new File(language.corpusDir), language.fileRegex);
+			List<InputDocument> documents = Tool.load(files, language);
+			Corpus corpus = new Corpus(documents, language);
+			corpus.train();
+
+			long start = System.nanoTime();
+			List<String> expected = new ArrayList<>();
+			for (InputDocument doc : documents) {
+				Formatter formatter = new Formatter(corpus, language.indentSize, Formatter.DEFAULT_K,
+				                                    FEATURES_INJECT_WS, FEATURES_HPOS);
+				expected.add(formatter.format(doc, false));
+			}
+			long singleNanos = System.nanoTime()-start;
+
+			FormatEngine engine = new FormatEngine(corpus);
+			ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+			List<Callable<Integer>> jobs = new ArrayList<>();
+			for (int t = 0; t<THREADS; t++) {
+				final long seed = t;
+				jobs.add(() -> {
+					List<Integer> order = new ArrayList<>();
+					for (int r = 0; r<ROUNDS; r++) {
+						for (int d = 0; d<documents.size(); d++) order.add(d);
+					}
+					Collections.shuffle(order, new Random(seed));
+					int mismatches = 0;
+					for (int d : order) {
+						String output = engine.format(documents.get(d));
+						if ( !output.equals(expected.get(d)) ) mismatches++;
+					}
+					return mismatches;
+				});
+			}
+			start = System.nanoTime();
+			int mismatches = 0;
+			for (Future<Integer> result : pool.invokeAll(jobs)) {
+				mismatches += result.get();
+			}
+			long engineNanos = System.nanoTime()-start;
+			pool.shutdown();
+			failures += mismatches;
+
+			int n = documents.size();
+			int formatted = n*THREADS*ROUNDS;
+			System.out.printf("%s: %d docs, %d formatted by %d threads, %d mismatches\n",
+			                  language.name, n, formatted, THREADS, mismatches);
+			System.out.printf("  single-threaded %6.2fms/doc, shared engine %6.2fms/doc\n",
+			                  singleNanos/1_000_000.0/n, engineNanos/1_000_000.0/formatted);
+		}
+		if ( failures>0 ) {
+			System.err.println(failures+" outputs differ from single-threaded formatting");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package org.antlr.codebuff.validation;
+
+import org.antlr.codebuff.Corpus;
+import org.antlr.codebuff.ExemplarBuffer;
+import org.antlr.codebuff.FlatTree;
+import org.antlr.codebuff.InputDocument;
+import org.antlr.codebuff.ShardedTrainer;
+import org.antlr.codebuff.Tool;
+import org.antlr.codebuff.Trainer;
+import org.antlr.codebuff.misc.LangDescriptor;
+import org.antlr.codebuff.walkers.CollectSiblingLists;
+import org.antlr.codebuff.walkers.CollectTokenPairs;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Vocabulary;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.antlr.codebuff.Tool.getFilenames;
+
+/** How much of the time to train on each document do we save by walking
+ *  its tree once for all collectors? For each corpus, time flattening the
+ *  tree, collecting token pairs and sibling lists, and computing feature
+ *  vectors, with the collectors on separate {@link ParseTreeWalker} walks
+ *  vs on one {@link FlatTree#walk}. Also check that both walks send the
+ *  same events in the same order.
+ *
+ *  Args: [lang-name...]; defaults to antlr, java_st, sqlite, tsql, quorum.
+ */
+public class FusedWalkSpeed {
+	public static final int TRIALS = 10;
+
+	public static void main(String[] args) throws Exception {
+		if ( args.length==0 ) {
+			args = new String[] {"antlr", "java_st", "sqlite", "tsql", "quorum"};
+		}
+		for (String langName : args) {
+			LangDescriptor language = ShardedTrainer.getLanguage(langName);
+			List<String> files = getFilenames(new File(language.corpusDir), language.fileRegex);
+			List<InputDocument> documents = Tool.load(files, language);
+			Corpus corpus = new Corpus(documents, language);
+			corpus.train();
+
+			int mismatches = 0;
+			for (InputDocument doc : documents) {
+				if ( !events(doc, false).equals(events(doc, true)) ) mismatches++;
+			}
+
+			long separateNanos = Long.MAX_VALUE, fusedNanos = Long.MAX_VALUE;
+			for (int t = 0; t<TRIALS; t++) {
+				separateNanos = Math.min(separateNanos, train(corpus, documents, false));
+				fusedNanos = Math.min(fusedNanos, train(corpus, documents, true));
+			}
+			int n = documents.size();
+			System.out.printf("%s: %d docs, %d with different walk events\n", language.name, n, mismatches);
+			System.out.printf("  separate walks %6.3fms/doc, one walk %6.3fms/doc: %.1f%% less\n",
+			                  separateNanos/1_000_000.0/n, fusedNanos/1_000_000.0/n,
+			                  100.0*(separateNanos-fusedNanos)/separateNanos);
+		}
+	}
+
+	/** Time to collect from and compute features for all documents */
+	public static long train(Corpus corpus, List<InputDocument> documents, boolean fused) {
+		Vocabulary vocab = documents.get(0).parser.getVocabulary();
+		String[] ruleNames = documents.get(0).parser.getRuleNames();
+		long start = System.nanoTime();
+		for (InputDocument doc : documents) {
+			doc.setTree(doc.tree); // forget flat tree
+			CollectTokenPairs collectTokenPairs = new CollectTokenPairs(vocab, ruleNames);
+			CollectSiblingLists collectSiblingLists = new CollectSiblingLists();
+			if ( fused ) {
+				Corpus.collectTokenPairsAndSplitListInfo(doc, collectTokenPairs, collectSiblingLists);
+			}
+			else {
+				collectSiblingLists.setDocument(doc);
+				ParseTreeWalker.DEFAULT.walk(collectTokenPairs, doc.tree);
+				ParseTreeWalker.DEFAULT.walk(collectSiblingLists, doc.tree);
+			}
+			corpus.tokenToListInfo = collectSiblingLists.getTokenToListInfo();
+			new Trainer(corpus, new ExemplarBuffer(), doc, corpus.language.indentSize).computeFeatureVectors();
+		}
+		return System.nanoTime()-start;
+	}
+
+	/** Events of walking doc's tree, one per line */
+	public static String events(InputDocument doc, boolean flat) {
+		List<String> events = new ArrayList<>();
+		ParseTreeListener recorder = new ParseTreeListener() {
+			@Override
+			public void visitTerminal(TerminalNode node) { events.add("t "+System.identityHashCode(node)); }
+
+			@Override
+			public void visitErrorNode(ErrorNode node) { events.add("e "+System.identityHashCode(node)); }
+
+			@Override
+			public void enterEveryRule(ParserRuleContext ctx) { events.add("> "+System.identityHashCode(ctx)); }
+
+			@Override
+			public void exitEveryRule(ParserRuleContext ctx) { events.add("< "+System.identityHashCode(ctx)); }
+		};
+		if ( flat ) doc.getFlatTree().walk(recorder);
+		else ParseTreeWalker.DEFAULT.walk(recorder, doc.tree);
+		return String.join("\n", events);
+	}
+}
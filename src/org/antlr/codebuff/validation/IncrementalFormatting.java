@@ -0,0 +1,199 @@
+package org.antlr.codebuff.validation;
+
+import org.antlr.codebuff.Corpus;
+import org.antlr.codebuff.FormatEngine;
+import org.antlr.codebuff.IncrementalFormatter;
+import org.antlr.codebuff.InputDocument;
+import org.antlr.codebuff.ShardedTrainer;
+import org.antlr.codebuff.Tool;
+import org.antlr.codebuff.misc.EditScriptEmitter;
+import org.antlr.codebuff.misc.LangDescriptor;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import static org.antlr.codebuff.Tool.getFilenames;
+
+/** Does {@link IncrementalFormatter} keep tokens and tree just as parsing
+ *  the edited text would, and what does it save? For each document of a
+ *  corpus, format it in a session then make EDITS small edits, formatting
+ *  after each: add a char to an identifier, add whitespace before a
+ *  token, duplicate a line or delete a token. Edits that are syntax
+ *  errors, which fall back on a full parse, we undo. After each edit the session's
+ *  tokens and tree must match parsing its text; after formatting, its text
+ *  should match formatting the edited text from scratch. We edit each
+ *  document's content and then, if it has tabs, its file as read, so
+ *  edits and formatting go through the session's offsets in text with
+ *  tabs. Compare the time of edit plus format with parsing and formatting
+ *  the whole document.
+ *
+ *  Args: [lang-name...]; defaults to antlr, java_st, sqlite, tsql, quorum.
+ */
+public class IncrementalFormatting {
+	public static final int EDITS = 6;
+
+	public static class Counts {
+		public int edits, syntaxErrors, badTrees, differentOutput, fullParses, subtreeParses, unchanged;
+		public int tabbedDocs, tabbedEdits;
+		public long incrementalNanos, fullNanos;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if ( args.length==0 ) {
+			args = new String[] {"antlr", "java_st", "sqlite", "tsql", "quorum"};
+		}
+		int failures = 0;
+		for (String langName : args) {
+			LangDescriptor language = ShardedTrainer.getLanguage(langName);
+			List<String> files = getFilenames(new File(language.corpusDir), language.fileRegex);
+			List<InputDocument> documents = Tool.load(files, language);
+			Corpus corpus = new Corpus(documents, language);
+			corpus.train();
+			FormatEngine engine = new FormatEngine(corpus);
+
+			Counts counts = new Counts();
+			for (int d = 0; d<documents.size(); d++) {
+				InputDocument doc = documents.get(d);
+				if ( doc.tree==null ) continue;
+				editAndFormat(engine, doc.fileName, doc.content, d, counts);
+				String file = Tool.read(doc.fileName);
+				if ( file.indexOf('\t')>=0 ) {
+					int before = counts.edits;
+					editAndFormat(engine, doc.fileName, file, d, counts);
+					counts.tabbedDocs++;
+					counts.tabbedEdits += counts.edits-before;
+				}
+			}
+			failures += counts.badTrees;
+			System.out.printf("%s: %d edits (and %d undone syntax errors), %d with tokens or tree unlike a full parse, %d formatted unlike from scratch\n",
+			                  language.name, counts.edits, counts.syntaxErrors, counts.badTrees, counts.differentOutput);
+			System.out.printf("  %d of the edits to %d files as read, with tabs\n",
+			                  counts.tabbedEdits, counts.tabbedDocs);
+			System.out.printf("  %d tree unchanged, %d subtrees reparsed, %d full parses (edits and formatting)\n",
+			                  counts.unchanged, counts.subtreeParses, counts.fullParses);
+			System.out.printf("  edit+format %6.2fms, parse+format whole doc %6.2fms\n",
+			                  counts.incrementalNanos/1_000_000.0/counts.edits, counts.fullNanos/1_000_000.0/counts.edits);
+		}
+		if ( failures>0 ) {
+			System.err.println(failures+" edits left tokens or tree unlike a full parse");
+			System.exit(1);
+		}
+	}
+
+	/** Format text in a session, then edit and format it EDITS times */
+	public static void editAndFormat(FormatEngine engine, String fileName, String text, int seed, Counts counts)
+		throws Exception
+	{
+		LangDescriptor language = engine.corpus.language;
+		IncrementalFormatter session = new IncrementalFormatter(engine, fileName, text);
+		session.format();
+		Random random = new Random(seed);
+		for (int e = 0; e<EDITS; e++) {
+			long start = System.nanoTime();
+			EditScriptEmitter.Edit undo = randomEdit(session, random);
+			if ( undo==null ) continue;
+			if ( session.getDocument().tree==null ) { // syntax error; try another
+				if ( !sameParse(session.getDocument(), Tool.parseText(fileName, session.getContent(), language)) ) {
+					counts.badTrees++;
+				}
+				session.edit(undo.offset, undo.length, undo.replacement);
+				counts.syntaxErrors++;
+				continue;
+			}
+			String formatted = session.format();
+			long mid = System.nanoTime();
+			InputDocument reparsed = Tool.parseText(fileName, session.getContent(), language);
+			String expected = reparsed.tree!=null ? engine.format(reparsed) : null;
+			long stop = System.nanoTime();
+			counts.edits++;
+			counts.incrementalNanos += mid-start;
+			counts.fullNanos += stop-mid;
+			// the session keeps what formatting doesn't touch as it was, tabs and all
+			formatted = Tool.expandTabs(formatted, language.indentSize);
+			if ( expected!=null && !formatted.trim().equals(expected.trim()) ) counts.differentOutput++;
+			if ( !sameParse(session.getDocument(), reparsed) ) counts.badTrees++;
+		}
+		counts.fullParses += session.fullParses-1; // don't count the first
+		counts.subtreeParses += session.subtreeParses;
+		counts.unchanged += session.treeUnchanged;
+	}
+
+	/** Make a random small edit to session's text and return the edit that
+	 *  undoes it; null if we found nothing to edit. Offsets are in the
+	 *  session's text, which may have tabs, not its document's content.
+	 */
+	public static EditScriptEmitter.Edit randomEdit(IncrementalFormatter session, Random random) throws Exception {
+		InputDocument doc = session.getDocument();
+		List<Token> tokens = doc.tokens.getTokens();
+		Token t = tokens.get(random.nextInt(tokens.size()));
+		if ( t.getChannel()!=Token.DEFAULT_CHANNEL || t.getType()==Token.EOF ) return null;
+		String content = session.getContent();
+		int tokenStart = doc.rawOffset(t.getStartIndex());
+		int tokenStop = doc.rawOffset(t.getStopIndex()+1);
+		int offset, length;
+		String replacement;
+		switch ( random.nextInt(4) ) {
+			case 0 :
+				if ( !t.getText().matches("[a-zA-Z_][a-zA-Z_0-9]*") ) return null;
+				offset = tokenStop;
+				length = 0;
+				replacement = "x";
+				break;
+			case 1 :
+				offset = tokenStart;
+				length = 0;
+				replacement = random.nextBoolean() ? " " : "\n";
+				break;
+			case 2 :
+				offset = content.lastIndexOf('\n', tokenStart)+1;
+				int lineStop = content.indexOf('\n', tokenStart);
+				if ( lineStop<0 ) return null;
+				length = 0;
+				replacement = content.substring(offset, lineStop+1);
+				break;
+			default :
+				offset = tokenStart;
+				length = tokenStop-tokenStart;
+				replacement = "";
+		}
+		session.edit(offset, length, replacement);
+		return new EditScriptEmitter.Edit(offset, replacement.length(), content.substring(offset, offset+length));
+	}
+
+	/** Same tokens, positions and tree? */
+	public static boolean sameParse(InputDocument a, InputDocument b) {
+		List<Token> at = a.tokens.getTokens();
+		List<Token> bt = b.tokens.getTokens();
+		if ( at.size()!=bt.size() ) return false;
+		for (int i = 0; i<at.size(); i++) {
+			Token x = at.get(i), y = bt.get(i);
+			if ( x.getType()!=y.getType() || x.getChannel()!=y.getChannel() ||
+				 x.getTokenIndex()!=y.getTokenIndex() ||
+				 x.getStartIndex()!=y.getStartIndex() || x.getStopIndex()!=y.getStopIndex() ||
+				 x.getLine()!=y.getLine() || x.getCharPositionInLine()!=y.getCharPositionInLine() ||
+				 !x.getText().equals(y.getText()) )
+			{
+				return false;
+			}
+		}
+		if ( a.tree==null || b.tree==null ) return a.tree==b.tree;
+		return a.tree.toStringTree(a.parser).equals(b.tree.toStringTree(b.parser)) &&
+			   sameTokens(a.tree, at);
+	}
+
+	/** Do tree's leaves hold the tokens in tokens, not stale ones? */
+	public static boolean sameTokens(ParseTree tree, List<Token> tokens) {
+		if ( tree instanceof TerminalNode ) {
+			Token t = ((TerminalNode)tree).getSymbol();
+			return t.getTokenIndex()<0 || tokens.get(t.getTokenIndex())==t;
+		}
+		for (int i = 0; i<tree.getChildCount(); i++) {
+			if ( !sameTokens(tree.getChild(i), tokens) ) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,128 @@
+package org.antlr.codebuff.validation;
+
+import org.antlr.codebuff.InputDocument;
+import org.antlr.codebuff.Tool;
+import org.antlr.codebuff.misc.BuffUtils;
+import org.antlr.codebuff.misc.LangDescriptor;
+import org.antlr.codebuff.misc.ParentSiblingListKey;
+import org.antlr.codebuff.misc.SiblingListStats;
+import org.antlr.codebuff.walkers.CollectSiblingLists;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.antlr.codebuff.Tool.getFilenames;
+import static org.antlr.codebuff.Tool.languages;
+
+/** Measure error of the sibling list sketches ({@link SiblingListStats})
+ *  against min/median/variance/max computed from all list lengths, for
+ *  the default sketch and for one forced to use log buckets from the start.
+ *  Also check that merging sketches of partitions gives the same stats as
+ *  one sketch over all lengths.
+ */
+public class ListStatsAccuracy {
+	public static final int NUM_PARTITIONS = 4;
+
+	/** Remember every list length as well as the sketch */
+	public static class ExactCollectSiblingLists extends CollectSiblingLists {
+		public Map<ParentSiblingListKey, List<Integer>> allLengths = new HashMap<>();
+		public Map<ParentSiblingListKey, List<Integer>> allSplitLengths = new HashMap<>();
+
+		@Override
+		public void addListLength(ParentSiblingListKey pair, boolean isSplitList, int len) {
+			super.addListLength(pair, isSplitList, len);
+			Map<ParentSiblingListKey, List<Integer>> info = isSplitList ? allSplitLengths : allLengths;
+			List<Integer> lens = info.get(pair);
+			if ( lens==null ) {
+				lens = new ArrayList<>();
+				info.put(pair, lens);
+			}
+			lens.add(len);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.printf("%-20s %6s %8s %6s %12s %12s %12s %12s %s\n",
+		                  "language", "lists", "samples", "maxN",
+		                  "medErr", "bktMedErr", "varRelErr", "bktMaxSize", "merge");
+		for (LangDescriptor language : languages) {
+			List<String> allFiles = getFilenames(new File(language.corpusDir), language.fileRegex);
+			Collections.sort(allFiles);
+			List<InputDocument> documents = Tool.load(allFiles, language);
+			ExactCollectSiblingLists collector = new ExactCollectSiblingLists();
+			for (InputDocument doc : documents) {
+				if ( doc.tree==null ) continue;
+				collector.setDocument(doc);
+				ParseTreeWalker.DEFAULT.walk(collector, doc.tree);
+			}
+			test(language.name, collector.allLengths, collector.listInfo);
+			test(language.name+" split", collector.allSplitLengths, collector.splitListInfo);
+		}
+	}
+
+	public static void test(String name,
+	                        Map<ParentSiblingListKey, List<Integer>> allLengths,
+	                        Map<ParentSiblingListKey, SiblingListStats> allStats)
+	{
+		int samples = 0;
+		int maxN = 0;
+		double maxMedianErr = 0.0;        // default sketch
+		double maxBucketMedianErr = 0.0;  // sketch with no exact values
+		double maxVarianceErr = 0.0;
+		int maxBucketSize = 0;
+		int mergeMismatches = 0;
+		for (ParentSiblingListKey key : allLengths.keySet()) {
+			List<Integer> lens = new ArrayList<>(allLengths.get(key));
+			SiblingListStats stats = allStats.get(key);
+			SiblingListStats bucketStats = new SiblingListStats(0, SiblingListStats.DEFAULT_RELATIVE_ACCURACY);
+			lens.forEach(bucketStats::add);
+
+			// merge partitions of the lengths in both orders
+			SiblingListStats merged = new SiblingListStats();
+			SiblingListStats mergedBackwards = new SiblingListStats();
+			List<SiblingListStats> partials = new ArrayList<>();
+			int n = lens.size();
+			for (int i = 0; i<NUM_PARTITIONS; i++) {
+				SiblingListStats partial = new SiblingListStats();
+				lens.subList(n*i/NUM_PARTITIONS, n*(i+1)/NUM_PARTITIONS).forEach(partial::add);
+				partials.add(partial);
+				merged.merge(partial);
+			}
+			for (int i = partials.size()-1; i>=0; i--) {
+				mergedBackwards.merge(partials.get(i));
+			}
+			if ( !merged.toString().equals(stats.toString()) ||
+				 !mergedBackwards.toString().equals(stats.toString()) )
+			{
+				mergeMismatches++;
+			}
+
+			double variance = BuffUtils.variance(lens);
+			Collections.sort(lens);
+			int median = lens.get(n/2);
+			if ( stats.min!=lens.get(0) || stats.max!=lens.get(n-1) ) {
+				System.err.println("min/max mismatch for "+key+": "+stats);
+			}
+			maxMedianErr = Math.max(maxMedianErr, relativeError(stats.median(), median));
+			maxBucketMedianErr = Math.max(maxBucketMedianErr, relativeError(bucketStats.median(), median));
+			maxVarianceErr = Math.max(maxVarianceErr, relativeError(stats.variance(), variance));
+			maxBucketSize = Math.max(maxBucketSize, bucketStats.size());
+			samples += n;
+			maxN = Math.max(maxN, n);
+		}
+		System.out.printf("%-20s %6d %8d %6d %12.6f %12.6f %12.3g %12d %s\n",
+		                  name, allLengths.size(), samples, maxN,
+		                  maxMedianErr, maxBucketMedianErr, maxVarianceErr, maxBucketSize,
+		                  mergeMismatches==0 ? "ok" : mergeMismatches+" mismatches");
+	}
+
+	public static double relativeError(double estimate, double exact) {
+		if ( exact==0.0 ) return Math.abs(estimate);
+		return Math.abs(estimate-exact)/Math.abs(exact);
+	}
+}
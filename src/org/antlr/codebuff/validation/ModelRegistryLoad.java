@@ -0,0 +1,65 @@
+package org.antlr.codebuff.validation;
+
+import org.antlr.codebuff.ModelRegistry;
+import org.antlr.codebuff.misc.LangDescriptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.antlr.codebuff.Tool.ANTLR4_DESCR;
+import static org.antlr.codebuff.Tool.JAVA_DESCR;
+import static org.antlr.codebuff.Tool.JAVA_GUAVA_DESCR;
+import static org.antlr.codebuff.Tool.SQLITE_CLEAN_DESCR;
+import static org.antlr.codebuff.Tool.TSQL_CLEAN_DESCR;
+
+/** Hammer a {@link ModelRegistry} from several threads asking for the
+ *  house styles we serve, more often for some than others, and report
+ *  load times, hit rate, and what stays resident under a memory budget.
+ *
+ *  Args: budget-in-MB [threads [requests-per-thread]]
+ */
+public class ModelRegistryLoad {
+	public static final LangDescriptor[] styles = {
+		JAVA_DESCR,
+		JAVA_GUAVA_DESCR,
+		SQLITE_CLEAN_DESCR,
+		TSQL_CLEAN_DESCR,
+		ANTLR4_DESCR
+	};
+
+	public static void main(String[] args) throws Exception {
+		long budget = Long.parseLong(args[0])*1024*1024;
+		int numThreads = args.length>1 ? Integer.parseInt(args[1]) : 4;
+		int requestsPerThread = args.length>2 ? Integer.parseInt(args[2]) : 25;
+
+		ModelRegistry registry = new ModelRegistry(budget);
+		long start = System.nanoTime();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t<numThreads; t++) {
+			Random random = new Random(t);
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i<requestsPerThread; i++) {
+					// earlier styles are requested more often
+					int which = Math.min(styles.length-1, (int)(-Math.log(1-random.nextDouble())*1.5));
+					try {
+						registry.get(styles[which]);
+					}
+					catch (Exception e) {
+						e.printStackTrace(System.err);
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime()-start;
+
+		System.out.printf("%d threads x %d requests in %.1fs\n", numThreads, requestsPerThread, elapsed/1e9);
+		System.out.println(registry);
+		System.out.println("resident: "+registry.getResidentKeys());
+	}
+}
@@ -0,0 +1,140 @@
+package org.antlr.codebuff.validation;
+
+import org.antlr.codebuff.Corpus;
+import org.antlr.codebuff.FormatEngine;
+import org.antlr.codebuff.Formatter;
+import org.antlr.codebuff.InputDocument;
+import org.antlr.codebuff.ShardedTrainer;
+import org.antlr.codebuff.Tool;
+import org.antlr.codebuff.Trainer;
+import org.antlr.codebuff.misc.LangDescriptor;
+import org.antlr.v4.runtime.Token;
+
+import java.io.File;
+import java.util.List;
+
+import static org.antlr.codebuff.Tool.getFilenames;
+import static org.antlr.codebuff.Trainer.FEATURES_HPOS;
+import static org.antlr.codebuff.Trainer.FEATURES_INJECT_WS;
+
+/** Does {@link Formatter#formatLines} reformat only the lines we ask for
+ *  and take time in proportion to them? For each document of a corpus,
+ *  reformat RANGE_LINES lines in the middle of the file; the text before
+ *  the last real token ahead of the range and after the range's last real
+ *  token must be that of the file, tabs and all. Then format the
+ *  document, parse the output, and reformat the middle of that. Text
+ *  outside the range must come back as is and, as the document is already
+ *  formatted, we'd like the range unchanged too.
+ *  Compare the time with formatting the whole document, each with a new
+ *  formatter so neither benefits from cached classifications.
+ *
+ *  Args: [lang-name...]; defaults to antlr, java_st, sqlite, tsql, quorum.
+ */
+public class RangeFormatting {
+	public static final int RANGE_LINES = 10;
+	public static final int TRIALS = 3;
+
+	public static void main(String[] args) throws Exception {
+		if ( args.length==0 ) {
+			args = new String[] {"antlr", "java_st", "sqlite", "tsql", "quorum"};
+		}
+		for (String langName : args) {
+			LangDescriptor language = ShardedTrainer.getLanguage(langName);
+			List<String> files = getFilenames(new File(language.corpusDir), language.fileRegex);
+			List<InputDocument> documents = Tool.load(files, language);
+			Corpus corpus = new Corpus(documents, language);
+			corpus.train();
+			FormatEngine engine = new FormatEngine(corpus);
+
+			int n = 0, outsideChanged = 0, rangeChanged = 0;
+			int withTabs = 0, fileOutsideChanged = 0;
+			long fullNanos = 0, rangeNanos = 0;
+			for (InputDocument doc : documents) {
+				String file = Tool.read(doc.fileName);
+				if ( file.indexOf('\t')>=0 ) withTabs++;
+				int fileStartLine = Math.max(1, Tool.count(file, '\n')/2-RANGE_LINES/2);
+				int fileStopLine = fileStartLine+RANGE_LINES-1;
+				String fileOutput = engine.formatLines(doc, fileStartLine, fileStopLine);
+				if ( !sameOutside(doc, file, fileOutput, fileStartLine, fileStopLine) ) fileOutsideChanged++;
+
+				String formatted = engine.format(doc);
+				InputDocument formattedDoc = Tool.parse(doc.fileName, formatted, language);
+				if ( formattedDoc.tree==null ) continue;
+				String[] lines = formatted.split("\n", -1);
+				int startLine = Math.max(1, lines.length/2-RANGE_LINES/2);
+				int stopLine = startLine+RANGE_LINES-1;
+
+				String output = null;
+				long full = Long.MAX_VALUE, range = Long.MAX_VALUE;
+				for (int t = 0; t<TRIALS; t++) {
+					long start = System.nanoTime();
+					newFormatter(corpus).format(formattedDoc, false);
+					long mid = System.nanoTime();
+					output = newFormatter(corpus).formatLines(formattedDoc, startLine, stopLine);
+					long stop = System.nanoTime();
+					full = Math.min(full, mid-start);
+					range = Math.min(range, stop-mid);
+				}
+				fullNanos += full;
+				rangeNanos += range;
+				n++;
+
+				String[] outputLines = output.split("\n", -1);
+				if ( !sameLines(lines, outputLines, 0, startLine-2) ||
+					 !sameLines(reverse(lines), reverse(outputLines), 0, lines.length-stopLine-2) )
+				{
+					outsideChanged++;
+				}
+				if ( !output.equals(formatted) ) rangeChanged++;
+			}
+			System.out.printf("%s: %d files, %d with tabs, %d with text outside the range not as in the file\n",
+			                  language.name, documents.size(), withTabs, fileOutsideChanged);
+			System.out.printf("  formatted: %d docs, %d with text outside the range changed, %d with the range changed\n",
+			                  n, outsideChanged, rangeChanged);
+			System.out.printf("  whole doc %6.2fms/doc, %d lines %6.2fms/doc\n",
+			                  fullNanos/1_000_000.0/n, RANGE_LINES, rangeNanos/1_000_000.0/n);
+		}
+	}
+
+	public static Formatter newFormatter(Corpus corpus) {
+		return new Formatter(corpus, corpus.language.indentSize, Formatter.DEFAULT_K,
+		                     FEATURES_INJECT_WS, FEATURES_HPOS);
+	}
+
+	/** Does output have file's text before the last real token ahead of
+	 *  the real tokens of doc on lines startLine..stopLine and after the
+	 *  last of them?
+	 */
+	public static boolean sameOutside(InputDocument doc, String file, String output, int startLine, int stopLine) {
+		List<Token> real = Trainer.getRealTokens(doc.tokens);
+		int first = -1, last = -1;
+		for (int i = 0; i<real.size(); i++) {
+			int line = real.get(i).getLine();
+			if ( line>=startLine && line<=stopLine ) {
+				if ( first<0 ) first = i;
+				last = i;
+			}
+		}
+		first = Math.max(first, Trainer.ANALYSIS_START_TOKEN_INDEX); // the formatter can't do the first token
+		if ( last<first ) return output.equals(file);
+		String prefix = file.substring(0, doc.rawOffset(real.get(first-1).getStopIndex()+1));
+		String suffix = file.substring(doc.rawOffset(real.get(last).getStopIndex()+1));
+		return output.startsWith(prefix) && output.endsWith(suffix);
+	}
+
+	/** Do a and b agree on lines from..to (0-based, inclusive)? */
+	public static boolean sameLines(String[] a, String[] b, int from, int to) {
+		for (int i = from; i<=to; i++) {
+			if ( i>=a.length || i>=b.length || !a[i].equals(b[i]) ) return false;
+		}
+		return true;
+	}
+
+	public static String[] reverse(String[] a) {
+		String[] r = new String[a.length];
+		for (int i = 0; i<a.length; i++) {
+			r[i] = a[a.length-1-i];
+		}
+		return r;
+	}
+}
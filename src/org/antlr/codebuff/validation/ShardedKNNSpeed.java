@@ -0,0 +1,270 @@
+package org.antlr.codebuff.validation;
+
+import org.antlr.codebuff.Corpus;
+import org.antlr.codebuff.ExemplarShard;
+import org.antlr.codebuff.FeatureMetaData;
+import org.antlr.codebuff.Formatter;
+import org.antlr.codebuff.InProcessShardTransport;
+import org.antlr.codebuff.InputDocument;
+import org.antlr.codebuff.ShardNeighbor;
+import org.antlr.codebuff.ShardTransport;
+import org.antlr.codebuff.ShardedKNNClassifier;
+import org.antlr.codebuff.ShardedTrainer;
+import org.antlr.codebuff.SocketShardTransport;
+import org.antlr.codebuff.Tool;
+import org.antlr.codebuff.kNNClassifier;
+import org.antlr.codebuff.misc.LangDescriptor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.antlr.codebuff.Tool.getFilenames;
+import static org.antlr.codebuff.Trainer.FEATURES_HPOS;
+import static org.antlr.codebuff.Trainer.FEATURES_INJECT_WS;
+import static org.antlr.codebuff.misc.BuffUtils.filter;
+
+/** Check that {@link ShardedKNNClassifier} classifies exactly like
+ *  {@link kNNClassifier} and compare per-token vs batched fan-out to
+ *  shards, both in this JVM and in separate JVMs over localhost sockets.
+ *
+ *  We record the feature vectors the formatter classifies for a test
+ *  document and replay them one at a time and in batches.
+ *
+ *  Sample runs:
+ *
+ *      -antlr corpus/antlr4/training/Java8.g4 3 256
+ *      -java_st corpus/java/training/stringtemplate4/org/stringtemplate/v4/Interpreter.java 4 256
+ */
+public class ShardedKNNSpeed {
+	public static final int TRIALS = 5;
+
+	public static class Query {
+		public final FeatureMetaData[] features;
+		public final int[] unknown;
+		public final int k;
+		public final double distanceThreshold;
+
+		public Query(FeatureMetaData[] features, int[] unknown, int k, double distanceThreshold) {
+			this.features = features;
+			this.unknown = unknown;
+			this.k = k;
+			this.distanceThreshold = distanceThreshold;
+		}
+	}
+
+	/** Count round trips to a shard */
+	public static class CountingTransport implements ShardTransport {
+		public final ShardTransport shard;
+		public int requests = 0;
+
+		public CountingTransport(ShardTransport shard) {
+			this.shard = shard;
+		}
+
+		@Override
+		public int[][] countCandidates(FeatureMetaData[] FEATURES, List<int[]> unknowns) throws IOException {
+			requests++;
+			return shard.countCandidates(FEATURES, unknowns);
+		}
+
+		@Override
+		public ShardNeighbor[][] nearest(FeatureMetaData[] FEATURES, List<int[]> unknowns,
+		                                 int k, double distanceThreshold, int[] modes)
+			throws IOException
+		{
+			requests++;
+			return shard.nearest(FEATURES, unknowns, k, distanceThreshold, modes);
+		}
+
+		@Override
+		public void close() throws IOException {
+			shard.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		LangDescriptor language = ShardedTrainer.getLanguage(args[0].substring(1));
+		String testFilename = args[1];
+		int numShards = args.length>2 ? Integer.parseInt(args[2]) : 3;
+		int batchSize = args.length>3 ? Integer.parseInt(args[3]) : 256;
+
+		List<String> allFiles = getFilenames(new File(language.corpusDir), language.fileRegex);
+		List<InputDocument> documents = Tool.load(allFiles, language);
+		final String path = new File(testFilename).getAbsolutePath();
+		List<InputDocument> others = filter(documents, d -> !d.fileName.equals(path));
+		InputDocument testDoc = Tool.parse(testFilename, language);
+		Corpus corpus = new Corpus(others, language);
+		corpus.train();
+
+		// format test doc recording what we classify
+		List<Query> queries = new ArrayList<>();
+		Formatter formatter = new Formatter(corpus, language.indentSize, Formatter.DEFAULT_K,
+		                                    FEATURES_INJECT_WS, FEATURES_HPOS)
+		{
+			@Override
+			protected kNNClassifier newClassifier(FeatureMetaData[] features, List<Integer> Y) {
+				return new kNNClassifier(corpus, features, Y) {
+					@Override
+					public int classify(int k, int[] unknown, double distanceThreshold) {
+						queries.add(new Query(features, unknown.clone(), k, distanceThreshold));
+						return super.classify(k, unknown, distanceThreshold);
+					}
+				};
+			}
+		};
+		String expectedOutput = formatter.format(testDoc, false);
+		System.out.printf("%s: %d exemplars, %d shards, %d classifications of %s\n",
+		                  language.name, corpus.featureVectors.size(), numShards, queries.size(), testFilename);
+
+		int[] expected = null;
+		long[] times = new long[TRIALS];
+		for (int t = 0; t<TRIALS; t++) {
+			kNNClassifier ws = new kNNClassifier(corpus, FEATURES_INJECT_WS, corpus.injectWhitespace);
+			kNNClassifier hpos = new kNNClassifier(corpus, FEATURES_HPOS, corpus.hpos);
+			long start = System.nanoTime();
+			expected = classifyOneAtATime(queries, ws, hpos);
+			times[t] = System.nanoTime()-start;
+		}
+		report("kNNClassifier on full corpus", times, -1, true);
+
+		List<ShardTransport> inProcess = new ArrayList<>();
+		for (ExemplarShard shard : ExemplarShard.split(corpus, numShards)) {
+			inProcess.add(new InProcessShardTransport(shard));
+		}
+		test("in-process", inProcess, corpus, queries, expected, batchSize);
+
+		// now shards in other JVMs
+		File modelFile = File.createTempFile("codebuff", ".model");
+		modelFile.deleteOnExit();
+		corpus.writeModel(modelFile.getPath());
+		List<Process> workers = new ArrayList<>();
+		try {
+			List<ShardTransport> sockets = new ArrayList<>();
+			for (int i = 0; i<numShards; i++) {
+				List<String> cmd = Arrays.asList(
+					new File(new File(System.getProperty("java.home"), "bin"), "java").getPath(),
+					"-cp", System.getProperty("java.class.path"),
+					ExemplarShard.class.getName(),
+					"-lang", language.name, "-model", modelFile.getPath(),
+					"-shard", String.valueOf(i), "-shards", String.valueOf(numShards));
+				Process p = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+				workers.add(p);
+				BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+				String line = r.readLine(); // "listening on port N"
+				if ( line==null ) throw new IOException("shard "+i+" died");
+				int port = Integer.parseInt(line.substring(line.lastIndexOf(' ')+1));
+				sockets.add(new SocketShardTransport("localhost", port));
+			}
+			test("socket", sockets, corpus, queries, expected, batchSize);
+
+			// format with sharded classifiers
+			Corpus aggregatesOnly = Corpus.readModelAggregates(modelFile.getPath(), language);
+			Formatter shardedFormatter = new Formatter(aggregatesOnly, language.indentSize, Formatter.DEFAULT_K,
+			                                           FEATURES_INJECT_WS, FEATURES_HPOS)
+			{
+				@Override
+				protected kNNClassifier newClassifier(FeatureMetaData[] features, List<Integer> Y) {
+					return new ShardedKNNClassifier(aggregatesOnly, features, sockets, null);
+				}
+			};
+			String output = shardedFormatter.format(Tool.parse(testFilename, language), false);
+			System.out.println("formatting with socket shards "+(output.equals(expectedOutput) ? "matches" : "DIFFERS"));
+			for (ShardTransport shard : sockets) {
+				shard.close();
+			}
+		}
+		finally {
+			for (Process p : workers) {
+				p.destroy();
+			}
+		}
+	}
+
+	public static void test(String name, List<ShardTransport> shards, Corpus corpus,
+	                        List<Query> queries, int[] expected, int batchSize)
+	{
+		List<CountingTransport> counted = new ArrayList<>();
+		for (ShardTransport shard : shards) {
+			counted.add(new CountingTransport(shard));
+		}
+		List<ShardTransport> transports = new ArrayList<>(counted);
+
+		long[] times = new long[TRIALS];
+		boolean same = true;
+		for (int t = 0; t<TRIALS; t++) {
+			ShardedKNNClassifier ws = new ShardedKNNClassifier(corpus, FEATURES_INJECT_WS, transports, null);
+			ShardedKNNClassifier hpos = new ShardedKNNClassifier(corpus, FEATURES_HPOS, transports, null);
+			long start = System.nanoTime();
+			int[] cats = classifyOneAtATime(queries, ws, hpos);
+			times[t] = System.nanoTime()-start;
+			same &= Arrays.equals(cats, expected);
+		}
+		report(name+" per-token", times, counted.get(0).requests/TRIALS, same);
+
+		counted.forEach(c -> c.requests = 0);
+		same = true;
+		for (int t = 0; t<TRIALS; t++) {
+			ShardedKNNClassifier ws = new ShardedKNNClassifier(corpus, FEATURES_INJECT_WS, transports, null);
+			ShardedKNNClassifier hpos = new ShardedKNNClassifier(corpus, FEATURES_HPOS, transports, null);
+			long start = System.nanoTime();
+			int[] cats = classifyInBatches(queries, ws, hpos, batchSize);
+			times[t] = System.nanoTime()-start;
+			same &= Arrays.equals(cats, expected);
+		}
+		report(name+" batch="+batchSize, times, counted.get(0).requests/TRIALS, same);
+	}
+
+	public static int[] classifyOneAtATime(List<Query> queries, kNNClassifier ws, kNNClassifier hpos) {
+		int[] cats = new int[queries.size()];
+		for (int i = 0; i<queries.size(); i++) {
+			Query q = queries.get(i);
+			kNNClassifier classifier = q.features==FEATURES_INJECT_WS ? ws : hpos;
+			cats[i] = classifier.classify(q.k, q.unknown, q.distanceThreshold);
+		}
+		return cats;
+	}
+
+	/** Classify batches of ws and hpos queries; all queries for a feature
+	 *  set use the same k and threshold when recorded from a formatter.
+	 */
+	public static int[] classifyInBatches(List<Query> queries,
+	                                      ShardedKNNClassifier ws, ShardedKNNClassifier hpos,
+	                                      int batchSize)
+	{
+		int[] cats = new int[queries.size()];
+		for (ShardedKNNClassifier classifier : new ShardedKNNClassifier[] {ws, hpos}) {
+			FeatureMetaData[] features = classifier==ws ? FEATURES_INJECT_WS : FEATURES_HPOS;
+			List<Integer> which = new ArrayList<>();
+			for (int i = 0; i<queries.size(); i++) {
+				if ( queries.get(i).features==features ) which.add(i);
+			}
+			for (int from = 0; from<which.size(); from += batchSize) {
+				List<Integer> batch = which.subList(from, Math.min(which.size(), from+batchSize));
+				List<int[]> unknowns = new ArrayList<>();
+				for (int i : batch) {
+					unknowns.add(queries.get(i).unknown);
+				}
+				Query first = queries.get(batch.get(0));
+				int[] batchCats = classifier.classify(first.k, unknowns, first.distanceThreshold);
+				for (int j = 0; j<batch.size(); j++) {
+					cats[batch.get(j)] = batchCats[j];
+				}
+			}
+		}
+		return cats;
+	}
+
+	public static void report(String name, long[] times, int requestsPerShard, boolean same) {
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		System.out.printf("%-28s median %6.1fms  min %6.1fms  %s  %s\n",
+		                  name, sorted[sorted.length/2]/1_000_000.0, sorted[0]/1_000_000.0,
+		                  requestsPerShard>=0 ? String.format("%6d requests/shard", requestsPerShard) : String.format("%21s", ""),
+		                  same ? "same categories" : "CATEGORIES DIFFER");
+	}
+}
@@ -0,0 +1,103 @@
+package org.antlr.codebuff.validation;
+
+import org.antlr.codebuff.Corpus;
+import org.antlr.codebuff.InputDocument;
+import org.antlr.codebuff.Tool;
+import org.antlr.codebuff.misc.LangDescriptor;
+import org.antlr.codebuff.walkers.CollectSiblingLists;
+import org.antlr.codebuff.walkers.IdentifyOversizeLists;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import static org.antlr.codebuff.Tool.JAVA_DESCR;
+import static org.antlr.codebuff.Tool.SQLITE_CLEAN_DESCR;
+
+/** How long does finding sibling lists take on very wide nodes? We make
+ *  documents with one list of n elements (a Java array initializer, a
+ *  Java enum and a SQL VALUES list) and time walking them with
+ *  {@link CollectSiblingLists}, as in training, and
+ *  {@link IdentifyOversizeLists}, as in formatting, and walking them
+ *  without looking for lists. Time per element beyond the walk should
+ *  stay flat as n grows.
+ *
+ *  Args: [n...]; defaults to 1000 10000 50000.
+ */
+public class SiblingListSpeed {
+	public static final int TRIALS = 5;
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = {1_000, 10_000, 50_000};
+		if ( args.length>0 ) {
+			sizes = new int[args.length];
+			for (int i = 0; i<args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+		Corpus javaCorpus = new Corpus(JAVA_DESCR.corpusDir, JAVA_DESCR);
+		javaCorpus.train();
+		Corpus sqlCorpus = new Corpus(SQLITE_CLEAN_DESCR.corpusDir, SQLITE_CLEAN_DESCR);
+		sqlCorpus.train();
+
+		System.out.printf("%-18s %7s %10s %12s %12s %14s\n", "list", "n", "walk ms", "collect ms", "identify ms",
+		                  "ns per element");
+		for (int n : sizes) {
+			time("array initializer", n, arrayInitializer(n), javaCorpus);
+			time("enum", n, enumConstants(n), javaCorpus);
+			time("VALUES", n, valuesList(n), sqlCorpus);
+		}
+	}
+
+	public static void time(String name, int n, String content, Corpus corpus) throws Exception {
+		LangDescriptor language = corpus.language;
+		InputDocument doc = Tool.parse("synthetic", content, language);
+		long walkNanos = Long.MAX_VALUE, collectNanos = Long.MAX_VALUE, identifyNanos = Long.MAX_VALUE;
+		for (int t = 0; t<TRIALS; t++) {
+			long walkStart = System.nanoTime();
+			ParseTreeWalker.DEFAULT.walk(new CollectSiblingLists() {
+				@Override
+				public void enterEveryRule(ParserRuleContext ctx) { }
+			}, doc.tree);
+			long start = System.nanoTime();
+			CollectSiblingLists collector = new CollectSiblingLists();
+			collector.setDocument(doc);
+			ParseTreeWalker.DEFAULT.walk(collector, doc.tree);
+			long mid = System.nanoTime();
+			IdentifyOversizeLists splitter = new IdentifyOversizeLists(corpus, doc.tokens, doc.getFlatTree());
+			ParseTreeWalker.DEFAULT.walk(splitter, doc.tree);
+			long stop = System.nanoTime();
+			walkNanos = Math.min(walkNanos, start-walkStart);
+			collectNanos = Math.min(collectNanos, mid-start);
+			identifyNanos = Math.min(identifyNanos, stop-mid);
+		}
+		System.out.printf("%-18s %7d %10.1f %12.1f %12.1f %14.0f\n", name, n, walkNanos/1_000_000.0,
+		                  collectNanos/1_000_000.0, identifyNanos/1_000_000.0,
+		                  (double)(collectNanos+identifyNanos-2*walkNanos)/n);
+	}
+
+	public static String arrayInitializer(int n) {
+		StringBuilder buf = new StringBuilder("class T {\n    int[] a = {");
+		for (int i = 0; i<n; i++) {
+			if ( i>0 ) buf.append(", ");
+			buf.append(i);
+		}
+		return buf.append("};\n}\n").toString();
+	}
+
+	public static String enumConstants(int n) {
+		StringBuilder buf = new StringBuilder("enum E {\n");
+		for (int i = 0; i<n; i++) {
+			if ( i>0 ) buf.append(",\n");
+			buf.append("    E").append(i);
+		}
+		return buf.append("\n}\n").toString();
+	}
+
+	public static String valuesList(int n) {
+		StringBuilder buf = new StringBuilder("INSERT INTO t VALUES\n");
+		for (int i = 0; i<n; i++) {
+			if ( i>0 ) buf.append(",\n");
+			buf.append("  (").append(i).append(", 'v").append(i).append("')");
+		}
+		return buf.append(";\n").toString();
+	}
+}
@@ -0,0 +1,154 @@
+package org.antlr.codebuff.validation;
+
+import org.antlr.codebuff.Corpus;
+import org.antlr.codebuff.FormatEngine;
+import org.antlr.codebuff.InputDocument;
+import org.antlr.codebuff.ShardedTrainer;
+import org.antlr.codebuff.Tool;
+import org.antlr.codebuff.Trainer;
+import org.antlr.codebuff.misc.LangDescriptor;
+import org.antlr.codebuff.misc.StatementReader;
+import org.antlr.v4.runtime.Token;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+
+import static org.antlr.codebuff.Tool.getFilenames;
+
+/** Does {@link FormatEngine#formatStatements} hold a statement rather than
+ *  the script? Train on a corpus and glue its documents into a script of
+ *  at least ChunkedFormatSpeed.LINES lines in a file, ending each with a
+ *  terminator. Format the file a statement at a time, to a file, and then
+ *  whole, and report the heap each holds, measured after GC: the most at
+ *  any statement for streaming, all of it for the whole script. We stream
+ *  first so the classifier caches it fills count against it. The streamed
+ *  output should have the script's tokens.
+ *
+ *  Args: [lang-name...]; defaults to sqlite, tsql.
+ */
+public class StatementStreaming {
+	/** Measure the heap every so many statements */
+	public static final int SAMPLE_EVERY = 50;
+
+	public static void main(String[] args) throws Exception {
+		if ( args.length==0 ) {
+			args = new String[] {"sqlite", "tsql"};
+		}
+		int failures = 0;
+		for (String langName : args) {
+			LangDescriptor language = ShardedTrainer.getLanguage(langName);
+			if ( language.statementTerminatorTypes==null ) {
+				System.out.println(language.name+": can't format a statement at a time");
+				continue;
+			}
+			List<String> files = getFilenames(new File(language.corpusDir), language.fileRegex);
+			List<InputDocument> documents = Tool.load(files, language);
+			Corpus corpus = new Corpus(documents, language);
+			corpus.train();
+			FormatEngine engine = new FormatEngine(corpus);
+
+			File script = File.createTempFile("script", ".sql");
+			File output = File.createTempFile("formatted", ".sql");
+			script.deleteOnExit();
+			output.deleteOnExit();
+			try ( Writer out = new FileWriter(script) ) {
+				out.write(script(documents));
+			}
+			documents = null;
+
+			long base = usedHeap();
+			long[] streamHeap = new long[1];
+			int[] read = new int[1];
+			int formatted;
+			StatementReader statements;
+			long start = System.nanoTime();
+			try ( Reader in = new BufferedReader(new FileReader(script));
+			      Writer out = new BufferedWriter(new FileWriter(output)) )
+			{
+				statements = new StatementReader(in, language) {
+					@Override
+					public String next() {
+						if ( ++read[0]%SAMPLE_EVERY==0 ) {
+							streamHeap[0] = Math.max(streamHeap[0], usedHeap());
+						}
+						return super.next();
+					}
+				};
+				formatted = engine.formatStatements(script.getPath(), statements, out);
+			}
+			long streamNanos = System.nanoTime()-start;
+
+			base = usedHeap();
+			start = System.nanoTime();
+			InputDocument whole = Tool.parse(script.getPath(), language);
+			engine.format(whole, new StringBuilder());
+			long wholeNanos = System.nanoTime()-start;
+			long wholeHeap = usedHeap()-base;
+			int scriptChars = whole.content.length();
+			List<Token> expected = Trainer.getRealTokens(whole.tokens);
+			whole = null;
+
+			InputDocument streamed = Tool.parse(output.getPath(), language);
+			List<Token> actual = Trainer.getRealTokens(streamed.tokens);
+			boolean sameTokens = streamed.tree!=null && sameText(expected, actual);
+			if ( !sameTokens ) failures++;
+			System.out.printf("%s: %d chars, %d statements read, %d formatted, most held %d chars; tokens %s\n",
+			                  language.name, scriptChars, read[0]-1, formatted, statements.maxChars,
+			                  sameTokens ? "the same" : "DIFFERENT");
+			System.out.printf("  whole %7.1fms, heap %6.1fMB; by statement %7.1fms, heap %6.1fMB\n",
+			                  wholeNanos/1_000_000.0, wholeHeap/(1024.0*1024),
+			                  streamNanos/1_000_000.0, Math.max(0, streamHeap[0]-base)/(1024.0*1024));
+		}
+		if ( failures>0 ) {
+			System.err.println(failures+" streamed outputs have different tokens");
+			System.exit(1);
+		}
+	}
+
+	/** The documents glued into a script of at least LINES lines; we end
+	 *  each with a terminator if it has none.
+	 */
+	public static String script(List<InputDocument> documents) {
+		int terminator = documents.get(0).language.statementTerminatorTypes[0];
+		String terminatorText = documents.get(0).parser.getVocabulary().getLiteralName(terminator);
+		terminatorText = terminatorText.substring(1, terminatorText.length()-1); // strip quotes
+		StringBuilder buf = new StringBuilder();
+		int lines = 0;
+		while ( lines<ChunkedFormatSpeed.LINES ) {
+			for (InputDocument doc : documents) {
+				List<Token> real = Trainer.getRealTokens(doc.tokens);
+				if ( real.isEmpty() ) continue;
+				Token last = real.get(real.size()-1);
+				buf.append(doc.content, 0, last.getStopIndex()+1);
+				if ( last.getType()!=terminator ) buf.append(terminatorText);
+				buf.append(doc.content, last.getStopIndex()+1, doc.content.length());
+				buf.append('\n');
+				lines += Tool.count(doc.content, '\n')+1;
+			}
+		}
+		return buf.toString();
+	}
+
+	public static boolean sameText(List<Token> a, List<Token> b) {
+		if ( a.size()!=b.size() ) return false;
+		for (int i = 0; i<a.size(); i++) {
+			if ( !a.get(i).getText().equals(b.get(i).getText()) ) return false;
+		}
+		return true;
+	}
+
+	/** Bytes of heap in use after collecting garbage */
+	public static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 1; i<=2; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory()-runtime.freeMemory();
+	}
+}
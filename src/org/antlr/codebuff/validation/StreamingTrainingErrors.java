@@ -0,0 +1,129 @@
+package org.antlr.codebuff.validation;
+
+import org.antlr.codebuff.Corpus;
+import org.antlr.codebuff.CorpusFootprint;
+import org.antlr.codebuff.Formatter;
+import org.antlr.codebuff.InputDocument;
+import org.antlr.codebuff.ShardedTrainer;
+import org.antlr.codebuff.StratifiedExemplarSampler;
+import org.antlr.codebuff.Tool;
+import org.antlr.codebuff.misc.LangDescriptor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.antlr.codebuff.Trainer.FEATURES_HPOS;
+import static org.antlr.codebuff.Trainer.FEATURES_INJECT_WS;
+import static org.antlr.codebuff.Tool.getFilenames;
+import static org.antlr.codebuff.misc.BuffUtils.median;
+
+/** What do we lose by capping the number of exemplars in
+ *  {@link Corpus#trainStreaming}? For a few test documents per language,
+ *  train on the other documents with and without caps and compare
+ *  formatting error rates. We also try plain (unstratified) reservoir
+ *  sampling at the same caps to see what stratifying buys us.
+ *
+ *  Args: [lang-name...]; defaults to antlr, java_st, sqlite, tsql.
+ */
+public class StreamingTrainingErrors {
+	public static final int NUM_TEST_DOCS = 5;
+	public static final double[] CAPS = {0.5, 0.25, 0.10, 0.05};
+
+	public static void main(String[] args) throws Exception {
+		if ( args.length==0 ) {
+			args = new String[] {"antlr", "java_st", "sqlite", "tsql"};
+		}
+		for (String langName : args) {
+			LangDescriptor language = ShardedTrainer.getLanguage(langName);
+			List<String> allFiles = getFilenames(new File(language.corpusDir), language.fileRegex);
+			Collections.sort(allFiles);
+			List<String> testFiles = new ArrayList<>(allFiles);
+			Collections.shuffle(testFiles, new Random(Corpus.FEATURE_VECTOR_RANDOM_SEED));
+			testFiles = testFiles.subList(0, Math.min(NUM_TEST_DOCS, testFiles.size()));
+
+			List<Float> fullErrors = new ArrayList<>();
+			List<List<Float>> stratifiedErrors = new ArrayList<>();
+			List<List<Float>> uniformErrors = new ArrayList<>();
+			for (double cap : CAPS) {
+				stratifiedErrors.add(new ArrayList<>());
+				uniformErrors.add(new ArrayList<>());
+			}
+			long fullBytes = 0;
+			long[] cappedBytes = new long[CAPS.length];
+			int numExemplars = 0;
+			boolean same = true;
+			for (String testFile : testFiles) {
+				List<String> trainFiles = new ArrayList<>(allFiles);
+				trainFiles.remove(testFile);
+
+				Corpus full = new Corpus(Tool.load(trainFiles, language), language);
+				full.train();
+				numExemplars = full.featureVectors.size();
+				fullBytes = Math.max(fullBytes, CorpusFootprint.of(full).total());
+				fullErrors.add(errorRate(full, testFile));
+
+				Corpus streamed = Corpus.trainStreaming(trainFiles, language, Integer.MAX_VALUE);
+				same &= sameExemplars(full, streamed);
+
+				for (int c = 0; c<CAPS.length; c++) {
+					int maxExemplars = (int)(CAPS[c]*numExemplars);
+					Corpus stratified = Corpus.trainStreaming(trainFiles, language, maxExemplars);
+					cappedBytes[c] = Math.max(cappedBytes[c], CorpusFootprint.of(stratified).total());
+					stratifiedErrors.get(c).add(errorRate(stratified, testFile));
+
+					StratifiedExemplarSampler uniform =
+						new StratifiedExemplarSampler(maxExemplars, new Random(Corpus.FEATURE_VECTOR_RANDOM_SEED)) {
+							@Override
+							public Object getStratum(int[] features) { return ""; }
+						};
+					uniformErrors.get(c).add(errorRate(Corpus.trainStreaming(trainFiles, language, uniform), testFile));
+				}
+			}
+
+			System.out.printf("%s: %d test docs, ~%d exemplars; uncapped streaming %s full training\n",
+			                  language.name, testFiles.size(), numExemplars,
+			                  same ? "matches" : "DIFFERS FROM");
+			System.out.printf("  %-6s %9s %10s  %-22s %-22s\n", "cap", "exemplars", "retained",
+			                  "stratified error", "uniform error");
+			System.out.printf("  %-6s %9d %10s  %-22s\n", "full", numExemplars, CorpusFootprint.mb(fullBytes),
+			                  errors(fullErrors));
+			for (int c = 0; c<CAPS.length; c++) {
+				System.out.printf("  %-6s %9d %10s  %-22s %-22s\n",
+				                  String.format("%.0f%%", CAPS[c]*100), (int)(CAPS[c]*numExemplars),
+				                  CorpusFootprint.mb(cappedBytes[c]),
+				                  errors(stratifiedErrors.get(c)), errors(uniformErrors.get(c)));
+			}
+		}
+	}
+
+	public static float errorRate(Corpus corpus, String testFile) throws Exception {
+		LangDescriptor language = corpus.language;
+		InputDocument testDoc = Tool.parse(testFile, language);
+		Formatter formatter = new Formatter(corpus, language.indentSize, Formatter.DEFAULT_K,
+		                                    FEATURES_INJECT_WS, FEATURES_HPOS);
+		formatter.format(testDoc, false);
+		return new ClassificationAnalysis(testDoc, formatter.getAnalysisPerToken()).getErrorRate();
+	}
+
+	public static boolean sameExemplars(Corpus a, Corpus b) {
+		if ( a.featureVectors.size()!=b.featureVectors.size() ) return false;
+		for (int i = 0; i<a.featureVectors.size(); i++) {
+			if ( !Arrays.equals(a.featureVectors.get(i), b.featureVectors.get(i)) ) return false;
+		}
+		return a.injectWhitespace.equals(b.injectWhitespace) && a.hpos.equals(b.hpos);
+	}
+
+	/** Median and mean error rate */
+	public static String errors(List<Float> errors) {
+		double mean = 0;
+		for (float e : errors) {
+			mean += e;
+		}
+		mean /= errors.size();
+		return String.format("%.4f (mean %.4f)", median(errors), mean);
+	}
+}
@@ -0,0 +1,72 @@
+package org.antlr.codebuff.validation;
+
+import org.antlr.codebuff.Corpus;
+import org.antlr.codebuff.StyleDetector;
+import org.antlr.codebuff.Tool;
+import org.antlr.codebuff.misc.LangDescriptor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.antlr.codebuff.Tool.JAVA_DESCR;
+import static org.antlr.codebuff.Tool.JAVA_GUAVA_DESCR;
+import static org.antlr.codebuff.Tool.SQLITE_CLEAN_DESCR;
+import static org.antlr.codebuff.Tool.SQLITE_NOISY_DESCR;
+import static org.antlr.codebuff.Tool.TSQL_CLEAN_DESCR;
+import static org.antlr.codebuff.Tool.TSQL_NOISY_DESCR;
+import static org.antlr.codebuff.Tool.getFilenames;
+
+/** How often does {@link StyleDetector} pick the right style? For each
+ *  group of styles sharing a grammar, hold out some files of each corpus,
+ *  train on the rest, then rank the group's models against random samples
+ *  of held out files.
+ */
+public class StyleDetectionAccuracy {
+	public static final LangDescriptor[][] groups = {
+		{JAVA_DESCR, JAVA_GUAVA_DESCR},
+		{SQLITE_CLEAN_DESCR, SQLITE_NOISY_DESCR},
+		{TSQL_CLEAN_DESCR, TSQL_NOISY_DESCR},
+	};
+	public static final double HELD_OUT_FRACTION = 0.2;
+	public static final int TRIALS = 20;
+	public static final int[] SAMPLE_SIZES = {1, 3, 10};
+
+	public static void main(String[] args) throws Exception {
+		for (LangDescriptor[] group : groups) {
+			List<Corpus> models = new ArrayList<>();
+			List<List<String>> heldOut = new ArrayList<>();
+			for (LangDescriptor language : group) {
+				List<String> files = getFilenames(new File(language.corpusDir), language.fileRegex);
+				Collections.sort(files);
+				Collections.shuffle(files, new Random(Corpus.FEATURE_VECTOR_RANDOM_SEED));
+				int n = Math.max(SAMPLE_SIZES[SAMPLE_SIZES.length-1], (int)(files.size()*HELD_OUT_FRACTION));
+				heldOut.add(files.subList(0, n));
+				Corpus corpus = new Corpus(Tool.load(files.subList(n, files.size()), language), language);
+				corpus.train();
+				long start = System.nanoTime();
+				corpus.getStyleSketch();
+				long stop = System.nanoTime();
+				System.out.printf("%s: trained on %d files, held out %d; sketch %s in %dms\n",
+				                  language.name, files.size()-n, n, corpus.getStyleSketch(), (stop-start)/1_000_000);
+				models.add(corpus);
+			}
+			for (int size : SAMPLE_SIZES) {
+				for (int g = 0; g<group.length; g++) {
+					int correct = 0;
+					long totalNanos = 0;
+					for (int t = 0; t<TRIALS; t++) {
+						long start = System.nanoTime();
+						List<StyleDetector.Match> matches = StyleDetector.rank(models, heldOut.get(g), size, t);
+						totalNanos += System.nanoTime()-start;
+						if ( matches.get(0).model==models.get(g) ) correct++;
+					}
+					System.out.printf("  %-12s sample %2d files: %2d/%d correct, %6.1fms per ranking\n",
+					                  group[g].name, size, correct, TRIALS, totalNanos/1_000_000.0/TRIALS);
+				}
+			}
+		}
+	}
+}
@@ -1,9 +1,10 @@
 package org.antlr.codebuff.walkers;
 
+import org.antlr.codebuff.FlatTree;
+import org.antlr.codebuff.InputDocument;
 import org.antlr.codebuff.Tool;
 import org.antlr.codebuff.Trainer;
 import org.antlr.codebuff.kNNClassifier;
-import org.antlr.codebuff.misc.BuffUtils;
 import org.antlr.codebuff.misc.CodeBuffTokenStream;
 import org.antlr.codebuff.misc.HashBag;
 import org.antlr.codebuff.misc.ParentSiblingListKey;
@@ -14,8 +15,9 @@ import org.antlr.v4.runtime.misc.Pair;
 import org.antlr.v4.runtime.tree.ErrorNode;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -25,7 +27,9 @@ import java.util.Map;
  *  Track oversize and regular lists are sometimes treated differently, such as
  *  formal arg lists in Java. Sometimes they are split across lines.
  *
- *  A single instance is shared across all training docs to collect complete info.
+ *  A single instance is shared across all training docs to collect complete info
+ *  or, when training in parallel, each worker fills its own instance and
+ *  the partials are combined with {@link #merge}.
  */
 public class CollectSiblingLists extends VisitSiblingLists {
 	// listInfo and splitListInfo are used to collect statistics for use by the formatting engine when computing "is oversize list"
@@ -33,28 +37,32 @@ public class CollectSiblingLists extends VisitSiblingLists {
 	/** Track set of (parent:alt,child:alt) list pairs and their min,median,variance,max
 	 *  but only if the list is all on one line and has a separator.
 	 */
-	public Map<ParentSiblingListKey, List<Integer>> listInfo = new HashMap<>();
+	public Map<ParentSiblingListKey, SiblingListStats> listInfo = new HashMap<>();
 
 	/** Track set of (parent:alt,child:alt) list pairs and their min,median,variance,max
 	 *  but only if the list is split with at least one '\n' before/after
 	 *  a separator.
 	 */
-	public Map<ParentSiblingListKey, List<Integer>> splitListInfo = new HashMap<>();
+	public Map<ParentSiblingListKey, SiblingListStats> splitListInfo = new HashMap<>();
 
-	/** Debugging */
-	public Map<ParentSiblingListKey, List<Integer>> splitListForm = new HashMap<>();
+	/** Debugging; how often split lists of each pair take each form. There
+	 *  are at most 16 forms so this doesn't grow with the corpus.
+	 */
+	public Map<ParentSiblingListKey, HashBag<Integer>> splitListForm = new HashMap<>();
 
 	/** Map token to ("is oversize", element type). Used to compute feature vector. */
 	public Map<Token,Pair<Boolean,Integer>> tokenToListInfo = new HashMap<>();
 
-	public Map<Token, TerminalNode> tokenToNodeMap = null;
-
 	public CodeBuffTokenStream tokens;
 
 	// reuse object so the maps above fill from multiple files during training
-	public void setTokens(CodeBuffTokenStream tokens, ParserRuleContext root, Map<Token, TerminalNode> tokenToNodeMap) {
+	public void setTokens(CodeBuffTokenStream tokens, FlatTree flatTree) {
 		this.tokens = tokens;
-		this.tokenToNodeMap = tokenToNodeMap;
+		this.flatTree = flatTree;
+	}
+
+	public void setDocument(InputDocument doc) {
+		setTokens(doc.tokens, doc.getFlatTree());
 	}
 
 	public void visitNonSingletonWithSeparator(ParserRuleContext ctx, List<? extends ParserRuleContext> siblings, Token separator) {
@@ -93,72 +101,136 @@ public class CollectSiblingLists extends VisitSiblingLists {
 
 		// now track length of parent:alt,child:alt list or split-list
 		ParentSiblingListKey pair = new ParentSiblingListKey(ctx, first, separator.getType());
-		Map<ParentSiblingListKey, List<Integer>> info = isSplitList ? splitListInfo : listInfo;
-		List<Integer> lens = info.get(pair);
-		if ( lens==null ) {
-			lens = new ArrayList<>();
-			info.put(pair, lens);
-		}
-		lens.add(Trainer.getSiblingsLength(siblings));
+		addListLength(pair, isSplitList, getSiblingsLength(siblings));
 
 		// track the form split lists take for debugging
 		if ( isSplitList ) {
 			int form = Trainer.listform(ws);
-			List<Integer> forms = splitListForm.get(pair);
+			HashBag<Integer> forms = splitListForm.get(pair);
 			if ( forms==null ) {
-				forms = new ArrayList<>();
+				forms = new HashBag<>();
 				splitListForm.put(pair, forms);
 			}
 			forms.add(form); // track where we put newlines for this list
 		}
 
-		Map<Token, Pair<Boolean, Integer>> tokenInfo =
-			getInfoAboutListTokens(ctx, tokens, tokenToNodeMap, siblings, isSplitList);
-
 		// copy sibling list info for associated tokens into overall list
 		// but don't overwrite existing so that most general (largest construct)
 		// list information is use/retained (i.e., not overwritten).
-		for (Token t : tokenInfo.keySet()) {
+		addInfoAboutListTokens(tokenToListInfo, ctx, tokens, flatTree, siblings, isSplitList);
+	}
+
+	public void addListLength(ParentSiblingListKey pair, boolean isSplitList, int len) {
+		Map<ParentSiblingListKey, SiblingListStats> info = isSplitList ? splitListInfo : listInfo;
+		SiblingListStats stats = info.get(pair);
+		if ( stats==null ) {
+			stats = new SiblingListStats();
+			info.put(pair, stats);
+		}
+		stats.add(len);
+	}
+
+	/** Add list stats and token list info collected by a worker on another
+	 *  set of documents. Partials must be merged in document order.
+	 */
+	public void merge(CollectSiblingLists partial) {
+		mergeStats(listInfo, partial.listInfo);
+		mergeStats(splitListInfo, partial.splitListInfo);
+		mergeForms(splitListForm, partial.splitListForm);
+		// documents never share tokens but keep first-seen info anyway like visitNonSingletonWithSeparator()
+		for (Token t : partial.tokenToListInfo.keySet()) {
 			if ( !tokenToListInfo.containsKey(t) ) {
-				tokenToListInfo.put(t, tokenInfo.get(t));
+				tokenToListInfo.put(t, partial.tokenToListInfo.get(t));
+			}
+		}
+	}
+
+	protected static void mergeStats(Map<ParentSiblingListKey, SiblingListStats> to,
+	                                 Map<ParentSiblingListKey, SiblingListStats> from)
+	{
+		for (ParentSiblingListKey pair : from.keySet()) {
+			SiblingListStats stats = to.get(pair);
+			if ( stats==null ) {
+				stats = new SiblingListStats();
+				to.put(pair, stats);
+			}
+			stats.merge(from.get(pair));
+		}
+	}
+
+	protected static void mergeForms(Map<ParentSiblingListKey, HashBag<Integer>> to,
+	                                 Map<ParentSiblingListKey, HashBag<Integer>> from)
+	{
+		for (ParentSiblingListKey pair : from.keySet()) {
+			HashBag<Integer> forms = to.get(pair);
+			if ( forms==null ) {
+				forms = new HashBag<>();
+				to.put(pair, forms);
+			}
+			HashBag<Integer> partialForms = from.get(pair);
+			for (Integer form : partialForms.keySet()) {
+				forms.add(form, partialForms.get(form));
 			}
 		}
 	}
 
+	/** Save list and split-list stats so another process can {@link #readListStats}
+	 *  and {@link #merge} them. Token list info refers to tokens in loaded
+	 *  documents so it isn't saved.
+	 */
+	public void writeListStats(DataOutputStream out) throws IOException {
+		writeStats(out, listInfo);
+		writeStats(out, splitListInfo);
+	}
+
+	public void readListStats(DataInputStream in) throws IOException {
+		listInfo = readStats(in);
+		splitListInfo = readStats(in);
+	}
+
+	public static void writeStats(DataOutputStream out, Map<ParentSiblingListKey, SiblingListStats> map)
+		throws IOException
+	{
+		out.writeInt(map.size());
+		for (ParentSiblingListKey pair : map.keySet()) {
+			out.writeInt(pair.parentRuleIndex);
+			out.writeInt(pair.parentRuleAlt);
+			out.writeInt(pair.childRuleIndex);
+			out.writeInt(pair.childRuleAlt);
+			out.writeInt(pair.separatorTokenType);
+			map.get(pair).write(out);
+		}
+	}
+
+	public static Map<ParentSiblingListKey, SiblingListStats> readStats(DataInputStream in)
+		throws IOException
+	{
+		Map<ParentSiblingListKey, SiblingListStats> map = new HashMap<>();
+		int n = in.readInt();
+		for (int i = 0; i<n; i++) {
+			ParentSiblingListKey pair =
+				new ParentSiblingListKey(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+			map.put(pair, SiblingListStats.read(in));
+		}
+		return map;
+	}
+
 	// for debugging
 	public Map<ParentSiblingListKey, Integer> getSplitListForms() {
 		Map<ParentSiblingListKey, Integer> results = new HashMap<>();
 		for (ParentSiblingListKey pair : splitListForm.keySet()) {
-			HashBag<Integer> votes = new HashBag<>();
-			List<Integer> forms = splitListForm.get(pair);
-			forms.forEach(votes::add);
-			int mostCommonForm = kNNClassifier.getCategoryWithMostVotes(votes);
+			int mostCommonForm = kNNClassifier.getCategoryWithMostVotes(splitListForm.get(pair));
 			results.put(pair, mostCommonForm);
 		}
 		return results;
 	}
 
 	public Map<ParentSiblingListKey, SiblingListStats> getListStats() {
-		return getListStats(listInfo);
+		return listInfo;
 	}
 
 	public Map<ParentSiblingListKey, SiblingListStats> getSplitListStats() {
-		return getListStats(splitListInfo);
-	}
-
-	public Map<ParentSiblingListKey, SiblingListStats> getListStats(Map<ParentSiblingListKey, List<Integer>> map) {
-		Map<ParentSiblingListKey, SiblingListStats> listSizes = new HashMap<>();
-		for (ParentSiblingListKey pair : map.keySet()) {
-			List<Integer> lens = map.get(pair);
-			Collections.sort(lens);
-			int n = lens.size();
-			Integer min = lens.get(0);
-			Integer median = lens.get(n/2);
-			Integer max = lens.get(n-1);
-			double var = BuffUtils.variance(lens);
-			listSizes.put(pair, new SiblingListStats(n, min, median, var, max));
-		}
-		return listSizes;
+		return splitListInfo;
 	}
 
 	public Map<Token, Pair<Boolean, Integer>> getTokenToListInfo() {
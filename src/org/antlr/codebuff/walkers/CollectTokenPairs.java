@@ -1,6 +1,7 @@
 package org.antlr.codebuff.walkers;
 
 import org.antlr.codebuff.misc.BuffUtils;
+import org.antlr.codebuff.misc.OrderedIntSet;
 import org.antlr.codebuff.misc.RuleAltKey;
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
@@ -11,10 +12,15 @@ import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeListener;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -129,62 +135,262 @@ public class CollectTokenPairs implements ParseTreeListener {
 		CommonPairs['>'] = '<';
 	}
 
-	/** Map a rule name to a bag of (a,b) tuples that counts occurrences */
-	protected Map<RuleAltKey,Set<Pair<Integer,Integer>>> ruleToPairsBag = new HashMap<>();
+	/** Per rule index and alt number, the (a,b) tuples seen, each packed
+	 *  into an int by {@link #pack}, in the order first seen
+	 */
+	protected OrderedIntSet[][] ruleAltToPairs;
 
-	/** Track repeated token refs per rule */
-	protected Map<RuleAltKey,Set<Integer>> ruleToRepeatedTokensSet = new HashMap<>();
+	/** Track repeated token refs per rule index and alt number */
+	protected OrderedIntSet[][] ruleAltToRepeatedTokens;
 
 	/** We need parser vocabulary so we can filter for literals like '{' vs ID */
 	protected Vocabulary vocab;
 
 	protected String[] ruleNames;
 
+	/** Iteration order of the pair sets decides which pair wins in
+	 *  {@link #getMatchingLeftTokenType}. We always keep the order pairs were
+	 *  first seen so {@link #merge} replays partials in document order; this
+	 *  says whether {@link #getDependencies} lists pairs in that order too.
+	 */
+	protected boolean preserveEncounterOrder;
+
+	/** Which token types are literals, from vocab */
+	protected boolean[] literalTypes;
+
+	/** Scratch for {@link #enterEveryRule}: the literal token types among a
+	 *  node's children, which are first occurrences, and per token type the
+	 *  stamp of the node that last saw it so we need not clear it between
+	 *  nodes. The distinct types after a position, in order of first
+	 *  occurrence after it, are a list linked through next and prev. For
+	 *  each distinct type a, the types b that pair with it are in
+	 *  partners[partnersStart[a's segment]..].
+	 */
+	protected int[] literals = new int[16];
+	protected boolean[] isFirst = new boolean[16];
+	protected int[] firstSeen;
+	protected int[] inList;
+	protected int[] next;
+	protected int[] prev;
+	protected int[] segmentType = new int[16];
+	protected int[] segmentStart = new int[17];
+	protected int[] partners = new int[64];
+	protected int stamp;
+
 	public CollectTokenPairs(Vocabulary vocab, String[] ruleNames) {
+		this(vocab, ruleNames, false);
+	}
+
+	public CollectTokenPairs(Vocabulary vocab, String[] ruleNames, boolean preserveEncounterOrder) {
 		this.vocab = vocab;
 		this.ruleNames = ruleNames;
+		this.preserveEncounterOrder = preserveEncounterOrder;
+		int maxTokenType = vocab.getMaxTokenType();
+		literalTypes = new boolean[maxTokenType+1];
+		for (int ttype = 0; ttype<=maxTokenType; ttype++) {
+			literalTypes[ttype] = vocab.getLiteralName(ttype)!=null;
+		}
+		firstSeen = new int[maxTokenType+1];
+		inList = new int[maxTokenType+1];
+		next = new int[maxTokenType+1];
+		prev = new int[maxTokenType+1];
+		ruleAltToPairs = new OrderedIntSet[ruleNames.length][];
+		ruleAltToRepeatedTokens = new OrderedIntSet[ruleNames.length][];
 	}
 
 	@Override
 	public void enterEveryRule(ParserRuleContext ctx) {
-		String ruleName = ruleNames[ctx.getRuleIndex()];
-		List<TerminalNode> tnodes = getDirectTerminalChildren(ctx);
-		// Find all ordered unique pairs of literals;
-		// no (a,a) pairs and only literals like '{', 'begin', '}', ...
-		// Add a for (a,a) into ruleToRepeatedTokensSet for later filtering
-		RuleAltKey ruleAltKey = new RuleAltKey(ruleName, ctx.getAltNumber());
-		for (int i=0; i<tnodes.size(); i++) {
-			for (int j = i+1; j<tnodes.size(); j++) {
-				TerminalNode a = tnodes.get(i);
-				TerminalNode b = tnodes.get(j);
-				int atype = a.getSymbol().getType();
-				int btype = b.getSymbol().getType();
-				// only include literals like '{' and ':' not IDENTIFIER etc...
-				if ( vocab.getLiteralName(atype)==null || vocab.getLiteralName(btype)==null ) {
-					continue;
+		// only include literals like '{' and ':' not IDENTIFIER etc...
+		int n = 0;
+		int nodeStamp = ++stamp;
+		if ( ctx.children!=null ) {
+			for (ParseTree o : ctx.children) {
+				if ( !(o instanceof TerminalNode) ) continue;
+				int ttype = ((TerminalNode)o).getSymbol().getType();
+				if ( !isLiteral(ttype) ) continue;
+				if ( n==literals.length ) {
+					literals = Arrays.copyOf(literals, n*2);
+					isFirst = Arrays.copyOf(isFirst, n*2);
 				}
-
+				literals[n] = ttype;
+				isFirst[n] = firstSeen[ttype]!=nodeStamp;
+				firstSeen[ttype] = nodeStamp;
+				n++;
+			}
+		}
+		if ( n<2 ) return;
+
+		// Find all ordered unique pairs of literals (a,b) with b after the
+		// first a, in order of a's first occurrence then b's first occurrence
+		// after that; no (a,a) pairs and only literals like '{', 'begin', '}', ...
+		// Add a for (a,a) into the repeated tokens for later filtering.
+		// Walking back from the last literal, we move each type to the front
+		// of the list of distinct types after it so at a's first occurrence
+		// the list holds its partners in order.
+		int head = -1;
+		int segments = 0;
+		int npartners = 0;
+		for (int i = n-1; i>=0; i--) {
+			int t = literals[i];
+			if ( isFirst[i] ) {
+				if ( segments==segmentType.length ) {
+					segmentType = Arrays.copyOf(segmentType, segments*2);
+					segmentStart = Arrays.copyOf(segmentStart, segments*2+1);
+				}
+				segmentType[segments] = t;
+				segmentStart[segments++] = npartners;
+				for (int b = head; b!=-1; b = next[b]) {
+					if ( npartners==partners.length ) partners = Arrays.copyOf(partners, npartners*2);
+					partners[npartners++] = b;
+				}
+			}
+			if ( t==head ) continue;
+			if ( inList[t]==nodeStamp ) { // unlink
+				next[prev[t]] = next[t];
+				if ( next[t]!=-1 ) prev[next[t]] = prev[t];
+			}
+			inList[t] = nodeStamp;
+			next[t] = head;
+			prev[t] = -1;
+			if ( head!=-1 ) prev[head] = t;
+			head = t;
+		}
+		segmentStart[segments] = npartners;
+
+		int rule = ctx.getRuleIndex();
+		int alt = ctx.getAltNumber();
+		for (int s = segments-1; s>=0; s--) { // segments are in reverse order of a's first occurrence
+			int atype = segmentType[s];
+			for (int p = segmentStart[s]; p<segmentStart[s+1]; p++) {
+				int btype = partners[p];
 				if ( atype==btype ) {
-					Set<Integer> repeatedTokensSet = ruleToRepeatedTokensSet.get(ruleAltKey);
-					if ( repeatedTokensSet==null ) {
-						repeatedTokensSet = new HashSet<>();
-						ruleToRepeatedTokensSet.put(ruleAltKey, repeatedTokensSet);
-					}
-					repeatedTokensSet.add(atype);
+					getSet(ruleAltToRepeatedTokens, rule, alt).add(atype);
 				}
 				else {
-					Pair<Integer, Integer> pair = new Pair<>(atype, btype);
-					Set<Pair<Integer, Integer>> pairsBag = ruleToPairsBag.get(ruleAltKey);
-					if ( pairsBag==null ) {
-						pairsBag = new HashSet<>();
-						ruleToPairsBag.put(ruleAltKey, pairsBag);
+					getSet(ruleAltToPairs, rule, alt).add(pack(atype, btype));
+				}
+			}
+		}
+	}
+
+	protected boolean isLiteral(int ttype) {
+		return ttype>=0 && ttype<literalTypes.length && literalTypes[ttype];
+	}
+
+	/** Token types a and b in one int; types fit in 16 bits */
+	public static int pack(int a, int b) {
+		return a<<16 | b;
+	}
+
+	/** The set for rule and alt in sets, made if we don't have it */
+	protected static OrderedIntSet getSet(OrderedIntSet[][] sets, int rule, int alt) {
+		OrderedIntSet[] alts = sets[rule];
+		if ( alts==null || alt>=alts.length ) {
+			alts = alts==null ? new OrderedIntSet[alt+1] : Arrays.copyOf(alts, alt+1);
+			sets[rule] = alts;
+		}
+		OrderedIntSet set = alts[alt];
+		if ( set==null ) {
+			set = new OrderedIntSet();
+			alts[alt] = set;
+		}
+		return set;
+	}
+
+	/** The set for rule and alt in sets; null if none */
+	protected static OrderedIntSet findSet(OrderedIntSet[][] sets, int rule, int alt) {
+		OrderedIntSet[] alts = sets[rule];
+		return alts!=null && alt<alts.length ? alts[alt] : null;
+	}
+
+	/** Add pairs and repeated tokens collected by a worker on another set of
+	 *  documents. Merging partials in document order yields the same sets,
+	 *  in the same iteration order, as walking all documents with one instance.
+	 */
+	public void merge(CollectTokenPairs partial) {
+		mergeSets(ruleAltToPairs, partial.ruleAltToPairs);
+		mergeSets(ruleAltToRepeatedTokens, partial.ruleAltToRepeatedTokens);
+	}
+
+	protected static void mergeSets(OrderedIntSet[][] to, OrderedIntSet[][] from) {
+		for (int rule = 0; rule<from.length; rule++) {
+			if ( from[rule]==null ) continue;
+			for (int alt = 0; alt<from[rule].length; alt++) {
+				if ( from[rule][alt]!=null ) getSet(to, rule, alt).addAll(from[rule][alt]);
+			}
+		}
+	}
+
+	/** Save pairs and repeated tokens so another process can {@link #read}
+	 *  and {@link #merge} them; pairs are written in iteration order.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		writeSets(out, ruleAltToPairs, true);
+		writeSets(out, ruleAltToRepeatedTokens, false);
+	}
+
+	protected void writeSets(DataOutputStream out, OrderedIntSet[][] sets, boolean pairs) throws IOException {
+		int n = 0;
+		for (OrderedIntSet[] alts : sets) {
+			if ( alts==null ) continue;
+			for (OrderedIntSet set : alts) {
+				if ( set!=null ) n++;
+			}
+		}
+		out.writeInt(n);
+		for (int rule = 0; rule<sets.length; rule++) {
+			if ( sets[rule]==null ) continue;
+			for (int alt = 0; alt<sets[rule].length; alt++) {
+				OrderedIntSet set = sets[rule][alt];
+				if ( set==null ) continue;
+				out.writeUTF(ruleNames[rule]);
+				out.writeInt(alt);
+				out.writeInt(set.size());
+				for (int i = 0; i<set.size(); i++) {
+					int v = set.get(i);
+					if ( pairs ) {
+						out.writeInt(v>>>16);
+						out.writeInt(v&0xFFFF);
+					}
+					else {
+						out.writeInt(v);
 					}
-					pairsBag.add(pair);
 				}
 			}
 		}
 	}
 
+	/** Add pairs and repeated tokens saved by {@link #write} */
+	public void read(DataInputStream in) throws IOException {
+		Map<String, Integer> ruleIndexes = new HashMap<>();
+		for (int rule = 0; rule<ruleNames.length; rule++) {
+			ruleIndexes.put(ruleNames[rule], rule);
+		}
+		readSets(in, ruleIndexes, ruleAltToPairs, true);
+		readSets(in, ruleIndexes, ruleAltToRepeatedTokens, false);
+	}
+
+	protected static void readSets(DataInputStream in, Map<String, Integer> ruleIndexes,
+	                               OrderedIntSet[][] sets, boolean pairs)
+		throws IOException
+	{
+		int n = in.readInt();
+		for (int i = 0; i<n; i++) {
+			String ruleName = in.readUTF();
+			Integer rule = ruleIndexes.get(ruleName);
+			if ( rule==null ) throw new IOException("unknown rule "+ruleName);
+			OrderedIntSet set = getSet(sets, rule, in.readInt());
+			int nvalues = in.readInt();
+			for (int j = 0; j<nvalues; j++) {
+				set.add(pairs ? pack(in.readInt(), in.readInt()) : in.readInt());
+			}
+		}
+	}
+
+	protected Set<Pair<Integer, Integer>> newPairSet() {
+		return preserveEncounterOrder ? new LinkedHashSet<>() : new HashSet<>();
+	}
+
 	/** Return the list of token dependences for each rule in a Map.
 	 */
 	public Map<RuleAltKey, List<Pair<Integer, Integer>>> getDependencies() {
@@ -242,19 +448,30 @@ public class CollectTokenPairs implements ParseTreeListener {
 	protected Map<RuleAltKey,List<Pair<Integer,Integer>>> stripPairsWithRepeatedTokens() {
 		Map<RuleAltKey,List<Pair<Integer,Integer>>> ruleToPairsWoRepeats = new HashMap<>();
 		// For each rule
-		for (RuleAltKey ruleAltKey : ruleToPairsBag.keySet()) {
-			Set<Integer> ruleRepeatedTokens = ruleToRepeatedTokensSet.get(ruleAltKey);
-			Set<Pair<Integer, Integer>> pairsBag = ruleToPairsBag.get(ruleAltKey);
-			// If there are repeated tokens for this rule
-			if ( ruleRepeatedTokens!=null ) {
-				// Remove all (a,b) for b in repeated token set
-				List<Pair<Integer, Integer>> pairsWoRepeats =
-					BuffUtils.filter(pairsBag,
-                                     p -> !ruleRepeatedTokens.contains(p.a) && !ruleRepeatedTokens.contains(p.b));
-				ruleToPairsWoRepeats.put(ruleAltKey, pairsWoRepeats);
-			}
-			else {
-				ruleToPairsWoRepeats.put(ruleAltKey, new ArrayList<>(pairsBag));
+		for (int rule = 0; rule<ruleAltToPairs.length; rule++) {
+			if ( ruleAltToPairs[rule]==null ) continue;
+			for (int alt = 0; alt<ruleAltToPairs[rule].length; alt++) {
+				OrderedIntSet packedPairs = ruleAltToPairs[rule][alt];
+				if ( packedPairs==null ) continue;
+				// same sets, in the same order, we'd get adding Pairs as we saw them
+				Set<Pair<Integer, Integer>> pairsBag = newPairSet();
+				for (int i = 0; i<packedPairs.size(); i++) {
+					int pair = packedPairs.get(i);
+					pairsBag.add(new Pair<>(pair>>>16, pair&0xFFFF));
+				}
+				RuleAltKey ruleAltKey = new RuleAltKey(ruleNames[rule], alt);
+				OrderedIntSet ruleRepeatedTokens = findSet(ruleAltToRepeatedTokens, rule, alt);
+				// If there are repeated tokens for this rule
+				if ( ruleRepeatedTokens!=null ) {
+					// Remove all (a,b) for b in repeated token set
+					List<Pair<Integer, Integer>> pairsWoRepeats =
+						BuffUtils.filter(pairsBag,
+						                 p -> !ruleRepeatedTokens.contains(p.a) && !ruleRepeatedTokens.contains(p.b));
+					ruleToPairsWoRepeats.put(ruleAltKey, pairsWoRepeats);
+				}
+				else {
+					ruleToPairsWoRepeats.put(ruleAltKey, new ArrayList<>(pairsBag));
+				}
 			}
 		}
 		return ruleToPairsWoRepeats;
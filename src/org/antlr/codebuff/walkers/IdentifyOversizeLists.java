@@ -1,6 +1,7 @@
 package org.antlr.codebuff.walkers;
 
 import org.antlr.codebuff.Corpus;
+import org.antlr.codebuff.FlatTree;
 import org.antlr.codebuff.Trainer;
 import org.antlr.codebuff.misc.CodeBuffTokenStream;
 import org.antlr.codebuff.misc.ParentSiblingListKey;
@@ -8,7 +9,6 @@ import org.antlr.codebuff.misc.SiblingListStats;
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.misc.Pair;
-import org.antlr.v4.runtime.tree.TerminalNode;
 
 import java.util.HashMap;
 import java.util.List;
@@ -24,15 +24,13 @@ public class IdentifyOversizeLists extends VisitSiblingLists {
 	/** Map token to ("is oversize", element type). Used to compute feature vector. */
 	public Map<Token,Pair<Boolean,Integer>> tokenToListInfo = new HashMap<>();
 
-	public Map<Token, TerminalNode> tokenToNodeMap;
-
 	public IdentifyOversizeLists(Corpus corpus,
 	                             CodeBuffTokenStream tokens,
-	                             Map<Token, TerminalNode> tokenToNodeMap)
+	                             FlatTree flatTree)
 	{
 		this.corpus = corpus;
 		this.tokens = tokens;
-		this.tokenToNodeMap = tokenToNodeMap;
+		this.flatTree = flatTree;
 	}
 
 	public void visitNonSingletonWithSeparator(ParserRuleContext ctx,
@@ -40,17 +38,10 @@ public class IdentifyOversizeLists extends VisitSiblingLists {
 	                                           Token separator)
 	{
 		boolean oversize = isOversizeList(ctx, siblings, separator);
-		Map<Token, Pair<Boolean, Integer>> tokenInfo =
-			getInfoAboutListTokens(ctx, tokens, tokenToNodeMap, siblings, oversize);
-
 		// copy sibling list info for associated tokens into overall list
 		// but don't overwrite existing so that most general (largest construct)
 		// list information is use/retained (i.e., not overwritten).
-		for (Token t : tokenInfo.keySet()) {
-			if ( !tokenToListInfo.containsKey(t) ) {
-				tokenToListInfo.put(t, tokenInfo.get(t));
-			}
-		}
+		addInfoAboutListTokens(tokenToListInfo, ctx, tokens, flatTree, siblings, oversize);
 	}
 
 	/** Return true if we've only seen parent-sibling-separator combo as a split list.
@@ -72,18 +63,18 @@ public class IdentifyOversizeLists extends VisitSiblingLists {
 			// I used to have oversize failsafe
 		}
 
-		int len = Trainer.getSiblingsLength(siblings);
+		int len = getSiblingsLength(siblings);
 		if ( stats!=null&&splitStats!=null ) {
 			// compare distance in units of standard deviations to regular or split means
 			// like a one-dimensional Mahalanobis distance.
 			// actually i took out the stddev divisor. they are usually very spread out and overlapping.
-			double distToSplit = Math.abs(splitStats.median-len);
+			double distToSplit = Math.abs(splitStats.median()-len);
 			double distToSplitSquared = Math.pow(distToSplit,2);
-			double distToSplitStddevUnits = distToSplitSquared / Math.sqrt(splitStats.variance);
+			double distToSplitStddevUnits = distToSplitSquared / Math.sqrt(splitStats.variance());
 
-			double distToRegular = Math.abs(stats.median-len);
+			double distToRegular = Math.abs(stats.median()-len);
 			double distToRegularSquared = Math.pow(distToRegular,2);
-			double distToRegularStddevUnits = distToRegularSquared / Math.sqrt(stats.variance);
+			double distToRegularStddevUnits = distToRegularSquared / Math.sqrt(stats.variance());
 
 			// consider a priori probabilities as well.
 			float n = splitStats.numSamples+stats.numSamples;
@@ -1,7 +1,7 @@
 package org.antlr.codebuff.walkers;
 
+import org.antlr.codebuff.FlatTree;
 import org.antlr.codebuff.Trainer;
-import org.antlr.codebuff.misc.BuffUtils;
 import org.antlr.codebuff.misc.CodeBuffTokenStream;
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
@@ -11,100 +11,196 @@ import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeListener;
 import org.antlr.v4.runtime.tree.TerminalNode;
 import org.antlr.v4.runtime.tree.Tree;
-import org.antlr.v4.runtime.tree.Trees;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public abstract class VisitSiblingLists implements ParseTreeListener {
+	/** Tree of the document we're walking; maps tokens to leaves and gives
+	 *  list lengths from token offsets rather than text. If null, we
+	 *  measure lists by their text and search the tree for leaves.
+	 */
+	public FlatTree flatTree;
+
+	/** Subtree children of a node with the same type, and where the first
+	 *  two are among the node's children.
+	 */
+	protected static class SiblingGroup {
+		public final List<ParserRuleContext> siblings = new ArrayList<>();
+		public int firstIndex;
+		public int secondIndex = -1;
+
+		public void add(ParserRuleContext sibling, int childIndex) {
+			if ( siblings.isEmpty() ) firstIndex = childIndex;
+			else if ( siblings.size()==1 ) secondIndex = childIndex;
+			siblings.add(sibling);
+		}
+	}
+
 	public void enterEveryRule(ParserRuleContext ctx) {
-		// Find sibling lists that are children of this parent node
-		Set<Class> completed = new HashSet<>(); // only count sibling list for each subtree type once
-		for (int i = 0; i<ctx.getChildCount(); i++) {
-			ParseTree child = ctx.getChild(i);
+		int n = ctx.getChildCount();
+		if ( n<2 ) return; // can't have a list
 
-			if ( completed.contains(child.getClass()) ) continue; // avoid counting repeatedly
-			completed.add(child.getClass());
+		// Find sibling lists that are children of this parent node in one pass
+		// over the children, grouping subtrees by type in order of first appearance
+		Map<Class<?>, SiblingGroup> groups = null;
+		for (int i = 0; i<n; i++) {
+			ParseTree child = ctx.getChild(i);
 			if ( child instanceof TerminalNode ) continue; // tokens are separators at most not siblings
-
-			// found subtree child
-			List<? extends ParserRuleContext> siblings =
-				ctx.getRuleContexts(((ParserRuleContext) child).getClass());
-			if ( siblings.size()>1 ) { // we found a list
+			if ( groups==null ) groups = new LinkedHashMap<>();
+			SiblingGroup group = groups.get(child.getClass());
+			if ( group==null ) {
+				group = new SiblingGroup();
+				groups.put(child.getClass(), group);
+			}
+			group.add((ParserRuleContext)child, i);
+		}
+		if ( groups==null ) return;
+
+		for (Class<?> type : groups.keySet()) {
+			SiblingGroup group = groups.get(type);
+			if ( hasSubtypeGroup(groups, type) ) {
+				// rare: siblings of a type include its subtypes; regroup them
+				group = new SiblingGroup();
+				for (int i = 0; i<n; i++) {
+					ParseTree child = ctx.getChild(i);
+					if ( type.isInstance(child) ) group.add((ParserRuleContext)child, i);
+				}
+			}
+			if ( group.siblings.size()>1 ) { // we found a list
 				// check for separator by looking between first two siblings (assume all are same)
-				ParserRuleContext first = siblings.get(0);
-				ParserRuleContext second = siblings.get(1);
-				List<Tree> children = Trees.getChildren(ctx);
-
-				int firstIndex = children.indexOf(first);
-				int secondIndex = children.indexOf(second);
-
-				if ( firstIndex+1 == secondIndex ) continue; // nothing between first and second so no separator
+				if ( group.firstIndex+1 == group.secondIndex ) continue; // nothing between first and second so no separator
 
-				ParseTree between = ctx.getChild(firstIndex+1);
+				ParseTree between = ctx.getChild(group.firstIndex+1);
 				if ( between instanceof TerminalNode ) { // is it a token?
 					Token separator = ((TerminalNode) between).getSymbol();
-					visitNonSingletonWithSeparator(ctx, siblings, separator);
+					visitNonSingletonWithSeparator(ctx, group.siblings, separator);
 				}
 			}
 		}
 	}
 
+	protected static boolean hasSubtypeGroup(Map<Class<?>, SiblingGroup> groups, Class<?> type) {
+		if ( groups.size()==1 ) return false;
+		for (Class<?> other : groups.keySet()) {
+			if ( other!=type && type.isAssignableFrom(other) ) return true;
+		}
+		return false;
+	}
+
+	/** Text length of siblings without separators */
+	public int getSiblingsLength(List<? extends ParserRuleContext> siblings) {
+		if ( flatTree!=null ) return Trainer.getSiblingsLength(flatTree, siblings);
+		return Trainer.getSiblingsLength(siblings);
+	}
+
 	public abstract void visitNonSingletonWithSeparator(ParserRuleContext ctx,
 	                                                    List<? extends ParserRuleContext> siblings,
 	                                                    Token separator);
 
+	/** Tokens among ctx's children from the first to the last sibling */
 	public static List<Tree> getSeparators(ParserRuleContext ctx, List<? extends ParserRuleContext> siblings) {
 		ParserRuleContext first = siblings.get(0);
 		ParserRuleContext last = siblings.get(siblings.size()-1);
-		int start = BuffUtils.indexOf(ctx, first);
-		int end = BuffUtils.indexOf(ctx, last);
-		List<Tree> elements = Trees.getChildren(ctx).subList(start, end+1);
-		return BuffUtils.filter(elements, c -> c instanceof TerminalNode);
+		List<Tree> separators = new ArrayList<>(siblings.size());
+		boolean inList = false;
+		for (int i = 0; i<ctx.getChildCount(); i++) {
+			ParseTree child = ctx.getChild(i);
+			if ( child==first ) inList = true;
+			if ( inList && child instanceof TerminalNode ) separators.add(child);
+			if ( child==last ) break;
+		}
+		return separators;
 	}
 
 	/** Return map for the various tokens related to this list re list membership */
 	public static Map<Token,Pair<Boolean,Integer>> getInfoAboutListTokens(ParserRuleContext ctx,
 	                                                                      CodeBuffTokenStream tokens,
-	                                                                      Map<Token, TerminalNode> tokenToNodeMap,
+	                                                                      FlatTree flatTree,
 	                                                                      List<? extends ParserRuleContext> siblings,
 	                                                                      boolean isOversizeList)
 	{
 		Map<Token,Pair<Boolean,Integer>> tokenToListInfo = new HashMap<>();
+		addInfoAboutListTokens(tokenToListInfo, ctx, tokens, flatTree, siblings, isOversizeList);
+		return tokenToListInfo;
+	}
 
+	/** Add info for the tokens related to this list to tokenToListInfo
+	 *  without replacing info already there, so that the most general
+	 *  (largest construct) list information is retained. Within this list,
+	 *  member info wins over separator info, which wins over prefix/suffix
+	 *  info; we add them in that order.
+	 */
+	public static void addInfoAboutListTokens(Map<Token,Pair<Boolean,Integer>> tokenToListInfo,
+	                                          ParserRuleContext ctx,
+	                                          CodeBuffTokenStream tokens,
+	                                          FlatTree flatTree,
+	                                          List<? extends ParserRuleContext> siblings,
+	                                          boolean isOversizeList)
+	{
 		ParserRuleContext first = siblings.get(0);
 		ParserRuleContext last = siblings.get(siblings.size()-1);
 
-		Token prefixToken = tokens.getPreviousRealToken(first.getStart().getTokenIndex()); // e.g., '(' in an arg list or ':' in grammar def
-		Token suffixToken = tokens.getNextRealToken(last.getStop().getTokenIndex());       // e.g., LT(1) is last token of list; LT(2) is ')' in an arg list of ';' in grammar def
-
-		TerminalNode prefixNode = tokenToNodeMap.get(prefixToken);
-		TerminalNode suffixNode = tokenToNodeMap.get(suffixToken);
-		boolean hasSurroundingTokens =
-			prefixNode!=null && prefixNode.getParent() == suffixNode.getParent();
-
-		if ( hasSurroundingTokens ) {
-			tokenToListInfo.put(prefixToken, new Pair<>(isOversizeList, Trainer.LIST_PREFIX));
-			tokenToListInfo.put(suffixToken, new Pair<>(isOversizeList, Trainer.LIST_SUFFIX));
+		// handle sibling members
+		Pair<Boolean,Integer> member = new Pair<>(isOversizeList, Trainer.LIST_MEMBER);
+		for (int i = siblings.size()-1; i>=1; i--) {
+			tokenToListInfo.putIfAbsent(siblings.get(i).getStart(), member);
 		}
+		tokenToListInfo.putIfAbsent(first.getStart(), new Pair<>(isOversizeList, Trainer.LIST_FIRST_ELEMENT));
 
 		List<Tree> separators = getSeparators(ctx, siblings);
-		Tree firstSep = separators.get(0);
-		tokenToListInfo.put((Token)firstSep.getPayload(), new Pair<>(isOversizeList, Trainer.LIST_FIRST_SEPARATOR));
-		for (Tree s : separators.subList(1,separators.size())) {
-			tokenToListInfo.put((Token)s.getPayload(), new Pair<>(isOversizeList, Trainer.LIST_SEPARATOR));
+		Pair<Boolean,Integer> separator = new Pair<>(isOversizeList, Trainer.LIST_SEPARATOR);
+		for (int i = separators.size()-1; i>=1; i--) {
+			tokenToListInfo.putIfAbsent((Token)separators.get(i).getPayload(), separator);
 		}
+		tokenToListInfo.putIfAbsent((Token)separators.get(0).getPayload(), new Pair<>(isOversizeList, Trainer.LIST_FIRST_SEPARATOR));
 
-		// handle sibling members
-		tokenToListInfo.put(first.getStart(), new Pair<>(isOversizeList, Trainer.LIST_FIRST_ELEMENT));
-		for (ParserRuleContext s : siblings.subList(1,siblings.size())) {
-			tokenToListInfo.put(s.getStart(), new Pair<>(isOversizeList, Trainer.LIST_MEMBER));
+		int prefixIndex = tokens.getPreviousRealTokenIndex(first.getStart().getTokenIndex()); // e.g., '(' in an arg list or ':' in grammar def
+		int suffixIndex = tokens.getNextRealTokenIndex(last.getStop().getTokenIndex());       // e.g., LT(1) is last token of list; LT(2) is ')' in an arg list of ';' in grammar def
+
+		TerminalNode prefixNode = prefixIndex>=0 ? getLeaf(flatTree, ctx, prefixIndex) : null;
+		TerminalNode suffixNode = suffixIndex>=0 ? getLeaf(flatTree, ctx, suffixIndex) : null;
+		boolean hasSurroundingTokens =
+			prefixNode!=null && suffixNode!=null && prefixNode.getParent() == suffixNode.getParent();
+		Token prefixToken = prefixNode!=null ? prefixNode.getSymbol() : null; // key by tree's tokens like the members
+		Token suffixToken = suffixNode!=null ? suffixNode.getSymbol() : null;
+
+		if ( hasSurroundingTokens ) {
+			tokenToListInfo.putIfAbsent(suffixToken, new Pair<>(isOversizeList, Trainer.LIST_SUFFIX));
+			tokenToListInfo.putIfAbsent(prefixToken, new Pair<>(isOversizeList, Trainer.LIST_PREFIX));
 		}
+	}
 
-		return tokenToListInfo;
+	/** The leaf of token tokenIndex in the tree holding ctx; we look it up in
+	 *  flatTree if we have one or else descend from the root through the
+	 *  nodes whose tokens include it. Null if no leaf has it.
+	 */
+	public static TerminalNode getLeaf(FlatTree flatTree, ParserRuleContext ctx, int tokenIndex) {
+		if ( flatTree!=null ) return flatTree.getLeaf(tokenIndex);
+		ParserRuleContext node = ctx;
+		while ( node.getParent()!=null ) node = node.getParent();
+		while ( node!=null ) {
+			ParserRuleContext next = null;
+			for (int i = 0; i<node.getChildCount() && next==null; i++) {
+				ParseTree child = node.getChild(i);
+				if ( child instanceof TerminalNode ) {
+					if ( ((TerminalNode)child).getSymbol().getTokenIndex()==tokenIndex ) return (TerminalNode)child;
+				}
+				else {
+					ParserRuleContext r = (ParserRuleContext)child;
+					if ( r.getStart().getTokenIndex()<=tokenIndex && r.getStop()!=null &&
+						 tokenIndex<=r.getStop().getTokenIndex() )
+					{
+						next = r;
+					}
+				}
+			}
+			node = next;
+		}
+		return null;
 	}
 
 	@Override